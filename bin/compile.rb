@@ -13,3 +13,9 @@ end
 
 `mkdir ./lib`
 `cp ../lucene-4.10.3_src/build/ngram/lucene-ngram-*-SNAPSHOT.jar ./lib/`
+
+# Modules the ngram code needs at runtime, core, analyzers-common and queryparser are already in lib
+%w(queries facet expressions replicator join suggest misc).each do |mod|
+	`cp ../lucene-4.10.3_src/build/#{mod}/lucene-#{mod}-*.jar ./lib/`
+end
+`cp ../lucene-4.10.3_src/expressions/lib/*.jar ./lib/`
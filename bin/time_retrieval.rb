@@ -1,26 +1,45 @@
 
 require 'thread'
+require 'open3'
+require 'tempfile'
 
 words = open("/usr/share/dict/words").read.split("\n").map &:strip
 
-dryrun_words = words.sample 100
+warm_words = words.sample 100
 test_words = words.sample 1000
 
 Dir.chdir(File.dirname(__FILE__)) do
-	IO.popen('java -cp "lib/*" org.apache.lucene.ngram.ExtractNgrams -index index_3', 'r+') do |search|
-		
-		t_out = Thread.new do
-			while line = search.gets do
-				# puts line
+	warm_queries = Tempfile.new('warm_queries')
+	warm_queries.puts warm_words
+	warm_queries.close
+
+	Open3.popen3("java -cp \"lib/*\" org.apache.lucene.ngram.ExtractNgrams -index index_3 -warm-queries #{warm_queries.path}") do |search, out, err, wait|
+
+		# Wait for the searcher to be warmed instead of sleeping
+		warmed = false
+		output = []
+		while line = err.gets do
+			if line.start_with? "Warmed"
+				warmed = true
+				break
 			end
+			output << line
 		end
-		
-		for word in dryrun_words
-			search.puts word
+		unless warmed
+			abort "ExtractNgrams exited before the searcher was warmed (#{wait.value}):\n#{output.join}"
+		end
+
+		# Keep draining stderr, a full pipe would block the search
+		t_err = Thread.new do
+			while line = err.gets do
+			end
 		end
 
-		# Let the output catch up
-		sleep 5
+		t_out = Thread.new do
+			while line = out.gets do
+				# puts line
+			end
+		end
 
 		t_0 = Time.now
 		for word in test_words
@@ -28,7 +47,9 @@ Dir.chdir(File.dirname(__FILE__)) do
 		end
 		search.close_write
 		t_out.join
+		t_err.join
 		puts "Result: #{(Time.now - t_0) / test_words.size} s"
 
 	end
+	warm_queries.unlink
 end
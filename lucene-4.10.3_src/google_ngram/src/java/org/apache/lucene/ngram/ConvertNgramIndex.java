@@ -0,0 +1,158 @@
+package org.apache.lucene.ngram;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Date;
+
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.IndexWriterConfig.OpenMode;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Version;
+
+/**
+ * Rewrites an existing ngram index with another {@link NgramIndexProfile},
+ * e.g. to archive a serving index or to serve an archived one, without
+ * going back to the raw data.
+ * <p>
+ * Every segment of the source is rewritten through the codec of the
+ * target profile into its own segment, then the profile finishes the
+ * index. The commit user data, such as the ingested units, and the
+ * vocabulary of an encoded index are carried over. Sharded indexes are
+ * converted shard by shard.
+ */
+public class ConvertNgramIndex {
+
+  private ConvertNgramIndex() {}
+
+  /** Convert an index to another profile. */
+  public static void main(String[] args) {
+    String usage = "java org.apache.lucene.ngram.ConvertNgramIndex"
+                 + " -from INDEX_PATH -to INDEX_PATH -profile archive|serving\n\n"
+                 + "This writes a copy of the index in INDEX_PATH laid out for archiving or serving";
+    String fromPath = null;
+    String toPath = null;
+    String profileName = null;
+    for(int i=0;i<args.length;i++) {
+      if ("-from".equals(args[i])) {
+        fromPath = args[i+1];
+        i++;
+      } else if ("-to".equals(args[i])) {
+        toPath = args[i+1];
+        i++;
+      } else if ("-profile".equals(args[i])) {
+        profileName = args[i+1];
+        i++;
+      }
+    }
+
+    if (fromPath == null || toPath == null || profileName == null) {
+      System.err.println("Usage: " + usage);
+      System.exit(1);
+    }
+
+    Date start = new Date();
+    try {
+      NgramIndexProfile profile = NgramIndexProfile.forName(profileName);
+      File from = new File(fromPath);
+      File to = new File(toPath);
+      if (from.getCanonicalFile().equals(to.getCanonicalFile())) {
+        throw new IllegalArgumentException("source and target must be different directories");
+      }
+
+      if (NgramShards.isSharded(from)) {
+        NgramShards shards = NgramShards.open(from);
+        if (!to.isDirectory() && !to.mkdirs()) {
+          throw new IOException("Cannot create directory '" + to + "'");
+        }
+        for (int i = 0; i < shards.size(); i++) {
+          File shard = shards.directory(i);
+          convert(shard, new File(to, shard.getName()), profile);
+        }
+        copy(new File(from, NgramShards.LAYOUT), new File(to, NgramShards.LAYOUT));
+      } else {
+        convert(from, to, profile);
+      }
+
+      System.out.println("Converted '" + fromPath + "' (" + size(from) + " bytes) to the " + profile
+                         + " profile in '" + toPath + "' (" + size(to) + " bytes)");
+      Date end = new Date();
+      System.out.println(end.getTime() - start.getTime() + " total milliseconds");
+
+    } catch (Exception e) {
+      System.out.println(" caught a " + e.getClass() +
+       "\n with message: " + e.getMessage());
+    }
+  }
+
+  /** Writes the index in <code>from</code> with <code>profile</code> into the new index <code>to</code>. */
+  public static void convert(File from, File to, NgramIndexProfile profile) throws IOException {
+    Directory source = FSDirectory.open(from);
+    DirectoryReader reader = DirectoryReader.open(source);
+    try {
+      // :Post-Release-Update-Version.LUCENE_XY:
+      IndexWriterConfig iwc = new IndexWriterConfig(Version.LUCENE_4_10_0, new KeywordAnalyzer());
+      iwc.setOpenMode(OpenMode.CREATE);
+      profile.configure(iwc);
+      IndexWriter writer = new IndexWriter(FSDirectory.open(to), iwc);
+      try {
+        for (AtomicReaderContext leaf : reader.leaves()) {
+          writer.addIndexes(leaf.reader());
+          System.out.println("rewrote segment " + leaf.ord + " (" + leaf.reader().numDocs() + " docs)");
+        }
+        profile.finish(writer);
+        writer.setCommitData(reader.getIndexCommit().getUserData());
+        writer.commit();
+      } finally {
+        writer.close();
+      }
+    } finally {
+      reader.close();
+      source.close();
+    }
+
+    File vocabulary = new File(from, NgramVocabulary.FILE_NAME);
+    if (vocabulary.isFile()) {
+      copy(vocabulary, new File(to, NgramVocabulary.FILE_NAME));
+    }
+  }
+
+  private static void copy(File from, File to) throws IOException {
+    Files.copy(from.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  private static long size(File file) {
+    if (file.isFile()) return file.length();
+    long size = 0;
+    File[] files = file.listFiles();
+    if (files != null) {
+      for (File f : files) {
+        size += size(f);
+      }
+    }
+    return size;
+  }
+}
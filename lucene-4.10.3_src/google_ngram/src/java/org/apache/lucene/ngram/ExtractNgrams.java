@@ -23,14 +23,21 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.core.KeywordAnalyzer;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiFields;
 import org.apache.lucene.queryparser.classic.QueryParser;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.ScoreDoc;
@@ -46,7 +53,11 @@ public class ExtractNgrams {
   /** Simple command-line based search demo. */
   public static void main(String[] args) throws Exception {
     String usage =
-      "Usage:\tjava org.apache.lucene.ngrams.ExtractNgrams [-index dir] [-field f]";
+      "Usage:\tjava org.apache.lucene.ngrams.ExtractNgrams [-index dir] [-field f] [-features] [-warm] [-warm-queries file]"
+      + " [-years FROM-TO] [-subsequence] [-unigrams dir -join POSITION:PREDICATE ...] [-threads n]\n\n"
+      + "-join keeps the ngrams whose token at POSITION, or at every position for *, satisfies"
+      + " PREDICATE in the unigram index, e.g. -join 1:peak_year>1950 or -join '*:count<1000'\n"
+      + "-threads searches the shards of a sharded index in parallel";
     if (args.length > 0 && ("-h".equals(args[0]) || "-help".equals(args[0]))) {
       System.out.println(usage);
       System.exit(0);
@@ -54,6 +65,15 @@ public class ExtractNgrams {
 
     String index = "index";
     String field = "term_0";
+    boolean features = false;
+    boolean warm = false;
+    String warmQueries = null;
+    int fromYear = NgramFields.FIRST_YEAR;
+    int toYear = NgramFields.LAST_YEAR;
+    boolean subsequence = false;
+    String unigrams = null;
+    List<String> joins = new ArrayList<String>();
+    int threads = 1;
     // String queries = null;
     // int repeat = 0;
     // boolean raw = false;
@@ -67,6 +87,30 @@ public class ExtractNgrams {
       } else if ("-field".equals(args[i])) {
         field = args[i+1];
         i++;
+      } else if ("-features".equals(args[i])) {
+        features = true;
+      } else if ("-warm".equals(args[i])) {
+        warm = true;
+      } else if ("-warm-queries".equals(args[i])) {
+        warm = true;
+        warmQueries = args[i+1];
+        i++;
+      } else if ("-years".equals(args[i])) {
+        String[] range = args[i+1].split("-");
+        fromYear = Math.max(Integer.parseInt(range[0]), NgramFields.FIRST_YEAR);
+        toYear = Math.min(Integer.parseInt(range[range.length - 1]), NgramFields.LAST_YEAR);
+        i++;
+      } else if ("-subsequence".equals(args[i])) {
+        subsequence = true;
+      } else if ("-unigrams".equals(args[i])) {
+        unigrams = args[i+1];
+        i++;
+      } else if ("-join".equals(args[i])) {
+        joins.add(args[i+1]);
+        i++;
+      } else if ("-threads".equals(args[i])) {
+        threads = Integer.parseInt(args[i+1]);
+        i++;
       // } else if ("-queries".equals(args[i])) {
       //   queries = args[i+1];
       //   i++;
@@ -88,8 +132,64 @@ public class ExtractNgrams {
       }
     }
     
-    IndexReader reader = DirectoryReader.open(FSDirectory.open(new File(index)));
-    IndexSearcher searcher = new IndexSearcher(reader);
+    if (features && (fromYear != NgramFields.FIRST_YEAR || toYear != NgramFields.LAST_YEAR)) {
+      System.err.println("-years is not supported with -features");
+      System.exit(1);
+    }
+    if (!joins.isEmpty() && unigrams == null) {
+      System.err.println("-join needs the unigram index, see -unigrams");
+      System.exit(1);
+    }
+
+    // Sharded indexes route every query to the shards that can match it,
+    // and search several shards on -threads threads
+    NgramShards shards = null;
+    ExecutorService pool = null;
+    IndexReader reader = null;
+    IndexSearcher searcher;
+    if (NgramShards.isSharded(new File(index))) {
+      shards = NgramShards.open(new File(index));
+      if (threads > 1) {
+        pool = Executors.newFixedThreadPool(threads);
+        shards.setExecutor(pool);
+      }
+      searcher = warm ? shards.all() : null;
+    } else {
+      reader = DirectoryReader.open(FSDirectory.open(new File(index)));
+      searcher = new IndexSearcher(reader);
+    }
+    // Encoded indexes are queried by vocabulary ids
+    NgramVocabulary vocabulary = NgramVocabulary.forIndex(new File(index));
+    if (warm) {
+      NgramWarmer warmer = new NgramWarmer(field);
+      warmer.setVocabulary(vocabulary);
+      if (warmQueries != null) {
+        warmer.recordAll(new File(warmQueries));
+      }
+      warmer.warm(searcher);
+    }
+    // Token predicates are evaluated once in the unigram index and joined
+    // into term queries on this one
+    IndexReader unigramReader = null;
+    Query filter = null;
+    if (!joins.isEmpty()) {
+      unigramReader = DirectoryReader.open(FSDirectory.open(new File(unigrams)));
+      NgramJoin join = new NgramJoin(new IndexSearcher(unigramReader),
+                                     NgramVocabulary.forIndex(new File(unigrams)), vocabulary);
+      BooleanQuery all = new BooleanQuery();
+      for (String spec : joins) {
+        int colon = spec.indexOf(':');
+        String position = spec.substring(0, colon);
+        String predicate = spec.substring(colon + 1);
+        if ("*".equals(position)) {
+          IndexReader ngrams = shards != null ? shards.all().getIndexReader() : reader;
+          all.add(join.joinAll(predicate, order(ngrams, vocabulary != null)), BooleanClause.Occur.MUST);
+        } else {
+          all.add(join.join(predicate, Integer.parseInt(position)), BooleanClause.Occur.MUST);
+        }
+      }
+      filter = all;
+    }
     // :Post-Release-Update-Version.LUCENE_XY:
     Analyzer analyzer = new KeywordAnalyzer();
 
@@ -117,7 +217,17 @@ public class ExtractNgrams {
         break;
       }
       
-      Query query = parser.parse(line);
+      // Subsequences are terms that may start at any position, e.g. "of the"
+      Query query = subsequence ? NgramSubsequences.query(line) : parser.parse(line);
+      if (vocabulary != null) {
+        query = vocabulary.translate(query);
+      }
+      if (filter != null) {
+        BooleanQuery joined = new BooleanQuery();
+        joined.add(query, BooleanClause.Occur.MUST);
+        joined.add(filter, BooleanClause.Occur.MUST);
+        query = joined;
+      }
       // System.out.println("Searching for: " + query.toString(field));
             
       // if (repeat > 0) {                           // repeat & time as benchmark
@@ -129,13 +239,32 @@ public class ExtractNgrams {
       //   System.out.println("Time: "+(end.getTime()-start.getTime())+"ms");
       // }
 
-      doPagingSearch(in, searcher, query);
+      doPagingSearch(in, shards != null ? shards.route(query) : searcher, query, features, fromYear, toYear);
 
       // if (queryString != null) {
       //   break;
       // }
     }
-    reader.close();
+    if (shards != null) {
+      shards.close();
+      if (pool != null) {
+        pool.shutdown();
+      }
+    } else {
+      reader.close();
+    }
+    if (unigramReader != null) {
+      unigramReader.close();
+    }
+  }
+
+  /** Number of positions with a term field in <code>reader</code>. */
+  private static int order(IndexReader reader, boolean encoded) throws IOException {
+    int order = 0;
+    while (order < 5 && MultiFields.getTerms(reader, encoded ? NgramFields.termId(order) : NgramFields.term(order)) != null) {
+      order++;
+    }
+    return order;
   }
 
   /**
@@ -147,8 +276,22 @@ public class ExtractNgrams {
    * to fill 5 result pages. If the user wants to page beyond this limit, then the query
    * is executed another time and all hits are collected.
    * 
+   * With <code>features</code> set, prints the normalized mean, standard
+   * deviation and total of the summed timeline instead of the timeline.
+   */
+  public static void doPagingSearch(BufferedReader in, IndexSearcher searcher, Query query,
+                                    boolean features) throws IOException {
+    doPagingSearch(in, searcher, query, features, NgramFields.FIRST_YEAR, NgramFields.LAST_YEAR);
+  }
+
+  /**
+   * Like {@link #doPagingSearch(BufferedReader, IndexSearcher, Query, boolean)},
+   * but prints only the years <code>fromYear</code> to <code>toYear</code>,
+   * decoding just that slice of each timeline.
    */
-  public static void doPagingSearch(BufferedReader in, IndexSearcher searcher, Query query) throws IOException {
+  public static void doPagingSearch(BufferedReader in, IndexSearcher searcher, Query query,
+                                    boolean features, int fromYear, int toYear) throws IOException {
+    boolean slice = fromYear != NgramFields.FIRST_YEAR || toYear != NgramFields.LAST_YEAR;
  
     // Collect enough docs to show 5 pages
     TopDocs results = searcher.search(query, 50000);
@@ -176,6 +319,7 @@ public class ExtractNgrams {
       // end = Math.min(hits.length, start + hitsPerPage);
       
       long[] res = new long[209];
+      long[] tf_row = new long[209];
 
       for (int i = start; i < end; i++) {
         // if (raw) {                              // output raw format
@@ -183,29 +327,42 @@ public class ExtractNgrams {
         //   continue;
         // }
 
-        // System.out.print((i+1) + ".");
-        Document doc = searcher.doc(hits[i].doc);
-        for (int j = 0; j < 5; j++) {
-          String term = doc.get("term_" + j);
-          String pos  = doc.get("pos_" + j);
-          if (term == null && pos == null) break;
-          // System.out.print(" " + term + ( pos != null ? ("\\" + pos) : ""));
-        }
-        // System.out.println();
-        for (int j = 1800; j <= 2008; j++) {
-          String tf = doc.get("tf_" + j);
-          // String df  = doc.get("df_" + j);
-          if (tf != null) {
+        if (slice) {
+          NgramLookup.readTimeline(searcher, hits[i].doc, tf_row, 1, fromYear, toYear);
+        } else {
+          // System.out.print((i+1) + ".");
+          Document doc = searcher.doc(hits[i].doc);
+          for (int j = 0; j < 5; j++) {
+            String term = doc.get("term_" + j);
+            String pos  = doc.get("pos_" + j);
+            if (term == null && pos == null) break;
+            // System.out.print(" " + term + ( pos != null ? ("\\" + pos) : ""));
+          }
+          // System.out.println();
+          for (int j = 1800; j <= 2008; j++) {
+            String tf = doc.get("tf_" + j);
+            // String df  = doc.get("df_" + j);
             // System.out.print("tf_" + j + " = " + tf + " ");
-            res[j-1800] += Long.parseLong(tf);
+            tf_row[j-1800] = tf != null ? Long.parseLong(tf) : 0;
           }
         }
+        for (int j = 0; j < 209; j++) {
+          res[j] += tf_row[j];
+        }
         // System.out.println();
         
       }
-      for (int j = 1800; j <= 2008; j++) {
-        System.out.print(res[j-1800]);
-        if (j != 2008) System.out.print(" ");
+      if (features) {
+        // only the summed timeline goes through the kernels
+        NgramFeatureKernels.Block block = new NgramFeatureKernels.Block(1);
+        block.add(res, null);
+        block.computeMoments();
+        System.out.println(block.mu_tf[0] + " " + block.sigma_tf[0] + " " + block.total_tf[0]);
+        return;
+      }
+      for (int j = fromYear; j <= toYear; j++) {
+        System.out.print(res[j-fromYear]);
+        if (j != toYear) System.out.print(" ");
       }
       System.out.println();
 
@@ -0,0 +1,311 @@
+package org.apache.lucene.ngram;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.IndexWriterConfig.OpenMode;
+import org.apache.lucene.util.IOUtils;
+import org.apache.lucene.util.Version;
+
+/**
+ * Builds a sharded ngram index, see {@link NgramShards}.
+ * <p>
+ * Input files are read in parallel and every entry is routed to the
+ * writer of the shard that holds its key. The raw data is sorted, so
+ * consecutive entries of a file mostly go to the same shard and are
+ * handed to {@link IndexNgrams#indexStream} in chunks. Only the first and
+ * last entry of a file can be split across files; they are held back
+ * and merged with their other parts once all files are read. Entries
+ * already in existing shards are not merged, see IndexNgrams -upsert.
+ */
+public class IndexNgramShards {
+
+  /** Maximum number of characters routed to a shard at once. */
+  private static final int CHUNK_SIZE = 1 << 20;
+
+  private IndexNgramShards() {}
+
+  /** Index all files under a directory into key range shards. */
+  public static void main(String[] args) {
+    String usage = "java org.apache.lucene.ngram.IndexNgramShards"
+                 + " [-index INDEX_PATH] -docs DOCS_PATH -split b,c,d,... [-threads N]"
+                 + " [-profile archive|serving] [-direct-merges] [-bulk SEGMENTS [-ram-mb MB]]\n\n"
+                 + "This indexes the files in DOCS_PATH into one sub-index of INDEX_PATH"
+                 + " per key range, starting a new shard at every split key";
+    String indexPath = "index";
+    String docsPath = null;
+    String split = null;
+    int threads = Runtime.getRuntime().availableProcessors();
+    NgramIndexProfile profile = null;
+    boolean directMerges = false;
+    int bulkSegments = 0;
+    double ramBufferMB = NgramBulkLoad.DEFAULT_RAM_BUFFER_MB;
+    for(int i=0;i<args.length;i++) {
+      if ("-index".equals(args[i])) {
+        indexPath = args[i+1];
+        i++;
+      } else if ("-docs".equals(args[i])) {
+        docsPath = args[i+1];
+        i++;
+      } else if ("-split".equals(args[i])) {
+        split = args[i+1];
+        i++;
+      } else if ("-threads".equals(args[i])) {
+        threads = Integer.parseInt(args[i+1]);
+        i++;
+      } else if ("-profile".equals(args[i])) {
+        profile = NgramIndexProfile.forName(args[i+1]);
+        i++;
+      } else if ("-direct-merges".equals(args[i])) {
+        directMerges = true;
+      } else if ("-bulk".equals(args[i])) {
+        bulkSegments = Integer.parseInt(args[i+1]);
+        i++;
+      } else if ("-ram-mb".equals(args[i])) {
+        ramBufferMB = Double.parseDouble(args[i+1]);
+        i++;
+      }
+    }
+
+    if (docsPath == null) {
+      System.err.println("Usage: " + usage);
+      System.exit(1);
+    }
+    if (bulkSegments > 1 && profile == NgramIndexProfile.ARCHIVE) {
+      System.err.println("archive indexes have a single segment, use -bulk 1");
+      System.exit(1);
+    }
+
+    Date start = new Date();
+    try {
+      File root = new File(indexPath);
+      NgramShards shards;
+      if (NgramShards.isSharded(root)) {
+        shards = NgramShards.open(root);
+        System.out.println("Adding to " + shards.size() + " existing shards in '" + indexPath + "'...");
+      } else {
+        shards = NgramShards.create(root, split == null ? new String[0] : split.split(","));
+        System.out.println("Indexing to " + shards.size() + " shards in '" + indexPath + "'...");
+      }
+
+      List<File> files = new ArrayList<File>();
+      listFiles(new File(docsPath), files);
+
+      IndexWriter[] writers = new IndexWriter[shards.size()];
+      NgramBulkLoad[] bulks = new NgramBulkLoad[shards.size()];
+      try {
+        for (int i = 0; i < writers.length; i++) {
+          // :Post-Release-Update-Version.LUCENE_XY:
+          IndexWriterConfig iwc = new IndexWriterConfig(Version.LUCENE_4_10_0, new KeywordAnalyzer());
+          iwc.setOpenMode(OpenMode.CREATE_OR_APPEND);
+          if (profile != null) {
+            profile.configure(iwc);
+          }
+          if (bulkSegments > 0) {
+            // each shard's buffer is a share of the total
+            bulks[i] = new NgramBulkLoad(bulkSegments, ramBufferMB / writers.length);
+            bulks[i].configure(iwc);
+          }
+          writers[i] = new IndexWriter(NgramServer.openDirectory(shards.directory(i), false, directMerges), iwc);
+        }
+        index(shards, writers, files, threads);
+        if (bulkSegments > 0) {
+          for (int i = 0; i < writers.length; i++) {
+            bulks[i].finish(writers[i]);
+          }
+        } else if (profile != null) {
+          for (IndexWriter writer : writers) {
+            profile.finish(writer);
+          }
+        }
+      } finally {
+        IOUtils.close(writers);
+      }
+
+      Date end = new Date();
+      System.out.println(end.getTime() - start.getTime() + " total milliseconds");
+
+    } catch (Exception e) {
+      System.out.println(" caught a " + e.getClass() +
+       "\n with message: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Indexes <code>files</code> into the shard <code>writers</code> using
+   * <code>threads</code> threads. The first and last entry of a file may
+   * continue in another file, so their lines are collected from all files
+   * and indexed together once all files are read.
+   */
+  static void index(final NgramShards shards, final IndexWriter[] writers, List<File> files, int threads)
+    throws IOException, InterruptedException, ExecutionException {
+    final Map<String,StringBuilder> boundaries = new TreeMap<String,StringBuilder>();
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<?>> tasks = new ArrayList<Future<?>>();
+      for (final File file : files) {
+        tasks.add(pool.submit(new Callable<Void>() {
+          @Override
+          public Void call() throws IOException {
+            InputStream is = new FileInputStream(file);
+            try {
+              if (file.getName().endsWith(".gz")) {
+                is = new GZIPInputStream(is, 1 << 16);
+              }
+              route(shards, writers, new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8), 1 << 16),
+                    boundaries);
+            } finally {
+              is.close();
+            }
+            return null;
+          }
+        }));
+      }
+      for (Future<?> task : tasks) {
+        task.get();
+      }
+    } finally {
+      pool.shutdown();
+    }
+
+    // the lines of an entry split across files are consecutive now
+    StringBuilder chunk = new StringBuilder();
+    int shard = -1;
+    for (Map.Entry<String,StringBuilder> e : boundaries.entrySet()) {
+      shard = append(shards, writers, chunk, shard, e.getKey(), e.getValue());
+    }
+    if (chunk.length() > 0) {
+      IndexNgrams.indexStream(writers[shard], new BufferedReader(new StringReader(chunk.toString())));
+    }
+  }
+
+  /**
+   * Splits <code>reader</code> into runs of entries of the same shard and
+   * indexes them, except for the lines of the first and last entry, which
+   * are added to <code>boundaries</code>.
+   */
+  static void route(NgramShards shards, IndexWriter[] writers, BufferedReader reader,
+                    Map<String,StringBuilder> boundaries) throws IOException {
+    StringBuilder chunk = new StringBuilder();
+    StringBuilder entry = new StringBuilder();
+    int shard = -1;
+    String prev_key = null;
+    boolean first = true;
+    String line;
+    while ((line = reader.readLine()) != null) {
+      String key = entryKey(line);
+      if (key != null && !key.equals(prev_key)) {
+        if (prev_key != null && first) {
+          addBoundary(boundaries, prev_key, entry);
+          first = false;
+        } else if (prev_key != null) {
+          shard = append(shards, writers, chunk, shard, prev_key, entry);
+        }
+        if (prev_key != null) {
+          entry.setLength(0);
+        }
+        prev_key = key;
+      }
+      entry.append(line).append('\n');
+    }
+    if (prev_key != null) {
+      addBoundary(boundaries, prev_key, entry);
+    }
+    if (chunk.length() > 0) {
+      IndexNgrams.indexStream(writers[shard], new BufferedReader(new StringReader(chunk.toString())));
+    }
+  }
+
+  /**
+   * Appends the lines of the entry <code>key</code> to the <code>chunk</code>
+   * of <code>shard</code>, indexing the chunk first if the entry belongs to
+   * another shard or the chunk is full. Returns the shard of the entry.
+   */
+  private static int append(NgramShards shards, IndexWriter[] writers, StringBuilder chunk, int shard,
+                            String key, CharSequence lines) throws IOException {
+    int next = shards.shardOf(key);
+    // only cut between entries
+    if (shard >= 0 && (next != shard || chunk.length() >= CHUNK_SIZE)) {
+      IndexNgrams.indexStream(writers[shard], new BufferedReader(new StringReader(chunk.toString())));
+      chunk.setLength(0);
+    }
+    chunk.append(lines);
+    return next;
+  }
+
+  private static void addBoundary(Map<String,StringBuilder> boundaries, String key, CharSequence lines) {
+    synchronized (boundaries) {
+      StringBuilder sb = boundaries.get(key);
+      if (sb == null) {
+        sb = new StringBuilder();
+        boundaries.put(key, sb);
+      }
+      sb.append(lines);
+    }
+  }
+
+  /** The entry of a raw line: all but the year and count columns, or null if there are too few. */
+  static String entryKey(String line) {
+    String[] tokens = line.trim().split("\\s+");
+    if (tokens.length < 4) return null;
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < tokens.length - 3; i++) {
+      if (i != 0) sb.append(' ');
+      sb.append(tokens[i]);
+    }
+    return sb.toString();
+  }
+
+  private static void listFiles(File file, List<File> files) {
+    if (!file.canRead()) return;
+    if (file.isDirectory()) {
+      String[] names = file.list();
+      if (names != null) {
+        Arrays.sort(names);
+        for (String name : names) {
+          listFiles(new File(file, name), files);
+        }
+      }
+    } else if (!file.getName().startsWith(".")) {
+      files.add(file);
+    }
+  }
+}
@@ -25,12 +25,13 @@ import org.apache.lucene.document.LongField;
 import org.apache.lucene.document.StoredField;
 import org.apache.lucene.document.StringField;
 import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig.OpenMode;
 import org.apache.lucene.index.IndexWriterConfig;
 import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TrackingIndexWriter;
 import org.apache.lucene.store.Directory;
-import org.apache.lucene.store.FSDirectory;
 import org.apache.lucene.util.Version;
 
 import java.io.BufferedReader;
@@ -39,6 +40,7 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.PrintStream;
 import java.lang.Integer;
 import java.lang.Long;
 import java.nio.charset.StandardCharsets;
@@ -53,17 +55,42 @@ import java.util.regex.Pattern;
  * Run it with no command-line arguments for usage information.
  */
 public class IndexNgrams {
-  
+
+  /**
+   * Prefix of a line in the input stream that starts a new ingest unit,
+   * followed by the unit name. Raw data lines always have at least
+   * four columns, so they never look like a marker.
+   */
+  public static final String UNIT_MARKER = "#unit\t";
+
+  /** A token of an entry: a term with an optional part of speech suffix. */
+  static final Pattern ENTRY_PATTERN_1 = Pattern.compile("^(.+?)(?:_([A-Z]+))?$");
+
+  /** A token of an entry that is a part of speech placeholder, e.g. <code>_NOUN_</code>. */
+  static final Pattern ENTRY_PATTERN_2 = Pattern.compile("^_([A-Z]+)_$");
+
+  /** Where per entry progress and parse errors are reported. */
+  static PrintStream log = System.out;
+
   private IndexNgrams() {}
 
   /** Index all text files under a directory. */
   public static void main(String[] args) {
     String usage = "java org.apache.lucene.demo.IndexFiles"
-                 + " [-index INDEX_PATH] [-docs DOCS_PATH]\n\n"
+                 + " [-index INDEX_PATH] [-docs DOCS_PATH] [-upsert] [-publish SPOOL_DIR] [-vocab FILE]"
+                 + " [-profile archive|serving] [-fold] [-direct-merges] [-bulk SEGMENTS [-ram-mb MB]]\n\n"
                  + "This indexes the documents in DOCS_PATH, creating a Lucene index"
                  + "in INDEX_PATH that can be searched with SearchFiles";
     String indexPath = "index";
     String docsPath = null;
+    boolean upsert = false;
+    String publishPath = null;
+    String vocabPath = null;
+    NgramIndexProfile profile = null;
+    boolean fold = false;
+    boolean directMerges = false;
+    int bulkSegments = 0;
+    double ramBufferMB = NgramBulkLoad.DEFAULT_RAM_BUFFER_MB;
     for(int i=0;i<args.length;i++) {
       if ("-index".equals(args[i])) {
         indexPath = args[i+1];
@@ -71,9 +98,40 @@ public class IndexNgrams {
       } else if ("-docs".equals(args[i])) {
         docsPath = args[i+1];
         i++;
+      } else if ("-upsert".equals(args[i])) {
+        upsert = true;
+      } else if ("-publish".equals(args[i])) {
+        publishPath = args[i+1];
+        i++;
+      } else if ("-vocab".equals(args[i])) {
+        vocabPath = args[i+1];
+        i++;
+      } else if ("-profile".equals(args[i])) {
+        profile = NgramIndexProfile.forName(args[i+1]);
+        i++;
+      } else if ("-fold".equals(args[i])) {
+        fold = true;
+      } else if ("-direct-merges".equals(args[i])) {
+        directMerges = true;
+      } else if ("-bulk".equals(args[i])) {
+        bulkSegments = Integer.parseInt(args[i+1]);
+        i++;
+      } else if ("-ram-mb".equals(args[i])) {
+        ramBufferMB = Double.parseDouble(args[i+1]);
+        i++;
       }
     }
 
+    if (upsert && vocabPath != null) {
+      System.err.println("-upsert does not support vocabulary encoded indexes");
+      System.exit(1);
+    }
+    if (bulkSegments > 1 && profile == NgramIndexProfile.ARCHIVE) {
+      System.err.println("archive indexes have a single segment, use -bulk 1");
+      System.exit(1);
+    }
+    NgramBulkLoad bulk = bulkSegments > 0 ? new NgramBulkLoad(bulkSegments, ramBufferMB) : null;
+
     // if (docsPath == null) {
     //   System.err.println("Usage: " + usage);
     //   System.exit(1);
@@ -83,12 +141,45 @@ public class IndexNgrams {
     try {
       System.out.println("Indexing to directory '" + indexPath + "'...");
 
-      Directory dir = FSDirectory.open(new File(indexPath));
+      Directory dir = NgramServer.openDirectory(new File(indexPath), false, directMerges);
+
+      // appended documents must be encoded like the existing ones
+      NgramVocabulary vocabulary = NgramVocabulary.forIndex(new File(indexPath));
+      if (vocabPath != null) {
+        NgramVocabulary given = NgramVocabulary.load(new File(vocabPath));
+        if (vocabulary == null && DirectoryReader.indexExists(dir)) {
+          System.err.println("Index '" + indexPath + "' is not encoded, cannot append with a vocabulary");
+          System.exit(1);
+        } else if (vocabulary != null && !vocabulary.equals(given)) {
+          System.err.println("Index '" + indexPath + "' is encoded with a different vocabulary than '" + vocabPath + "'");
+          System.exit(1);
+        } else if (vocabulary == null) {
+          new File(indexPath).mkdirs();
+          given.save(new File(indexPath, NgramVocabulary.FILE_NAME));
+        }
+        vocabulary = given;
+      }
+      if (vocabulary != null) {
+        if (upsert) {
+          System.err.println("-upsert does not support vocabulary encoded indexes");
+          System.exit(1);
+        }
+        System.out.println("Encoding with " + vocabulary.size() + " terms and tags");
+      }
       // :Post-Release-Update-Version.LUCENE_XY:
       Analyzer analyzer = new KeywordAnalyzer();
       IndexWriterConfig iwc = new IndexWriterConfig(Version.LUCENE_4_10_0, analyzer);
 
       iwc.setOpenMode(OpenMode.CREATE_OR_APPEND);
+      if (publishPath != null) {
+        NgramPublisher.configure(iwc);
+      }
+      if (profile != null) {
+        profile.configure(iwc);
+      }
+      if (bulk != null) {
+        bulk.configure(iwc);
+      }
       
       // Optional: for better indexing performance, if you
       // are indexing many documents, increase the RAM
@@ -98,17 +189,19 @@ public class IndexNgrams {
       // iwc.setRAMBufferSizeMB(256.0);
 
       IndexWriter writer = new IndexWriter(dir, iwc);
+      TrackingIndexWriter tracking = new TrackingIndexWriter(writer);
+      NgramUpserter upserter = upsert ? new NgramUpserter(tracking) : null;
       if (docsPath == null) {
         BufferedReader reader = new BufferedReader(new InputStreamReader(System.in));
         System.out.println("Reading from standard input.");
-        indexStream(writer, reader);
+        indexStream(tracking, reader, upserter, null, vocabulary);
       } else {
         final File docDir = new File(docsPath);
         if (!docDir.exists() || !docDir.canRead()) {
           System.out.println("Document directory '" +docDir.getAbsolutePath()+ "' does not exist or is not readable, please check the path");
           System.exit(1);
         }
-        indexDocs(writer, docDir);
+        indexDocs(tracking, docDir, docDir.isDirectory() ? "" : docDir.getName(), upserter, vocabulary);
       }
 
       // NOTE: if you want to maximize search performance,
@@ -119,6 +212,26 @@ public class IndexNgrams {
       //
       // writer.forceMerge(1);
 
+      if (upserter != null) {
+        upserter.close();
+      }
+      if (fold) {
+        System.out.println("Folded case variants, updated " + NgramCaseFolder.fold(writer) + " aggregates");
+      }
+      if (bulk != null) {
+        bulk.finish(writer);
+      } else if (profile != null) {
+        profile.finish(writer);
+      }
+      if (publishPath != null) {
+        writer.commit();
+        NgramPublisher publisher = new NgramPublisher(writer, new File(publishPath));
+        try {
+          publisher.publish();
+        } finally {
+          publisher.close();
+        }
+      }
       writer.close();
 
       Date end = new Date();
@@ -132,16 +245,54 @@ public class IndexNgrams {
 
   static void indexStream(IndexWriter writer, BufferedReader reader)
     throws IOException {
-    Pattern entry_pattern_1 = Pattern.compile("^(.+?)(?:_([A-Z]+))?$");
-    Pattern entry_pattern_2 = Pattern.compile("^_([A-Z]+)_$");
+    indexStream(new TrackingIndexWriter(writer), reader, null, null, null);
+  }
 
+  /**
+   * Indexes raw ngram lines from <code>reader</code>.
+   * <p>
+   * With an <code>upserter</code>, the stream is one or more ingest units:
+   * <code>unit</code> names the first one and every {@link #UNIT_MARKER}
+   * line starts the next. The first and last entry of each unit may be
+   * split across units, so they are handed to the upserter to be merged
+   * with the existing document on the exact key. Interior entries are
+   * appended. Units that are already part of the index are skipped and
+   * each finished unit is committed.
+   * <p>
+   * With a <code>vocabulary</code>, documents are encoded, see
+   * {@link #buildDocument}.
+   */
+  static void indexStream(TrackingIndexWriter writer, BufferedReader reader,
+                          NgramUpserter upserter, String unit, NgramVocabulary vocabulary)
+    throws IOException {
     String line;
     String prev_entry = "";
     String[] prev_term  = null;
     String[] prev_pos   = null;
     long[] tf = new long[209];
     long[] df = new long[209];
+    boolean first = true;
+    boolean skipping = upserter != null && upserter.isDone(unit);
     while ((line = reader.readLine()) != null) {
+      if (line.startsWith(UNIT_MARKER)) {
+        if (!prev_entry.equals("")) {
+          addEntry(writer, upserter, vocabulary, unit, true, prev_entry, prev_term, prev_pos, tf);
+        }
+        if (upserter != null && !skipping) {
+          upserter.endUnit(unit);
+        }
+        unit = line.substring(UNIT_MARKER.length()).trim();
+        skipping = upserter != null && upserter.isDone(unit);
+        if (skipping) {
+          log.println("skipping unit " + unit);
+        }
+        prev_entry = "";
+        first = true;
+        Arrays.fill(tf, 0);
+        Arrays.fill(df, 0);
+        continue;
+      }
+      if (skipping) continue;
       try {
         // System.out.println(line);
         String[] tokens = line.split("\\s+");
@@ -152,12 +303,12 @@ public class IndexNgrams {
 
         String entry = "";
         for (int i = 0; i < tokens.length - 3; i++) {
-          Matcher match = entry_pattern_2.matcher(tokens[i]);
+          Matcher match = ENTRY_PATTERN_2.matcher(tokens[i]);
           if (match.matches()) {
             term[i] = "";
             pos[i]  = match.group(1);
           } else {
-            match = entry_pattern_1.matcher(tokens[i]);
+            match = ENTRY_PATTERN_1.matcher(tokens[i]);
             if (match.matches()) {
               term[i] = match.group(1);
               pos[i]  = match.group(2);
@@ -181,39 +332,12 @@ public class IndexNgrams {
 
         if (year < 1800) continue;
 
-        // On new entry or last line: flush buffer to index
-        // if (!entry.equals(prev_entry) || !reader.ready()) {
+        // On new entry: flush buffer to index
         if (!entry.equals(prev_entry)) {
           // System.out.println("'" + entry + "' != '" + prev_entry + "'");
           if (!prev_entry.equals("")) {
-            Document doc = new Document();
-
-            for (int i = 0; i < prev_term.length; i++) {
-              doc.add(new TextField("term_" + i, prev_term[i], Field.Store.YES));
-            }
-            for (int y = 1800; y <= 2008; y++) {
-              long tf_year = tf[y - 1800];
-              long df_year = df[y - 1800];
-              if (tf_year != 0) {
-                doc.add(new StoredField("tf_" + y, tf_year));
-                // System.out.println("" + y + ": " + tf_year);
-              }
-              // if (df_year != 0) {
-              //   doc.add(new StoredField("df_" + y, df_year));
-              // }
-            }
-            for (int i = 0; i < prev_pos.length; i++) {
-              if (prev_pos[i] != null) {
-                doc.add(new StringField("pos_" + i, prev_pos[i], Field.Store.YES));
-              }
-            }
-
-            System.out.print("adding");
-            for (int i = 0; i < prev_term.length; i++) {
-              System.out.print(" " + prev_term[i] + ( prev_pos[i] != null ? ("\\" + prev_pos[i]) : ""));
-            }
-            System.out.println();
-            writer.addDocument(doc);
+            addEntry(writer, upserter, vocabulary, unit, first, prev_entry, prev_term, prev_pos, tf);
+            first = false;
           }
 
           Arrays.fill(tf, 0);
@@ -229,11 +353,75 @@ public class IndexNgrams {
         prev_pos   = pos;
 
       } catch (Exception e) { // Do this better!
-        System.out.println("Failed to parse line: '" + line + "'");
-        System.out.println("Reason:");
-        System.out.println(e.toString());
+        log.println("Failed to parse line: '" + line + "'");
+        log.println("Reason:");
+        log.println(e.toString());
+      }
+    }
+
+    // Last entry of the stream
+    if (!skipping && !prev_entry.equals("")) {
+      addEntry(writer, upserter, vocabulary, unit, true, prev_entry, prev_term, prev_pos, tf);
+    }
+    if (upserter != null && !skipping) {
+      upserter.endUnit(unit);
+    }
+  }
+
+  private static void addEntry(TrackingIndexWriter writer, NgramUpserter upserter, NgramVocabulary vocabulary,
+                               String unit, boolean boundary, String entry, String[] term, String[] pos, long[] tf)
+    throws IOException {
+    log.print(upserter != null && boundary ? "buffering" : "adding");
+    for (int i = 0; i < term.length; i++) {
+      log.print(" " + term[i] + ( pos[i] != null ? ("\\" + pos[i]) : ""));
+    }
+    log.println();
+    if (upserter != null && boundary) {
+      upserter.buffer(entry, term, pos, tf);
+    } else if (upserter != null) {
+      upserter.add(unit, buildDocument(entry, term, pos, tf, vocabulary));
+    } else {
+      writer.addDocument(buildDocument(entry, term, pos, tf, vocabulary));
+    }
+  }
+
+  /**
+   * Builds the document of one ngram from its parsed entry and timeline,
+   * encoded with <code>vocabulary</code> if it is not null and it has
+   * all tokens of the entry.
+   */
+  static Document buildDocument(String entry, String[] term, String[] pos, long[] tf,
+                                NgramVocabulary vocabulary)
+    throws IOException {
+    Document doc = new Document();
+
+    boolean encoded = vocabulary != null && vocabulary.addTo(doc, term, pos);
+    if (vocabulary != null && !encoded) {
+      log.println("not in vocabulary, indexing as text: " + entry);
+    }
+    if (!encoded) {
+      doc.add(new StringField(NgramFields.KEY, entry, Field.Store.YES));
+      for (int i = 0; i < term.length; i++) {
+        doc.add(new TextField("term_" + i, term[i], Field.Store.YES));
+      }
+      NgramSubsequences.addTo(doc, term);
+    }
+    for (int y = 1800; y <= 2008; y++) {
+      long tf_year = tf[y - 1800];
+      if (tf_year != 0) {
+        doc.add(new StoredField("tf_" + y, tf_year));
+        // System.out.println("" + y + ": " + tf_year);
+      }
+    }
+    NgramTimeline.addTo(doc, tf);
+    NgramCaseFolder.addTo(doc, entry);
+    for (int i = 0; i < pos.length && !encoded; i++) {
+      if (pos[i] != null) {
+        doc.add(new StringField("pos_" + i, pos[i], Field.Store.YES));
       }
     }
+    NgramPosFacets.addTo(doc, pos);
+    return NgramPosFacets.build(doc);
   }
 
   /**
@@ -249,10 +437,15 @@ public class IndexNgrams {
    *  
    * @param writer Writer to the index where the given file/dir info will be stored
    * @param file The file to index, or the directory to recurse into to find files to index
+   * @param unit Path of <code>file</code> relative to the docs root, with <code>/</code> separators;
+   *             a file is ingested as this unit, like by {@link NgramDaemon}, so its name does not
+   *             depend on how the root was given or on the tool
+   * @param upserter Merges entries split across files, or null to only append
+   * @param vocabulary Encodes the documents, or null to index text
    * @throws IOException If there is a low-level I/O error
    */
-  static void indexDocs(IndexWriter writer, File file)
-    throws IOException {
+  static void indexDocs(TrackingIndexWriter writer, File file, String unit, NgramUpserter upserter,
+                        NgramVocabulary vocabulary) throws IOException {
     // do not try to index files that cannot be read
     if (file.canRead()) {
       if (file.isDirectory()) {
@@ -260,7 +453,8 @@ public class IndexNgrams {
         // an IO error could occur
         if (files != null) {
           for (int i = 0; i < files.length; i++) {
-            indexDocs(writer, new File(file, files[i]));
+            indexDocs(writer, new File(file, files[i]), unit.isEmpty() ? files[i] : unit + "/" + files[i],
+                      upserter, vocabulary);
           }
         }
       } else {
@@ -276,7 +470,7 @@ public class IndexNgrams {
 
         BufferedReader reader = new BufferedReader(new InputStreamReader(fis, StandardCharsets.UTF_8));
 
-        indexStream(writer, reader);
+        indexStream(writer, reader, upserter, unit, vocabulary);
 
         reader.close();
       }
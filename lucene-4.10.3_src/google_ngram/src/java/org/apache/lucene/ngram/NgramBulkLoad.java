@@ -0,0 +1,171 @@
+package org.apache.lucene.ngram;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.lucene.index.ConcurrentMergeScheduler;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.MergePolicy;
+import org.apache.lucene.index.MergeScheduler;
+import org.apache.lucene.index.MergeTrigger;
+import org.apache.lucene.index.NoMergePolicy;
+import org.apache.lucene.index.SegmentCommitInfo;
+import org.apache.lucene.index.SegmentInfos;
+
+/**
+ * Bulk load mode for building an index that is not searched until it
+ * is complete. The usual merge policy merges while documents are added,
+ * rewriting the same bytes once per merge level, to keep intermediate
+ * states searchable.
+ * <p>
+ * While loading, the writer flushes large segments and does not merge
+ * ({@link NoMergePolicy}); flushed segments are not packed into compound
+ * files, as they are merged anyway. {@link #finish} then splits the
+ * segments into as many runs of adjacent segments of about equal size
+ * as segments are wanted, and merges all runs at once, each in its own
+ * merge thread, so every byte is rewritten a single time. Runs of one
+ * segment without deletions are kept as they are. Merged segments use
+ * compound files like the merge policy configured before loading.
+ */
+public class NgramBulkLoad {
+
+  /** Default size of the indexing buffer in MB. */
+  public static final double DEFAULT_RAM_BUFFER_MB = 512;
+
+  private final int segments;
+  private final double ramBufferMB;
+  private MergePolicy mergePolicy;
+
+  /**
+   * Loads into an index of <code>segments</code> segments, flushing every
+   * <code>ramBufferMB</code> of buffered documents.
+   */
+  public NgramBulkLoad(int segments, double ramBufferMB) {
+    if (segments < 1) {
+      throw new IllegalArgumentException("segments must be at least 1, got " + segments);
+    }
+    this.segments = segments;
+    this.ramBufferMB = ramBufferMB;
+  }
+
+  /**
+   * Turns off merging and sets the buffer on <code>iwc</code>, after the
+   * merge policy is configured, e.g. by an {@link NgramIndexProfile}.
+   */
+  public IndexWriterConfig configure(IndexWriterConfig iwc) {
+    mergePolicy = iwc.getMergePolicy();
+    return iwc.setMergePolicy(NoMergePolicy.INSTANCE)
+      .setUseCompoundFile(false)
+      .setMaxBufferedDocs(IndexWriterConfig.DISABLE_AUTO_FLUSH)
+      .setRAMBufferSizeMB(ramBufferMB);
+  }
+
+  /**
+   * Merges the segments of <code>writer</code>, configured with
+   * {@link #configure}, down to the wanted number. Merging stays off,
+   * so the segments are kept as they are when the writer is closed.
+   */
+  public void finish(IndexWriter writer) throws IOException {
+    MergeScheduler scheduler = writer.getConfig().getMergeScheduler();
+    int maxThreads = 0;
+    int maxMerges = 0;
+    if (scheduler instanceof ConcurrentMergeScheduler) {
+      ConcurrentMergeScheduler cms = (ConcurrentMergeScheduler) scheduler;
+      maxThreads = cms.getMaxThreadCount();
+      maxMerges = cms.getMaxMergeCount();
+      int threads = Math.max(maxThreads, Math.min(segments, Runtime.getRuntime().availableProcessors()));
+      cms.setMaxMergesAndThreads(Math.max(maxMerges, segments), threads);
+    }
+    writer.getConfig().setMergePolicy(new RunsMergePolicy(mergePolicy));
+    try {
+      writer.forceMerge(segments);
+    } finally {
+      writer.getConfig().setMergePolicy(NoMergePolicy.INSTANCE);
+      if (maxThreads > 0) {
+        ((ConcurrentMergeScheduler) scheduler).setMaxMergesAndThreads(maxMerges, maxThreads);
+      }
+    }
+  }
+
+  /** Forced merges of runs of adjacent segments of about equal size, no other merges. */
+  private static final class RunsMergePolicy extends MergePolicy {
+
+    RunsMergePolicy(MergePolicy compound) {
+      setNoCFSRatio(compound.getNoCFSRatio());
+      setMaxCFSSegmentSizeMB(compound.getMaxCFSSegmentSizeMB());
+    }
+
+    @Override
+    public MergeSpecification findMerges(MergeTrigger mergeTrigger, SegmentInfos segmentInfos, IndexWriter writer) {
+      return null;
+    }
+
+    @Override
+    public MergeSpecification findForcedMerges(SegmentInfos segmentInfos, int maxSegmentCount,
+                                               Map<SegmentCommitInfo,Boolean> segmentsToMerge, IndexWriter writer)
+      throws IOException {
+      // all runs are merged at once, the merged segments are final
+      if (!writer.getMergingSegments().isEmpty()) return null;
+      List<SegmentCommitInfo> eligible = new ArrayList<SegmentCommitInfo>();
+      long total = 0;
+      for (SegmentCommitInfo info : segmentInfos) {
+        if (segmentsToMerge.containsKey(info)) {
+          eligible.add(info);
+          total += size(info, writer);
+        }
+      }
+      if (eligible.size() <= maxSegmentCount) return null;
+
+      MergeSpecification spec = new MergeSpecification();
+      List<SegmentCommitInfo> run = new ArrayList<SegmentCommitInfo>();
+      long sum = 0;
+      int runs = 0;
+      for (int i = 0; i < eligible.size(); i++) {
+        SegmentCommitInfo info = eligible.get(i);
+        run.add(info);
+        sum += size(info, writer);
+        // close the run at its share of the total, or when only one segment per remaining run is left
+        int remaining = maxSegmentCount - runs - 1;
+        if (i == eligible.size() - 1 || (remaining > 0
+            && (sum >= (runs + 1) * (double) total / maxSegmentCount || eligible.size() - i - 1 == remaining))) {
+          if (run.size() > 1 || !isMerged(segmentInfos, info, writer)) {
+            spec.add(new OneMerge(run));
+          }
+          run = new ArrayList<SegmentCommitInfo>();
+          runs++;
+        }
+      }
+      return spec.merges.isEmpty() ? null : spec;
+    }
+
+    @Override
+    public MergeSpecification findForcedDeletesMerges(SegmentInfos segmentInfos, IndexWriter writer) {
+      return null;
+    }
+
+    @Override
+    public String toString() {
+      return "RunsMergePolicy";
+    }
+  }
+}
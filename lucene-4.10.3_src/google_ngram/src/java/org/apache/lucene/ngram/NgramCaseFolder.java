@@ -0,0 +1,329 @@
+package org.apache.lucene.ngram;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.TreeSet;
+
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.document.BinaryDocValuesField;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.DocsEnum;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.IndexWriterConfig.OpenMode;
+import org.apache.lucene.index.MultiDocValues;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.Version;
+
+/**
+ * Case-insensitive aggregates of ngram entries, so that
+ * <code>Apple</code>, <code>apple</code> and <code>APPLE</code> are
+ * looked up as one entry without summing them at query time.
+ * <p>
+ * Every document carries its lower cased entry in
+ * {@link NgramFields#FOLDED_KEY}. {@link #fold} walks the folded keys in
+ * term order and writes the summed timeline of every key with more than
+ * one case variant into the {@link NgramFields#FOLDED_TIMELINE} column of
+ * one of its documents, with {@link IndexWriter#updateBinaryDocValue}.
+ * A case-insensitive {@link NgramLookup#lookupKey lookup} is then one
+ * term lookup and one timeline read, whatever the number of variants.
+ * Keys without an aggregate are summed from their variants instead.
+ * <p>
+ * An aggregate covers the documents it was computed from, so the index
+ * must be folded again after entries are added or updated. Folding
+ * only rewrites the aggregates that changed, {@link IndexNgrams} does it
+ * at the end of a run with <code>-fold</code>. The {@link NgramUpserter}
+ * of a folded index folds the keys of every unit it ingests, so upserts
+ * and the {@link NgramDaemon} keep the aggregates current.
+ */
+public final class NgramCaseFolder {
+
+  /**
+   * {@link NgramFields#SCHEMA} of the placeholder document that declares the
+   * aggregate column, doc values can only be updated for fields the writer
+   * already knows. It is deleted right away, so it is never seen by readers.
+   */
+  static final String SCHEMA_MARKER = "folded";
+
+  private static final BytesRef NO_AGGREGATE = new BytesRef();
+
+  private NgramCaseFolder() {}
+
+  /** Fold the case variants of an existing index. */
+  public static void main(String[] args) {
+    String usage = "java org.apache.lucene.ngram.NgramCaseFolder [-index INDEX_PATH]\n\n"
+                 + "This writes the case-insensitive aggregate timelines of the index in INDEX_PATH";
+    String indexPath = "index";
+    for(int i=0;i<args.length;i++) {
+      if ("-index".equals(args[i])) {
+        indexPath = args[i+1];
+        i++;
+      } else if ("-h".equals(args[i]) || "-help".equals(args[i])) {
+        System.out.println(usage);
+        System.exit(0);
+      }
+    }
+
+    Date start = new Date();
+    try {
+      System.out.println("Folding case variants in '" + indexPath + "'...");
+
+      Directory dir = FSDirectory.open(new File(indexPath));
+      // :Post-Release-Update-Version.LUCENE_XY:
+      IndexWriterConfig iwc = new IndexWriterConfig(Version.LUCENE_4_10_0, new KeywordAnalyzer());
+      iwc.setOpenMode(OpenMode.APPEND);
+
+      IndexWriter writer = new IndexWriter(dir, iwc);
+      try {
+        System.out.println("Updated " + fold(writer) + " aggregates");
+        writer.commit();
+      } finally {
+        writer.close();
+      }
+
+      Date end = new Date();
+      System.out.println(end.getTime() - start.getTime() + " total milliseconds");
+
+    } catch (IOException e) {
+      System.out.println(" caught a " + e.getClass() +
+       "\n with message: " + e.getMessage());
+    }
+  }
+
+  /** The case-insensitive form of a raw entry. */
+  public static String fold(String entry) {
+    return entry.toLowerCase(Locale.ROOT);
+  }
+
+  /** Adds the folded key of <code>entry</code> to <code>doc</code>. */
+  public static void addTo(Document doc, String entry) {
+    doc.add(new StringField(NgramFields.FOLDED_KEY, fold(entry), Field.Store.NO));
+  }
+
+  /**
+   * Recomputes the aggregate timelines of all folded keys with more than
+   * one case variant and clears the ones of keys left with a single
+   * variant. Does not commit. Returns the number of documents whose
+   * aggregate was written.
+   */
+  public static int fold(IndexWriter writer) throws IOException {
+    declareField(writer);
+    DirectoryReader reader = DirectoryReader.open(writer, true);
+    try {
+      return fold(writer, reader);
+    } finally {
+      reader.close();
+    }
+  }
+
+  /**
+   * Like {@link #fold(IndexWriter)}, but only for the folded keys in
+   * <code>keys</code>, e.g. the ones of entries that were just added or
+   * updated. The index must have been folded before.
+   */
+  public static int fold(IndexWriter writer, Collection<String> keys) throws IOException {
+    DirectoryReader reader = DirectoryReader.open(writer, true);
+    try {
+      Terms terms = MultiFields.getTerms(reader, NgramFields.FOLDED_KEY);
+      if (terms == null) {
+        return 0;
+      }
+      Folder folder = new Folder(writer, reader);
+      TermsEnum te = terms.iterator(null);
+      int updated = 0;
+      for (String key : new TreeSet<String>(keys)) {
+        if (te.seekExact(new BytesRef(key))) {
+          updated += folder.fold(te);
+        }
+      }
+      return updated;
+    } finally {
+      reader.close();
+    }
+  }
+
+  private static int fold(IndexWriter writer, DirectoryReader reader) throws IOException {
+    Terms terms = MultiFields.getTerms(reader, NgramFields.FOLDED_KEY);
+    if (terms == null) {
+      return 0;
+    }
+    Folder folder = new Folder(writer, reader);
+    TermsEnum te = terms.iterator(null);
+    int updated = 0;
+    while (te.next() != null) {
+      updated += folder.fold(te);
+    }
+    return updated;
+  }
+
+  /** Rewrites the aggregates of single folded keys of one reader. */
+  private static final class Folder {
+    private final IndexWriter writer;
+    private final IndexSearcher searcher;
+    private final Bits liveDocs;
+    private final BinaryDocValues aggregates;
+    private final long[] tf = new long[NgramFields.NUM_YEARS];
+    private final long[] sum = new long[NgramFields.NUM_YEARS];
+    private int[] variants = new int[8];
+    private DocsEnum docs;
+
+    Folder(IndexWriter writer, DirectoryReader reader) throws IOException {
+      this.writer = writer;
+      this.searcher = new IndexSearcher(reader);
+      this.liveDocs = MultiFields.getLiveDocs(reader);
+      this.aggregates = MultiDocValues.getBinaryValues(reader, NgramFields.FOLDED_TIMELINE);
+    }
+
+    /**
+     * Recomputes the aggregate of the current term of <code>te</code>.
+     * Returns 1 if it was written, 0 if it did not change.
+     */
+    int fold(TermsEnum te) throws IOException {
+      // deleted documents are counted too, so stale aggregates are found
+      if (te.docFreq() < 2) return 0;
+      docs = te.docs(liveDocs, docs, DocsEnum.FLAG_NONE);
+      int n = 0;
+      int target = -1;
+      int doc;
+      while ((doc = docs.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+        variants = ArrayUtil.grow(variants, n + 1);
+        variants[n++] = doc;
+        // keep the aggregate where it is, so merges do not move it around
+        if (target < 0 && hasAggregate(aggregates, doc)) {
+          target = doc;
+        }
+      }
+      if (n > 1 && target < 0) {
+        target = variants[0];
+      }
+
+      BytesRef aggregate = null;
+      if (n > 1) {
+        Arrays.fill(sum, 0);
+        for (int i = 0; i < n; i++) {
+          NgramLookup.readTimeline(searcher, variants[i], tf);
+          for (int y = 0; y < NgramFields.NUM_YEARS; y++) {
+            sum[y] += tf[y];
+          }
+        }
+        aggregate = NgramTimeline.encode(sum);
+      }
+      int updated = 0;
+      for (int i = 0; i < n; i++) {
+        doc = variants[i];
+        if (doc == target) {
+          if (!aggregate.bytesEquals(aggregates != null ? aggregates.get(doc) : NO_AGGREGATE)) {
+            writer.updateBinaryDocValue(keyTerm(searcher, doc), NgramFields.FOLDED_TIMELINE, aggregate);
+            updated++;
+          }
+        } else if (hasAggregate(aggregates, doc)) {
+          writer.updateBinaryDocValue(keyTerm(searcher, doc), NgramFields.FOLDED_TIMELINE, NO_AGGREGATE);
+        }
+      }
+      return updated;
+    }
+  }
+
+  private static boolean hasAggregate(BinaryDocValues aggregates, int doc) {
+    return aggregates != null && aggregates.get(doc).length > 0;
+  }
+
+  /** The term addressing <code>doc</code> alone, its text or packed key. */
+  private static Term keyTerm(IndexSearcher searcher, int doc) throws IOException {
+    Document stored = searcher.doc(doc);
+    String key = stored.get(NgramFields.KEY);
+    if (key != null) {
+      return new Term(NgramFields.KEY, key);
+    }
+    BytesRef packed = stored.getBinaryValue(NgramFields.KEY);
+    if (packed == null) {
+      throw new IllegalStateException("document " + doc + " has a folded key but no key");
+    }
+    return new Term(NgramFields.KEY, BytesRef.deepCopyOf(packed));
+  }
+
+  /**
+   * Declares the aggregate column if the index does not have it yet,
+   * with a placeholder document that is deleted again.
+   */
+  private static void declareField(IndexWriter writer) throws IOException {
+    FieldInfo info;
+    DirectoryReader reader = DirectoryReader.open(writer, false);
+    try {
+      info = MultiFields.getMergedFieldInfos(reader).fieldInfo(NgramFields.FOLDED_TIMELINE);
+    } finally {
+      reader.close();
+    }
+    if (info == null) {
+      Document doc = new Document();
+      doc.add(new StringField(NgramFields.SCHEMA, SCHEMA_MARKER, Field.Store.NO));
+      doc.add(new BinaryDocValuesField(NgramFields.FOLDED_TIMELINE, NO_AGGREGATE));
+      writer.addDocument(doc);
+    } else if (info.getDocValuesType() != FieldInfo.DocValuesType.BINARY) {
+      throw new IllegalArgumentException("Field '" + NgramFields.FOLDED_TIMELINE + "' exists but is not a binary doc values field");
+    }
+    writer.deleteDocuments(new Term(NgramFields.SCHEMA, SCHEMA_MARKER));
+  }
+
+  /**
+   * Reads the aggregate of the first of <code>hits</code> that has one,
+   * values <code>from</code> to <code>to</code> at <code>resolution</code>,
+   * into the start of <code>tf</code>. Returns false if none has one.
+   */
+  static boolean readAggregate(IndexSearcher searcher, ScoreDoc[] hits, long[] tf, int resolution, int from, int to)
+    throws IOException {
+    List<AtomicReaderContext> leaves = searcher.getIndexReader().leaves();
+    for (ScoreDoc hit : hits) {
+      AtomicReaderContext leaf = leaves.get(ReaderUtil.subIndex(hit.doc, leaves));
+      BinaryDocValues aggregates = leaf.reader().getBinaryDocValues(NgramFields.FOLDED_TIMELINE);
+      if (aggregates == null) continue;
+      BytesRef bytes = aggregates.get(hit.doc - leaf.docBase);
+      if (bytes.length > 0) {
+        NgramTimeline.decode(bytes, tf, resolution, from, to,
+                             resolution > 1 ? new long[NgramFields.NUM_YEARS] : null);
+        return true;
+      }
+    }
+    return false;
+  }
+}
@@ -0,0 +1,479 @@
+package org.apache.lucene.ngram;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.DocsEnum;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Association measures of word pairs, per year or period, from a
+ * bigram index and the unigram index of the same corpus.
+ * <p>
+ * The bigrams are streamed in {@link NgramFields#KEY} order and handled
+ * in batches. The marginal counts of a batch are resolved with one pass
+ * of seeks over the unigram keys in term order, then the bigram
+ * timelines of the batch are read and scored on a thread pool. Only the
+ * best pairs per period are kept, see {@link #setTop}, so memory does
+ * not grow with the corpus.
+ * <p>
+ * The corpus size of a period is the sum of the unigrams without a part
+ * of speech, tagged unigrams and placeholders count the same tokens
+ * again. Pairs with tagged tokens, e.g. <code>cat_NOUN sat</code>, are
+ * scored against the marginals of the tagged unigrams.
+ */
+public class NgramCollocations implements Closeable {
+
+  /** An association measure of a pair from its counts in one period. */
+  public enum Measure {
+    /** Pointwise mutual information in bits. */
+    PMI {
+      @Override
+      public double score(double c12, double c1, double c2, double n) {
+        return Math.log(c12 * n / (c1 * c2)) / Math.log(2);
+      }
+    },
+    /** Dunning's log-likelihood ratio, G squared. */
+    LLR {
+      @Override
+      public double score(double c12, double c1, double c2, double n) {
+        // counts of the two ngram orders are not exactly consistent
+        double k11 = c12;
+        double k12 = Math.max(0, c1 - c12);
+        double k21 = Math.max(0, c2 - c12);
+        double k22 = Math.max(0, n - c1 - c2 + c12);
+        return 2 * (xlogx(k11) + xlogx(k12) + xlogx(k21) + xlogx(k22)
+                    - xlogx(k11 + k12) - xlogx(k21 + k22) - xlogx(k11 + k21) - xlogx(k12 + k22)
+                    + xlogx(k11 + k12 + k21 + k22));
+      }
+    },
+    /** t-score of the observed against the expected count. */
+    TSCORE {
+      @Override
+      public double score(double c12, double c1, double c2, double n) {
+        return (c12 - c1 * c2 / n) / Math.sqrt(c12);
+      }
+    };
+
+    /**
+     * Scores a pair seen <code>c12</code> times whose words are seen
+     * <code>c1</code> and <code>c2</code> times among <code>n</code> tokens,
+     * all counts positive.
+     */
+    public abstract double score(double c12, double c1, double c2, double n);
+
+    /** The measure called <code>name</code>, e.g. <code>pmi</code>. */
+    public static Measure forName(String name) {
+      for (Measure measure : values()) {
+        if (measure.name().equalsIgnoreCase(name)) return measure;
+      }
+      throw new IllegalArgumentException("unknown measure '" + name + "', expected pmi, llr or tscore");
+    }
+
+    private static double xlogx(double x) {
+      return x > 0 ? x * Math.log(x) : 0;
+    }
+  }
+
+  /** A scored pair in one period. */
+  public static final class Collocation implements Comparable<Collocation> {
+    public final String bigram;
+    public final double score;
+    public final long count;
+
+    Collocation(String bigram, double score, long count) {
+      this.bigram = bigram;
+      this.score = score;
+      this.count = count;
+    }
+
+    @Override
+    public int compareTo(Collocation other) {
+      int cmp = Double.compare(score, other.score);
+      return cmp != 0 ? cmp : other.bigram.compareTo(bigram);
+    }
+  }
+
+  /** Number of bigrams scored together. */
+  private static final int BATCH_SIZE = 1 << 14;
+
+  private final IndexSearcher unigrams;
+  private final IndexSearcher bigrams;
+  private final NgramVocabulary unigramVocabulary;
+  private final NgramVocabulary bigramVocabulary;
+  private final List<Closeable> resources = new ArrayList<Closeable>();
+
+  private Measure measure = Measure.LLR;
+  private int resolution = 10;
+  private int fromYear = NgramFields.FIRST_YEAR;
+  private int toYear = NgramFields.LAST_YEAR;
+  private long minCount = 10;
+  private int top = 100;
+  private int threads = Runtime.getRuntime().availableProcessors();
+
+  /** Opens the unigram and bigram indexes, either may be sharded. */
+  public NgramCollocations(File unigramIndex, File bigramIndex) throws IOException {
+    this.unigrams = open(unigramIndex);
+    this.bigrams = open(bigramIndex);
+    this.unigramVocabulary = NgramVocabulary.forIndex(unigramIndex);
+    this.bigramVocabulary = NgramVocabulary.forIndex(bigramIndex);
+  }
+
+  private IndexSearcher open(File index) throws IOException {
+    if (NgramShards.isSharded(index)) {
+      NgramShards shards = NgramShards.open(index);
+      resources.add(shards);
+      return shards.all();
+    }
+    IndexReader reader = DirectoryReader.open(FSDirectory.open(index));
+    resources.add(reader);
+    return new IndexSearcher(reader);
+  }
+
+  public void setMeasure(Measure measure) {
+    this.measure = measure;
+  }
+
+  /** Scores periods of <code>resolution</code> years, one for single years. */
+  public void setResolution(int resolution) {
+    NgramTimeline.length(resolution);
+    this.resolution = resolution;
+  }
+
+  /** Restricts the periods to those covering <code>fromYear</code> to <code>toYear</code>. */
+  public void setYears(int fromYear, int toYear) {
+    if (fromYear > toYear) {
+      throw new IllegalArgumentException("empty year range " + fromYear + "-" + toYear);
+    }
+    this.fromYear = fromYear;
+    this.toYear = toYear;
+  }
+
+  /** Pairs seen fewer times in a period are not scored for it. */
+  public void setMinCount(long minCount) {
+    this.minCount = Math.max(1, minCount);
+  }
+
+  /** Number of pairs kept per period. */
+  public void setTop(int top) {
+    this.top = top;
+  }
+
+  public void setThreads(int threads) {
+    this.threads = threads;
+  }
+
+  /** Number of periods, the values of a timeline slice. */
+  public int periods() {
+    return NgramLookup.sliceLength(resolution, fromYear, toYear);
+  }
+
+  /** First year of period <code>i</code>. */
+  public int periodStart(int i) {
+    return NgramFields.FIRST_YEAR + (NgramTimeline.index(fromYear, resolution) + i) * resolution;
+  }
+
+  /** Last year of period <code>i</code>. */
+  public int periodEnd(int i) {
+    return Math.min(periodStart(i) + resolution - 1, NgramFields.LAST_YEAR);
+  }
+
+  /** The best pairs of every period, best first. */
+  public List<List<Collocation>> run() throws IOException {
+    int periods = periods();
+    long[] totals = NgramLookup.totals(unigrams, resolution, fromYear, toYear);
+    List<PriorityQueue<Collocation>> best = new ArrayList<PriorityQueue<Collocation>>(periods);
+    for (int i = 0; i < periods; i++) {
+      best.add(new PriorityQueue<Collocation>(top + 1));
+    }
+
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    try {
+      Terms terms = MultiFields.getTerms(bigrams.getIndexReader(), NgramFields.KEY);
+      if (terms != null) {
+        Bits liveDocs = MultiFields.getLiveDocs(bigrams.getIndexReader());
+        TermsEnum te = terms.iterator(null);
+        DocsEnum docs = null;
+        Batch batch = new Batch();
+        long scanned = 0;
+        while (te.next() != null) {
+          docs = te.docs(liveDocs, docs, DocsEnum.FLAG_NONE);
+          int doc = docs.nextDoc();
+          if (doc == DocIdSetIterator.NO_MORE_DOCS) continue;
+          String key = bigramVocabulary != null
+            ? NgramLookup.key(bigrams, doc, bigramVocabulary) : te.term().utf8ToString();
+          String[] words = key.split(" ");
+          if (words.length != 2) continue;
+          batch.add(doc, key, words);
+          if (batch.size == BATCH_SIZE) {
+            score(batch, totals, best, pool);
+            scanned += batch.size;
+            batch = new Batch();
+            System.err.println("scored " + scanned + " bigrams, at '" + key + "'");
+          }
+        }
+        score(batch, totals, best, pool);
+      }
+    } finally {
+      pool.shutdown();
+    }
+
+    List<List<Collocation>> result = new ArrayList<List<Collocation>>(periods);
+    for (PriorityQueue<Collocation> queue : best) {
+      List<Collocation> list = new ArrayList<Collocation>(queue);
+      Collections.sort(list, Collections.reverseOrder());
+      result.add(list);
+    }
+    return result;
+  }
+
+  /** Resolves the marginals of <code>batch</code>, scores it and keeps the best pairs. */
+  private void score(final Batch batch, final long[] totals, List<PriorityQueue<Collocation>> best,
+                     ExecutorService pool) throws IOException {
+    if (batch.size == 0) return;
+    final Map<String,long[]> marginals = marginals(batch);
+    final int periods = periods();
+    final double[][] scores = new double[batch.size][];
+    final long[][] counts = new long[batch.size][];
+
+    List<Future<?>> tasks = new ArrayList<Future<?>>();
+    int chunk = (batch.size + threads - 1) / threads;
+    for (int start = 0; start < batch.size; start += chunk) {
+      final int first = start;
+      final int last = Math.min(start + chunk, batch.size);
+      tasks.add(pool.submit(new Callable<Void>() {
+        @Override
+        public Void call() throws IOException {
+          long[] tf = new long[periods];
+          for (int b = first; b < last; b++) {
+            long[] c1 = marginals.get(batch.words[b][0]);
+            long[] c2 = marginals.get(batch.words[b][1]);
+            if (c1 == null || c2 == null) continue;
+            NgramLookup.readTimeline(bigrams, batch.docs[b], tf, resolution, fromYear, toYear);
+            double[] score = null;
+            for (int i = 0; i < periods; i++) {
+              if (tf[i] < minCount || c1[i] == 0 || c2[i] == 0 || totals[i] == 0) continue;
+              if (score == null) {
+                score = new double[periods];
+                Arrays.fill(score, Double.NaN);
+              }
+              score[i] = measure.score(tf[i], c1[i], c2[i], totals[i]);
+            }
+            if (score != null) {
+              scores[b] = score;
+              counts[b] = tf.clone();
+            }
+          }
+          return null;
+        }
+      }));
+    }
+    try {
+      for (Future<?> task : tasks) {
+        task.get();
+      }
+    } catch (InterruptedException e) {
+      throw new IOException("interrupted while scoring", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new RuntimeException(e.getCause());
+    }
+
+    for (int b = 0; b < batch.size; b++) {
+      if (scores[b] == null) continue;
+      for (int i = 0; i < periods; i++) {
+        double score = scores[b][i];
+        if (Double.isNaN(score)) continue;
+        PriorityQueue<Collocation> queue = best.get(i);
+        if (queue.size() < top || score > queue.peek().score) {
+          queue.add(new Collocation(batch.keys[b], score, counts[b][i]));
+          if (queue.size() > top) {
+            queue.poll();
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Timelines of the words of <code>batch</code> in the unigram index,
+   * seeking the keys in term order so that neighbouring words share
+   * the terms blocks they are read from.
+   */
+  private Map<String,long[]> marginals(Batch batch) throws IOException {
+    TreeMap<BytesRef,String> keys = new TreeMap<BytesRef,String>();
+    for (int b = 0; b < batch.size; b++) {
+      for (String word : batch.words[b]) {
+        BytesRef key = unigramVocabulary != null ? unigramVocabulary.encode(word) : null;
+        keys.put(key != null ? key : new BytesRef(word), word);
+      }
+    }
+
+    Map<String,long[]> marginals = new HashMap<String,long[]>();
+    Terms terms = MultiFields.getTerms(unigrams.getIndexReader(), NgramFields.KEY);
+    if (terms == null) return marginals;
+    Bits liveDocs = MultiFields.getLiveDocs(unigrams.getIndexReader());
+    TermsEnum te = terms.iterator(null);
+    DocsEnum docs = null;
+    for (Map.Entry<BytesRef,String> entry : keys.entrySet()) {
+      if (!te.seekExact(entry.getKey())) continue;
+      docs = te.docs(liveDocs, docs, DocsEnum.FLAG_NONE);
+      int doc = docs.nextDoc();
+      if (doc == DocIdSetIterator.NO_MORE_DOCS) continue;
+      long[] tf = new long[periods()];
+      NgramLookup.readTimeline(unigrams, doc, tf, resolution, fromYear, toYear);
+      marginals.put(entry.getValue(), tf);
+    }
+    return marginals;
+  }
+
+  @Override
+  public void close() throws IOException {
+    for (Closeable resource : resources) {
+      resource.close();
+    }
+  }
+
+  /** Bigrams read from the key order, scored together. */
+  private static final class Batch {
+    final int[] docs = new int[BATCH_SIZE];
+    final String[] keys = new String[BATCH_SIZE];
+    final String[][] words = new String[BATCH_SIZE][];
+    int size = 0;
+
+    void add(int doc, String key, String[] words) {
+      docs[size] = doc;
+      keys[size] = key;
+      this.words[size] = words;
+      size++;
+    }
+  }
+
+  /** Print the top collocations of every period. */
+  public static void main(String[] args) {
+    String usage = "java org.apache.lucene.ngram.NgramCollocations"
+                 + " -unigrams INDEX_PATH -bigrams INDEX_PATH [-measure pmi|llr|tscore] [-resolution N]"
+                 + " [-years FROM-TO] [-min-count N] [-top N] [-threads N]\n\n"
+                 + "This prints the best word pairs of every period of N years as lines"
+                 + " FROM-TO TAB rank TAB bigram TAB score TAB count";
+    String unigramPath = null;
+    String bigramPath = null;
+    Measure measure = Measure.LLR;
+    int resolution = 10;
+    int fromYear = NgramFields.FIRST_YEAR;
+    int toYear = NgramFields.LAST_YEAR;
+    long minCount = 10;
+    int top = 100;
+    int threads = Runtime.getRuntime().availableProcessors();
+    for(int i=0;i<args.length;i++) {
+      if ("-unigrams".equals(args[i])) {
+        unigramPath = args[i+1];
+        i++;
+      } else if ("-bigrams".equals(args[i])) {
+        bigramPath = args[i+1];
+        i++;
+      } else if ("-measure".equals(args[i])) {
+        measure = Measure.forName(args[i+1]);
+        i++;
+      } else if ("-resolution".equals(args[i])) {
+        resolution = Integer.parseInt(args[i+1]);
+        i++;
+      } else if ("-years".equals(args[i])) {
+        String[] range = args[i+1].split("-");
+        fromYear = Math.max(Integer.parseInt(range[0]), NgramFields.FIRST_YEAR);
+        toYear = Math.min(Integer.parseInt(range[range.length - 1]), NgramFields.LAST_YEAR);
+        i++;
+      } else if ("-min-count".equals(args[i])) {
+        minCount = Long.parseLong(args[i+1]);
+        i++;
+      } else if ("-top".equals(args[i])) {
+        top = Integer.parseInt(args[i+1]);
+        i++;
+      } else if ("-threads".equals(args[i])) {
+        threads = Integer.parseInt(args[i+1]);
+        i++;
+      } else if ("-h".equals(args[i]) || "-help".equals(args[i])) {
+        System.out.println(usage);
+        System.exit(0);
+      }
+    }
+
+    if (unigramPath == null || bigramPath == null) {
+      System.err.println("Usage: " + usage);
+      System.exit(1);
+    }
+
+    Date start = new Date();
+    try {
+      NgramCollocations collocations = new NgramCollocations(new File(unigramPath), new File(bigramPath));
+      try {
+        collocations.setMeasure(measure);
+        collocations.setResolution(resolution);
+        collocations.setYears(fromYear, toYear);
+        collocations.setMinCount(minCount);
+        collocations.setTop(top);
+        collocations.setThreads(threads);
+        List<List<Collocation>> best = collocations.run();
+        for (int i = 0; i < best.size(); i++) {
+          String period = collocations.periodStart(i) + "-" + collocations.periodEnd(i);
+          int rank = 1;
+          for (Collocation c : best.get(i)) {
+            System.out.println(period + "\t" + rank++ + "\t" + c.bigram + "\t" + c.score + "\t" + c.count);
+          }
+        }
+      } finally {
+        collocations.close();
+      }
+
+      Date end = new Date();
+      System.err.println(end.getTime() - start.getTime() + " total milliseconds");
+
+    } catch (IOException e) {
+      System.out.println(" caught a " + e.getClass() +
+       "\n with message: " + e.getMessage());
+    }
+  }
+}
@@ -0,0 +1,411 @@
+package org.apache.lucene.ngram;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.IndexWriterConfig.OpenMode;
+import org.apache.lucene.index.TrackingIndexWriter;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.queryparser.classic.QueryParser;
+import org.apache.lucene.search.ControlledRealTimeReopenThread;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.SearcherFactory;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.Version;
+
+/**
+ * Long running process that owns the {@link IndexWriter} of an ngram
+ * index, ingests shard files as they appear in a watch directory and
+ * answers lookups from near real time searchers.
+ * <p>
+ * Every file in the watch directory is one ingest unit of an
+ * {@link NgramUpserter}, named by its file name like the files directly
+ * in the docs directory of <code>IndexNgrams -upsert</code>: it is
+ * committed when done and never ingested twice, also across restarts
+ * and by either tool. A file that fails part way is removed
+ * from the index again and retried at the next scans, the other files
+ * are ingested meanwhile. After {@link #MAX_ATTEMPTS} failures a file is
+ * left alone until it is modified. Files ending in
+ * <code>.gz</code> are decompressed on the fly; files starting with a
+ * dot are ignored, so writers can upload to a dot file and rename it
+ * when complete.
+ * <p>
+ * Searchers are refreshed by a {@link ControlledRealTimeReopenThread}
+ * at most <code>-max-stale</code> seconds after a change. Lookups are
+ * read from standard input, one query per line, and answered with the
+ * summed timeline like {@link ExtractNgrams}.
+ */
+public class NgramDaemon implements Closeable {
+
+  /** Number of failed ingests after which a file is skipped until it is modified. */
+  public static final int MAX_ATTEMPTS = 3;
+
+  private final TrackingIndexWriter writer;
+  private final NgramUpserter upserter;
+  private final SearcherManager manager;
+  private final ControlledRealTimeReopenThread<IndexSearcher> reopenThread;
+  private final ScheduledExecutorService watcher;
+  private final File watchDir;
+  private final long settleMillis;
+  /** Failed files by unit, only touched by the watcher thread. */
+  private final Map<String, Failure> failures = new HashMap<String, Failure>();
+  private volatile NgramPublisher publisher;
+
+  /**
+   * Opens the daemon on <code>writer</code>, which is closed with the daemon.
+   * @param watchDir directory polled for new shard files, or null to only serve
+   * @param pollMillis interval between scans of <code>watchDir</code>
+   * @param settleMillis minimum age of a file's last modification before it is ingested
+   * @param maxStaleSec maximum delay until changes are visible to lookups
+   * @param minStaleSec minimum delay between two reopens
+   * @param factory creates the searchers, may be null
+   */
+  public NgramDaemon(IndexWriter writer, File watchDir, long pollMillis, long settleMillis,
+                     double maxStaleSec, double minStaleSec, SearcherFactory factory) throws IOException {
+    this.writer = new TrackingIndexWriter(writer);
+    this.upserter = new NgramUpserter(this.writer);
+    this.manager = new SearcherManager(writer, true, factory);
+    this.watchDir = watchDir;
+    this.settleMillis = settleMillis;
+
+    reopenThread = new ControlledRealTimeReopenThread<IndexSearcher>(this.writer, manager, maxStaleSec, minStaleSec);
+    reopenThread.setName("ngram-nrt-reopen");
+    reopenThread.setDaemon(true);
+    reopenThread.start();
+
+    watcher = Executors.newSingleThreadScheduledExecutor();
+    if (watchDir != null) {
+      watcher.scheduleWithFixedDelay(new Runnable() {
+        @Override
+        public void run() {
+          scan();
+        }
+      }, 0, pollMillis, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Publishes every ingested unit through <code>publisher</code>, which
+   * is closed with the daemon. The writer must be configured with
+   * {@link NgramPublisher#configure}.
+   */
+  public void setPublisher(NgramPublisher publisher) throws IOException {
+    this.publisher = publisher;
+    publisher.publish();
+  }
+
+  /** Searchers for lookups, always {@link SearcherManager#release release} acquired searchers. */
+  public SearcherManager getSearcherManager() {
+    return manager;
+  }
+
+  /** Ingests all settled files of the watch directory that are not part of the index yet. */
+  private void scan() {
+    File[] files = watchDir.listFiles();
+    if (files == null) return;
+    Arrays.sort(files);
+    long now = System.currentTimeMillis();
+    for (File file : files) {
+      String unit = file.getName();
+      if (!file.isFile() || unit.startsWith(".") || upserter.isDone(unit)) continue;
+      if (now - file.lastModified() < settleMillis) continue;
+      Failure failure = failures.get(unit);
+      if (failure != null && failure.lastModified != file.lastModified()) {
+        // replaced by its writer, try again from scratch
+        failures.remove(unit);
+        failure = null;
+      }
+      if (failure != null && failure.attempts >= MAX_ATTEMPTS) continue;
+      try {
+        ingest(file, unit);
+        failures.remove(unit);
+      } catch (IOException e) {
+        failed(file, unit, failure, e);
+      } catch (RuntimeException e) {
+        failed(file, unit, failure, e);
+      }
+    }
+  }
+
+  private void failed(File file, String unit, Failure failure, Exception e) {
+    if (failure == null) {
+      failure = new Failure(file.lastModified());
+      failures.put(unit, failure);
+    }
+    failure.attempts++;
+    if (failure.attempts < MAX_ATTEMPTS) {
+      System.err.println("Failed to ingest '" + file + "', will retry: " + e);
+    } else {
+      System.err.println("Failed to ingest '" + file + "' " + failure.attempts
+                         + " times, skipping it until it is modified: " + e);
+    }
+  }
+
+  /** Ingests <code>file</code> as <code>unit</code>, or leaves the index as it was if that fails. */
+  void ingest(File file, String unit) throws IOException {
+    System.err.println("Ingesting " + file);
+    long start = System.currentTimeMillis();
+    InputStream is = new FileInputStream(file);
+    try {
+      if (unit.endsWith(".gz")) {
+        is = new GZIPInputStream(is, 1 << 16);
+      }
+      BufferedReader reader = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8), 1 << 16);
+      IndexNgrams.indexStream(writer, reader, upserter, unit, null);
+    } catch (IOException e) {
+      // the retry must neither duplicate the appended entries nor see stale boundary entries
+      upserter.abortUnit(unit);
+      throw e;
+    } catch (RuntimeException e) {
+      upserter.abortUnit(unit);
+      throw e;
+    } finally {
+      is.close();
+    }
+    System.err.println("Ingested " + file + " in " + (System.currentTimeMillis() - start) + " ms");
+    if (publisher != null) {
+      publisher.publish();
+    }
+  }
+
+  /** Stops watching and closes searchers and the writer, committing pending changes. */
+  @Override
+  public void close() throws IOException {
+    watcher.shutdown();
+    try {
+      watcher.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    reopenThread.close();
+    manager.close();
+    try {
+      upserter.close();
+      if (publisher != null) {
+        publisher.publish();
+        publisher.close();
+      }
+    } finally {
+      writer.getIndexWriter().close();
+    }
+  }
+
+  /** Ingest and serve an ngram index. */
+  public static void main(String[] args) throws Exception {
+    String usage = "java org.apache.lucene.ngram.NgramDaemon"
+                 + " [-index INDEX_PATH] [-watch DIR] [-poll ms] [-settle ms]"
+                 + " [-max-stale sec] [-min-stale sec] [-field f] [-port PORT] [-threads N]"
+                 + " [-warm-queries FILE] [-publish SPOOL_DIR] [-madvise] [-direct-merges]"
+                 + " [-target-p99 ms [-merge-mb min,max] [-merge-threads N]]\n\n"
+                 + "Ingests shard files appearing in DIR into INDEX_PATH and answers"
+                 + " queries read from standard input, and with -port on 127.0.0.1:PORT"
+                 + " (see NgramServer). With -target-p99 merges are throttled to hold"
+                 + " the p99 of the served requests (see NgramMergeScheduler).";
+    String indexPath = "index";
+    String watchPath = null;
+    String field = "term_0";
+    long pollMillis = 5000;
+    long settleMillis = 10000;
+    double maxStaleSec = 5.0;
+    double minStaleSec = 0.1;
+    int port = -1;
+    String warmQueries = null;
+    String publishPath = null;
+    int threads = Runtime.getRuntime().availableProcessors();
+    boolean madvise = false;
+    boolean directMerges = false;
+    double targetP99 = -1;
+    double minMergeMB = 1;
+    double maxMergeMB = 1024;
+    int mergeThreads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+    for(int i=0;i<args.length;i++) {
+      if ("-index".equals(args[i])) {
+        indexPath = args[i+1];
+        i++;
+      } else if ("-watch".equals(args[i])) {
+        watchPath = args[i+1];
+        i++;
+      } else if ("-field".equals(args[i])) {
+        field = args[i+1];
+        i++;
+      } else if ("-poll".equals(args[i])) {
+        pollMillis = Long.parseLong(args[i+1]);
+        i++;
+      } else if ("-settle".equals(args[i])) {
+        settleMillis = Long.parseLong(args[i+1]);
+        i++;
+      } else if ("-max-stale".equals(args[i])) {
+        maxStaleSec = Double.parseDouble(args[i+1]);
+        i++;
+      } else if ("-min-stale".equals(args[i])) {
+        minStaleSec = Double.parseDouble(args[i+1]);
+        i++;
+      } else if ("-warm-queries".equals(args[i])) {
+        warmQueries = args[i+1];
+        i++;
+      } else if ("-publish".equals(args[i])) {
+        publishPath = args[i+1];
+        i++;
+      } else if ("-port".equals(args[i])) {
+        port = Integer.parseInt(args[i+1]);
+        i++;
+      } else if ("-threads".equals(args[i])) {
+        threads = Integer.parseInt(args[i+1]);
+        i++;
+      } else if ("-madvise".equals(args[i])) {
+        madvise = true;
+      } else if ("-direct-merges".equals(args[i])) {
+        directMerges = true;
+      } else if ("-target-p99".equals(args[i])) {
+        targetP99 = Double.parseDouble(args[i+1]);
+        i++;
+      } else if ("-merge-mb".equals(args[i])) {
+        String[] range = args[i+1].split(",");
+        minMergeMB = Double.parseDouble(range[0]);
+        maxMergeMB = Double.parseDouble(range[range.length - 1]);
+        i++;
+      } else if ("-merge-threads".equals(args[i])) {
+        mergeThreads = Integer.parseInt(args[i+1]);
+        i++;
+      } else if ("-h".equals(args[i]) || "-help".equals(args[i])) {
+        System.out.println(usage);
+        System.exit(0);
+      }
+    }
+
+    // Keep standard output for lookup results
+    IndexNgrams.log = System.err;
+
+    Directory dir = NgramServer.openDirectory(new File(indexPath), madvise, directMerges);
+    // :Post-Release-Update-Version.LUCENE_XY:
+    IndexWriterConfig iwc = new IndexWriterConfig(Version.LUCENE_4_10_0, new KeywordAnalyzer());
+    iwc.setOpenMode(OpenMode.CREATE_OR_APPEND);
+    NgramLatencies latencies = null;
+    if (targetP99 > 0) {
+      if (port < 0) {
+        System.err.println("-target-p99 without -port: no requests are measured, merges run at full speed");
+      }
+      latencies = new NgramLatencies(4000);
+      NgramMergeScheduler scheduler = new NgramMergeScheduler(latencies, targetP99, minMergeMB, maxMergeMB,
+                                                              mergeThreads, 1000);
+      dir = scheduler.wrap(dir);
+      iwc.setMergeScheduler(scheduler);
+    }
+    final NgramWarmer warmer = new NgramWarmer(field);
+    if (warmQueries != null) {
+      warmer.recordAll(new File(warmQueries));
+    }
+    iwc.setMergedSegmentWarmer(warmer.mergedSegmentWarmer());
+    if (publishPath != null) {
+      NgramPublisher.configure(iwc);
+    }
+    IndexWriter writer = new IndexWriter(dir, iwc);
+    if (publishPath != null) {
+      // publish needs a commit to snapshot, also of a new index
+      writer.commit();
+    }
+
+    final NgramDaemon daemon = new NgramDaemon(writer, watchPath != null ? new File(watchPath) : null,
+                                               pollMillis, settleMillis, maxStaleSec, minStaleSec, warmer);
+    if (publishPath != null) {
+      daemon.setPublisher(new NgramPublisher(writer, new File(publishPath)));
+    }
+    final NgramServer server = port < 0 ? null :
+      new NgramServer(daemon.getSearcherManager(), warmer, field,
+                      new InetSocketAddress(InetAddress.getLoopbackAddress(), port), threads);
+    if (server != null) {
+      server.setLatencies(latencies);
+    }
+    Runtime.getRuntime().addShutdownHook(new Thread() {
+      @Override
+      public void run() {
+        try {
+          if (server != null) {
+            server.close();
+          }
+          daemon.close();
+        } catch (IOException e) {
+          System.err.println("Failed to close index: " + e);
+        }
+      }
+    });
+    System.err.println("Serving '" + indexPath + "'" + (watchPath != null ? ", watching '" + watchPath + "'" : "")
+                       + (server != null ? ", listening on port " + server.getPort() : ""));
+
+    // :Post-Release-Update-Version.LUCENE_XY:
+    QueryParser parser = new QueryParser(Version.LUCENE_4_10_0, field, new KeywordAnalyzer());
+    BufferedReader in = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+    String line;
+    while ((line = in.readLine()) != null) {
+      line = line.trim();
+      if (line.length() == 0) continue;
+      Query query;
+      try {
+        query = parser.parse(line);
+      } catch (ParseException e) {
+        System.out.println("Failed to parse query: '" + line + "'");
+        continue;
+      }
+      warmer.record(line);
+      SearcherManager manager = daemon.getSearcherManager();
+      IndexSearcher searcher = manager.acquire();
+      try {
+        ExtractNgrams.doPagingSearch(in, searcher, query, false);
+      } finally {
+        manager.release(searcher);
+      }
+      System.out.flush();
+    }
+
+    // Standard input closed: keep ingesting and serving until the process is stopped
+    if (watchPath != null || server != null) {
+      Thread.currentThread().join();
+    }
+  }
+
+  private static final class Failure {
+    final long lastModified;
+    int attempts;
+
+    Failure(long lastModified) {
+      this.lastModified = lastModified;
+    }
+  }
+}
@@ -0,0 +1,120 @@
+package org.apache.lucene.ngram;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Field names and year range shared by the ngram indexers and
+ * the tools reading their output.
+ */
+public final class NgramFields {
+
+  /** First year kept from the raw data. */
+  public static final int FIRST_YEAR = 1800;
+
+  /** Last year present in the 20120701 data set. */
+  public static final int LAST_YEAR = 2008;
+
+  /** Number of yearly values in a timeline. */
+  public static final int NUM_YEARS = LAST_YEAR - FIRST_YEAR + 1;
+
+  /**
+   * Exact raw entry (e.g. <code>"the_DET cat"</code>), indexed
+   * untokenized so that a single document can be addressed by term.
+   * Indexes encoded with a {@link NgramVocabulary} hold the packed
+   * vocabulary ids of the entry instead.
+   */
+  public static final String KEY = "key";
+
+  /**
+   * Terms of the entry in order, indexed with positions for
+   * subsequence search, see {@link NgramSubsequences}.
+   */
+  public static final String TOKENS = "tokens";
+
+  /**
+   * Lower cased raw entry (e.g. <code>"the_det cat"</code>), shared by
+   * all case variants of an entry and indexed untokenized, also in
+   * vocabulary encoded indexes. See {@link NgramCaseFolder}.
+   */
+  public static final String FOLDED_KEY = "key_folded";
+
+  /**
+   * Ingest unit of the interior entries appended by an
+   * {@link NgramUpserter}, indexed untokenized and not stored, so the
+   * documents of a failed unit can be deleted before it is retried.
+   */
+  public static final String UNIT = "unit";
+
+  /**
+   * Marks the placeholder documents that declare new doc values columns,
+   * indexed untokenized and not stored, so that they can be deleted again
+   * without touching an entry of the same key.
+   */
+  public static final String SCHEMA = "schema";
+
+  /** Binary doc values column holding the encoded match count timeline. */
+  public static final String TIMELINE = "timeline";
+
+  /**
+   * Binary doc values column holding the summed timeline of all case
+   * variants of an entry, on one document per {@link #FOLDED_KEY}
+   * with more than one variant.
+   */
+  public static final String FOLDED_TIMELINE = "timeline_folded";
+
+  /**
+   * Sorted set doc values column of the part of speech facets, one
+   * dimension per position, see {@link NgramPosFacets}.
+   */
+  public static final String POS_FACETS = "pos_facets";
+
+  private NgramFields() {}
+
+  /** Name of the term field for position <code>i</code>. */
+  public static String term(int i) {
+    return "term_" + i;
+  }
+
+  /** Name of the part of speech field for position <code>i</code>. */
+  public static String pos(int i) {
+    return "pos_" + i;
+  }
+
+  /** Name of the vocabulary id field of the term at position <code>i</code>. */
+  public static String termId(int i) {
+    return "term_id_" + i;
+  }
+
+  /** Name of the vocabulary id field of the part of speech at position <code>i</code>. */
+  public static String posId(int i) {
+    return "pos_id_" + i;
+  }
+
+  /**
+   * Name of the binary doc values column holding the timeline summed
+   * over <code>resolution</code> years, see {@link NgramTimeline#ROLLUPS}.
+   */
+  public static String timeline(int resolution) {
+    return TIMELINE + "_" + resolution;
+  }
+
+  /** Name of the stored match count field for <code>year</code>. */
+  public static String tf(int year) {
+    return "tf_" + year;
+  }
+}
@@ -0,0 +1,137 @@
+package org.apache.lucene.ngram;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+
+import org.apache.lucene.codecs.Codec;
+import org.apache.lucene.codecs.FilterCodec;
+import org.apache.lucene.codecs.StoredFieldsFormat;
+import org.apache.lucene.codecs.compressing.CompressingStoredFieldsFormat;
+import org.apache.lucene.codecs.compressing.CompressionMode;
+import org.apache.lucene.codecs.lucene410.Lucene410Codec;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.TieredMergePolicy;
+
+/**
+ * How an ngram index is laid out on disk, depending on its use.
+ * <ul>
+ *   <li>{@link #ARCHIVE} for copies kept for reproducibility: stored
+ *       fields are deflated in large chunks, and the index is merged
+ *       down to a single compound segment when it is finished.</li>
+ *   <li>{@link #SERVING} for indexes that are queried constantly: stored
+ *       fields are compressed in small chunks, so loading one document
+ *       decompresses little else, and segments are kept as separate,
+ *       bounded files that the OS can keep in memory one by one.</li>
+ * </ul>
+ * Both only change the stored fields format of the default codec, the
+ * timeline columns are uncompressed in either profile. Indexes are
+ * converted between profiles with {@link ConvertNgramIndex}.
+ */
+public final class NgramIndexProfile {
+
+  /** Stored fields chunk size of the archive profile. */
+  public static final int ARCHIVE_CHUNK_SIZE = 1 << 18;
+
+  /** Stored fields chunk size of the serving profile. */
+  public static final int SERVING_CHUNK_SIZE = 1 << 12;
+
+  /** Largest segment merged by the serving profile. */
+  public static final double SERVING_MAX_SEGMENT_MB = 512;
+
+  public static final NgramIndexProfile ARCHIVE = new NgramIndexProfile("archive", new ArchiveCodec());
+
+  public static final NgramIndexProfile SERVING = new NgramIndexProfile("serving", new ServingCodec());
+
+  private final String name;
+  private final Codec codec;
+
+  private NgramIndexProfile(String name, Codec codec) {
+    this.name = name;
+    this.codec = codec;
+  }
+
+  /** The profile called <code>name</code>. */
+  public static NgramIndexProfile forName(String name) {
+    if (ARCHIVE.name.equals(name)) return ARCHIVE;
+    if (SERVING.name.equals(name)) return SERVING;
+    throw new IllegalArgumentException("unknown index profile '" + name + "', expected archive or serving");
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  /** Sets the codec and merge policy of this profile on <code>iwc</code>. */
+  public IndexWriterConfig configure(IndexWriterConfig iwc) {
+    TieredMergePolicy mp = new TieredMergePolicy();
+    if (this == ARCHIVE) {
+      mp.setNoCFSRatio(1.0);
+      mp.setMaxCFSSegmentSizeMB(Double.POSITIVE_INFINITY);
+      iwc.setUseCompoundFile(true);
+    } else {
+      mp.setNoCFSRatio(0.0);
+      mp.setMaxMergedSegmentMB(SERVING_MAX_SEGMENT_MB);
+      iwc.setUseCompoundFile(false);
+    }
+    return iwc.setCodec(codec).setMergePolicy(mp);
+  }
+
+  /** Finishes an index written with this profile before its last commit. */
+  public void finish(IndexWriter writer) throws IOException {
+    if (this == ARCHIVE) {
+      writer.forceMerge(1);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return name;
+  }
+
+  /** Codec of the archive profile, registered for lookup by name. */
+  public static final class ArchiveCodec extends FilterCodec {
+    private final StoredFieldsFormat storedFields =
+      new CompressingStoredFieldsFormat("NgramArchiveStoredFields", CompressionMode.HIGH_COMPRESSION, ARCHIVE_CHUNK_SIZE);
+
+    public ArchiveCodec() {
+      super("NgramArchive410", new Lucene410Codec());
+    }
+
+    @Override
+    public StoredFieldsFormat storedFieldsFormat() {
+      return storedFields;
+    }
+  }
+
+  /** Codec of the serving profile, registered for lookup by name. */
+  public static final class ServingCodec extends FilterCodec {
+    private final StoredFieldsFormat storedFields =
+      new CompressingStoredFieldsFormat("NgramServingStoredFields", CompressionMode.FAST, SERVING_CHUNK_SIZE);
+
+    public ServingCodec() {
+      super("NgramServing410", new Lucene410Codec());
+    }
+
+    @Override
+    public StoredFieldsFormat storedFieldsFormat() {
+      return storedFields;
+    }
+  }
+}
@@ -0,0 +1,243 @@
+package org.apache.lucene.ngram;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.CachingWrapperFilter;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.join.JoinUtil;
+import org.apache.lucene.search.join.ScoreMode;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.lucene.util.NumericUtils;
+
+/**
+ * Cross-order joins: restricts the ngrams of one index by predicates on
+ * their tokens that are evaluated in the unigram index, e.g. the bigrams
+ * whose second word peaked after 1950, or the 3-grams whose tokens are
+ * all rarer than some count.
+ * <p>
+ * A predicate is <code>name op value</code> with <code>op</code> one of
+ * <code>&lt; &lt;= &gt; &gt;= =</code>. The name is either a feature
+ * written by {@link UpdateNgramFeatures}, e.g. <code>peak_year&gt;1950</code>,
+ * or <code>count</code>, the total matches of the word, optionally in a
+ * year range, e.g. <code>count@1900-1950&lt;1000</code>. Only unigrams
+ * without a part of speech are considered.
+ * <p>
+ * The words satisfying a predicate are collected with
+ * {@link JoinUtil} from the unigram term field into a terms query on the
+ * term field of the position in the ngram index. Vocabulary encoded
+ * indexes are joined on the term ids instead, which requires both to be
+ * encoded with the same vocabulary. The per segment matches of a
+ * predicate and the joined queries of the most recent predicates are
+ * cached, so a predicate used again or at another position is not
+ * evaluated again.
+ */
+public class NgramJoin {
+
+  /** Number of joined queries kept. */
+  private static final int MAX_CACHED = 256;
+
+  private static final Pattern PREDICATE =
+    Pattern.compile("^\\s*([A-Za-z_][A-Za-z0-9_]*)(?:@(\\d+)-(\\d+))?\\s*(<=|>=|<|>|=)\\s*(\\S+)\\s*$");
+
+  /** Name of the predicate on the total match count of a word. */
+  public static final String COUNT = "count";
+
+  private final IndexSearcher unigrams;
+  private final boolean encoded;
+  private final Map<String,Filter> filters = new LinkedHashMap<String,Filter>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String,Filter> eldest) {
+      return size() > MAX_CACHED;
+    }
+  };
+  private final Map<String,Query> joins = new LinkedHashMap<String,Query>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String,Query> eldest) {
+      return size() > MAX_CACHED;
+    }
+  };
+
+  /**
+   * Joins against the unigram index of <code>unigrams</code>. The
+   * vocabularies, or null for text indexes, tell how the unigram and the
+   * ngram index are keyed.
+   */
+  public NgramJoin(IndexSearcher unigrams, NgramVocabulary unigramVocabulary, NgramVocabulary ngramVocabulary) {
+    if ((unigramVocabulary == null) != (ngramVocabulary == null)
+        || (unigramVocabulary != null && !unigramVocabulary.equals(ngramVocabulary))) {
+      throw new IllegalArgumentException("both indexes must be text or encoded with the same vocabulary");
+    }
+    this.unigrams = unigrams;
+    this.encoded = unigramVocabulary != null;
+  }
+
+  /** Query matching the ngrams whose token at <code>position</code> satisfies <code>predicate</code>. */
+  public Query join(String predicate, int position) throws IOException {
+    String field = encoded ? NgramFields.termId(position) : NgramFields.term(position);
+    String key = field + "\t" + predicate;
+    synchronized (joins) {
+      Query query = joins.get(key);
+      if (query != null) return query;
+    }
+    String from = encoded ? NgramFields.termId(0) : NgramFields.term(0);
+    Query query = JoinUtil.createJoinQuery(from, false, field, new ConstantScoreQuery(filter(predicate)),
+                                           unigrams, ScoreMode.None);
+    synchronized (joins) {
+      joins.put(key, query);
+    }
+    return query;
+  }
+
+  /**
+   * Query matching the ngrams of <code>order</code> tokens whose tokens
+   * all satisfy <code>predicate</code>.
+   */
+  public Query joinAll(String predicate, int order) throws IOException {
+    BooleanQuery query = new BooleanQuery();
+    for (int i = 0; i < order; i++) {
+      query.add(join(predicate, i), BooleanClause.Occur.MUST);
+    }
+    return query;
+  }
+
+  /** The unigrams satisfying <code>predicate</code>, cached per segment. */
+  private Filter filter(String predicate) throws IOException {
+    synchronized (filters) {
+      Filter filter = filters.get(predicate);
+      if (filter != null) return filter;
+    }
+    Filter filter = new CachingWrapperFilter(parse(predicate));
+    synchronized (filters) {
+      filters.put(predicate, filter);
+    }
+    return filter;
+  }
+
+  private PredicateFilter parse(String predicate) throws IOException {
+    Matcher match = PREDICATE.matcher(predicate);
+    if (!match.matches()) {
+      throw new IllegalArgumentException("bad predicate '" + predicate + "', expected e.g. peak_year>1950 or count<1000");
+    }
+    String name = match.group(1);
+    double value;
+    try {
+      value = Double.parseDouble(match.group(5));
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("bad value in predicate '" + predicate + "'");
+    }
+    int fromYear = NgramFields.FIRST_YEAR;
+    int toYear = NgramFields.LAST_YEAR;
+    if (match.group(2) != null) {
+      if (!COUNT.equals(name)) {
+        throw new IllegalArgumentException("only " + COUNT + " takes a year range: '" + predicate + "'");
+      }
+      fromYear = Integer.parseInt(match.group(2));
+      toYear = Integer.parseInt(match.group(3));
+      if (fromYear > toYear || toYear < NgramFields.FIRST_YEAR || fromYear > NgramFields.LAST_YEAR) {
+        throw new IllegalArgumentException("bad year range in predicate '" + predicate + "'");
+      }
+    }
+    if (!COUNT.equals(name)) {
+      FieldInfo info = MultiFields.getMergedFieldInfos(unigrams.getIndexReader()).fieldInfo(name);
+      if (info == null || info.getDocValuesType() != FieldInfo.DocValuesType.NUMERIC) {
+        throw new IllegalArgumentException("the unigram index has no feature '" + name
+                                           + "', see UpdateNgramFeatures");
+      }
+    }
+    return new PredicateFilter(name, match.group(4), value, fromYear, toYear);
+  }
+
+  /** Unigrams without a part of speech whose count or feature compares to a value. */
+  private static final class PredicateFilter extends Filter {
+    private final String name;
+    private final String op;
+    private final double value;
+    private final int fromYear;
+    private final int toYear;
+
+    PredicateFilter(String name, String op, double value, int fromYear, int toYear) {
+      this.name = name;
+      this.op = op;
+      this.value = value;
+      this.fromYear = fromYear;
+      this.toYear = toYear;
+    }
+
+    @Override
+    public DocIdSet getDocIdSet(AtomicReaderContext context, Bits acceptDocs) throws IOException {
+      AtomicReader reader = context.reader();
+      FixedBitSet tagged = NgramLookup.tagged(reader);
+      FixedBitSet bits = new FixedBitSet(reader.maxDoc());
+      if (COUNT.equals(name)) {
+        NgramTimeline.Reader timelines = new NgramTimeline.Reader(reader);
+        int from = NgramTimeline.index(fromYear, 1);
+        int to = NgramTimeline.index(toYear, 1) + 1;
+        long[] tf = new long[to - from];
+        for (int doc = 0; doc < reader.maxDoc(); doc++) {
+          if ((acceptDocs != null && !acceptDocs.get(doc)) || tagged.get(doc)) continue;
+          if (!timelines.read(doc, tf, from, to)) continue;
+          long total = 0;
+          for (long count : tf) {
+            total += count;
+          }
+          if (matches(total)) bits.set(doc);
+        }
+      } else {
+        NumericDocValues values = reader.getNumericDocValues(name);
+        Bits docsWithField = reader.getDocsWithField(name);
+        if (values == null || docsWithField == null) return null;
+        for (int doc = 0; doc < reader.maxDoc(); doc++) {
+          if ((acceptDocs != null && !acceptDocs.get(doc)) || tagged.get(doc) || !docsWithField.get(doc)) continue;
+          if (matches(NumericUtils.sortableLongToDouble(values.get(doc)))) bits.set(doc);
+        }
+      }
+      return bits;
+    }
+
+    private boolean matches(double v) {
+      if ("<".equals(op)) return v < value;
+      if ("<=".equals(op)) return v <= value;
+      if (">".equals(op)) return v > value;
+      if (">=".equals(op)) return v >= value;
+      return v == value;
+    }
+
+    @Override
+    public String toString() {
+      return name + (COUNT.equals(name) ? "@" + fromYear + "-" + toYear : "") + op + value;
+    }
+  }
+}
@@ -0,0 +1,389 @@
+package org.apache.lucene.ngram;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.DocsEnum;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Scores sentences with a stupid backoff language model over the
+ * unigram to 5-gram indexes of a corpus, optionally counting only the
+ * matches of a range of years.
+ * <p>
+ * The score of a word given the up to <code>n-1</code> words before it
+ * is the relative count of the longest ngram ending with it whose count
+ * and whose context count are positive, multiplied by
+ * {@link #setAlpha alpha} for every order backed off. A word missing
+ * from the unigram index scores as if it was seen once. Scores are
+ * natural logarithms and, as in Brants et al., not normalized.
+ * <p>
+ * Sentences are scored in batches. The ngrams a batch needs are
+ * deduplicated per order and resolved with one pass of seeks over the
+ * {@link NgramFields#KEY} terms in term order, the orders in parallel,
+ * so a frequent ngram is read once per batch however many sentences
+ * contain it. Tokens are separated by whitespace and looked up as
+ * raw entries, e.g. <code>cat_NOUN</code> for a tagged word.
+ */
+public class NgramLanguageModel implements Closeable {
+
+  /** Highest order of the Google ngram data sets. */
+  public static final int MAX_ORDER = 5;
+
+  /** Backoff factor suggested by Brants et al. */
+  public static final double DEFAULT_ALPHA = 0.4;
+
+  /** Number of sentences {@link #main} scores together. */
+  private static final int BATCH_SIZE = 1 << 12;
+
+  private final IndexSearcher[] searchers;
+  private final NgramVocabulary[] vocabularies;
+  private final List<Closeable> resources = new ArrayList<Closeable>();
+  private final ExecutorService pool;
+
+  private double logAlpha = Math.log(DEFAULT_ALPHA);
+  private int fromYear = NgramFields.FIRST_YEAR;
+  private int toYear = NgramFields.LAST_YEAR;
+  private long[] yearTotals;
+
+  /**
+   * Opens the indexes of the orders one to <code>indexes.length</code>,
+   * <code>indexes[0]</code> holding the unigrams. Any of them may be
+   * sharded or encoded.
+   */
+  public NgramLanguageModel(File[] indexes) throws IOException {
+    if (indexes.length == 0 || indexes.length > MAX_ORDER) {
+      throw new IllegalArgumentException("expected 1 to " + MAX_ORDER + " indexes, got " + indexes.length);
+    }
+    this.searchers = new IndexSearcher[indexes.length];
+    this.vocabularies = new NgramVocabulary[indexes.length];
+    boolean success = false;
+    try {
+      for (int k = 0; k < indexes.length; k++) {
+        searchers[k] = open(indexes[k]);
+        vocabularies[k] = NgramVocabulary.forIndex(indexes[k]);
+      }
+      success = true;
+    } finally {
+      if (!success) {
+        close();
+      }
+    }
+    this.pool = Executors.newFixedThreadPool(indexes.length);
+  }
+
+  private IndexSearcher open(File index) throws IOException {
+    if (NgramShards.isSharded(index)) {
+      NgramShards shards = NgramShards.open(index);
+      resources.add(shards);
+      return shards.all();
+    }
+    IndexReader reader = DirectoryReader.open(FSDirectory.open(index));
+    resources.add(reader);
+    return new IndexSearcher(reader);
+  }
+
+  /** Highest order of the model, the number of indexes. */
+  public int order() {
+    return searchers.length;
+  }
+
+  /** Multiplies the score by <code>alpha</code> for every order backed off. */
+  public void setAlpha(double alpha) {
+    if (alpha <= 0 || alpha > 1) {
+      throw new IllegalArgumentException("alpha must be in (0, 1], got " + alpha);
+    }
+    this.logAlpha = Math.log(alpha);
+  }
+
+  /** Counts only the matches of the years <code>fromYear</code> to <code>toYear</code>, both inclusive. */
+  public void setYears(int fromYear, int toYear) {
+    if (fromYear > toYear || toYear < NgramFields.FIRST_YEAR || fromYear > NgramFields.LAST_YEAR) {
+      throw new IllegalArgumentException("bad year range " + fromYear + "-" + toYear);
+    }
+    this.fromYear = Math.max(fromYear, NgramFields.FIRST_YEAR);
+    this.toYear = Math.min(toYear, NgramFields.LAST_YEAR);
+  }
+
+  /** The score of every token of a whitespace separated sentence. */
+  public double[] score(String sentence) throws IOException {
+    List<String[]> sentences = new ArrayList<String[]>(1);
+    sentences.add(tokenize(sentence));
+    return score(sentences).get(0);
+  }
+
+  /** The scores of the tokens of each of <code>sentences</code>, looked up together. */
+  public List<double[]> score(List<String[]> sentences) throws IOException {
+    int order = order();
+    List<Map<String,Long>> counts = new ArrayList<Map<String,Long>>(order);
+    for (int k = 1; k <= order; k++) {
+      Map<String,Long> needed = new HashMap<String,Long>();
+      for (String[] tokens : sentences) {
+        for (int end = k; end <= tokens.length; end++) {
+          needed.put(ngram(tokens, end - k, end), null);
+        }
+      }
+      counts.add(needed);
+    }
+    resolve(counts);
+
+    double logTotal = Math.log(total());
+    List<double[]> scores = new ArrayList<double[]>(sentences.size());
+    for (String[] tokens : sentences) {
+      double[] score = new double[tokens.length];
+      for (int i = 0; i < tokens.length; i++) {
+        score[i] = score(tokens, i, counts, logTotal);
+      }
+      scores.add(score);
+    }
+    return scores;
+  }
+
+  private double score(String[] tokens, int i, List<Map<String,Long>> counts, double logTotal) {
+    double backoff = 0;
+    for (int k = Math.min(order(), i + 1); k > 1; k--) {
+      long count = counts.get(k - 1).get(ngram(tokens, i + 1 - k, i + 1));
+      long context = counts.get(k - 2).get(ngram(tokens, i + 1 - k, i));
+      if (count > 0 && context > 0) {
+        return backoff + Math.log(count) - Math.log(context);
+      }
+      backoff += logAlpha;
+    }
+    long count = counts.get(0).get(tokens[i]);
+    return backoff + Math.log(Math.max(count, 1)) - logTotal;
+  }
+
+  /** Fills in the counts of the ngrams of every order, one task per order. */
+  private void resolve(final List<Map<String,Long>> counts) throws IOException {
+    List<Future<?>> tasks = new ArrayList<Future<?>>(counts.size());
+    for (int k = 0; k < counts.size(); k++) {
+      final int order = k;
+      tasks.add(pool.submit(new Callable<Void>() {
+        @Override
+        public Void call() throws IOException {
+          resolve(order, counts.get(order));
+          return null;
+        }
+      }));
+    }
+    try {
+      for (Future<?> task : tasks) {
+        task.get();
+      }
+    } catch (InterruptedException e) {
+      throw new IOException("interrupted while looking up counts", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new RuntimeException(e.getCause());
+    }
+  }
+
+  /**
+   * Counts of the ngrams of the index at <code>k</code>, seeking their
+   * keys in term order so that neighbouring ngrams share the terms
+   * blocks they are read from.
+   */
+  private void resolve(int k, Map<String,Long> counts) throws IOException {
+    IndexSearcher searcher = searchers[k];
+    NgramVocabulary vocabulary = vocabularies[k];
+    TreeMap<BytesRef,String> keys = new TreeMap<BytesRef,String>();
+    for (Map.Entry<String,Long> entry : counts.entrySet()) {
+      entry.setValue(0L);
+      BytesRef key = vocabulary != null ? vocabulary.encode(entry.getKey()) : new BytesRef(entry.getKey());
+      if (key != null) {
+        keys.put(key, entry.getKey());
+      }
+    }
+
+    Terms terms = MultiFields.getTerms(searcher.getIndexReader(), NgramFields.KEY);
+    if (terms == null) return;
+    Bits liveDocs = MultiFields.getLiveDocs(searcher.getIndexReader());
+    TermsEnum te = terms.iterator(null);
+    DocsEnum docs = null;
+    long[] tf = new long[NgramLookup.sliceLength(1, fromYear, toYear)];
+    for (Map.Entry<BytesRef,String> entry : keys.entrySet()) {
+      if (!te.seekExact(entry.getKey())) continue;
+      docs = te.docs(liveDocs, docs, DocsEnum.FLAG_NONE);
+      int doc = docs.nextDoc();
+      if (doc == DocIdSetIterator.NO_MORE_DOCS) continue;
+      int length = NgramLookup.readTimeline(searcher, doc, tf, 1, fromYear, toYear);
+      long count = 0;
+      for (int y = 0; y < length; y++) {
+        count += tf[y];
+      }
+      counts.put(entry.getValue(), count);
+    }
+  }
+
+  /** Number of tokens in the year range, from the yearly totals computed on first use. */
+  private synchronized long total() throws IOException {
+    if (yearTotals == null) {
+      yearTotals = NgramLookup.totals(searchers[0], 1, NgramFields.FIRST_YEAR, NgramFields.LAST_YEAR);
+    }
+    long total = 0;
+    for (int y = fromYear; y <= toYear; y++) {
+      total += yearTotals[y - NgramFields.FIRST_YEAR];
+    }
+    return Math.max(total, 1);
+  }
+
+  private static String ngram(String[] tokens, int start, int end) {
+    StringBuilder sb = new StringBuilder(tokens[start]);
+    for (int i = start + 1; i < end; i++) {
+      sb.append(' ').append(tokens[i]);
+    }
+    return sb.toString();
+  }
+
+  private static String[] tokenize(String sentence) {
+    String trimmed = sentence.trim();
+    return trimmed.isEmpty() ? new String[0] : trimmed.split("\\s+");
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (pool != null) {
+      pool.shutdown();
+    }
+    for (Closeable resource : resources) {
+      resource.close();
+    }
+  }
+
+  /** Score the sentences of a file or standard input, one per line. */
+  public static void main(String[] args) {
+    String usage = "java org.apache.lucene.ngram.NgramLanguageModel"
+                 + " -index INDEX_PATH [-index INDEX_PATH ...] [-input FILE] [-years FROM-TO] [-alpha A]\n\n"
+                 + "This scores every sentence with the stupid backoff model of the unigram,"
+                 + " bigram, ... indexes given in order, as lines sentence TAB total TAB score1 TAB ... TAB scoreN";
+    List<File> indexes = new ArrayList<File>();
+    String input = null;
+    int fromYear = NgramFields.FIRST_YEAR;
+    int toYear = NgramFields.LAST_YEAR;
+    double alpha = DEFAULT_ALPHA;
+    for(int i=0;i<args.length;i++) {
+      if ("-index".equals(args[i])) {
+        indexes.add(new File(args[i+1]));
+        i++;
+      } else if ("-input".equals(args[i])) {
+        input = args[i+1];
+        i++;
+      } else if ("-years".equals(args[i])) {
+        String[] range = args[i+1].split("-");
+        fromYear = Integer.parseInt(range[0]);
+        toYear = Integer.parseInt(range[range.length - 1]);
+        i++;
+      } else if ("-alpha".equals(args[i])) {
+        alpha = Double.parseDouble(args[i+1]);
+        i++;
+      } else if ("-h".equals(args[i]) || "-help".equals(args[i])) {
+        System.out.println(usage);
+        System.exit(0);
+      }
+    }
+
+    if (indexes.isEmpty()) {
+      System.err.println("Usage: " + usage);
+      System.exit(1);
+    }
+
+    Date start = new Date();
+    try {
+      NgramLanguageModel model = new NgramLanguageModel(indexes.toArray(new File[indexes.size()]));
+      try {
+        model.setYears(fromYear, toYear);
+        model.setAlpha(alpha);
+        BufferedReader in = new BufferedReader(new InputStreamReader(
+          input != null ? new FileInputStream(input) : System.in, StandardCharsets.UTF_8));
+        try {
+          List<String> lines = new ArrayList<String>(BATCH_SIZE);
+          List<String[]> sentences = new ArrayList<String[]>(BATCH_SIZE);
+          long scored = 0;
+          String line;
+          do {
+            line = in.readLine();
+            if (line != null) {
+              lines.add(line);
+              sentences.add(tokenize(line));
+            }
+            if (sentences.size() == BATCH_SIZE || (line == null && !sentences.isEmpty())) {
+              List<double[]> scores = model.score(sentences);
+              for (int s = 0; s < scores.size(); s++) {
+                print(lines.get(s), scores.get(s));
+              }
+              scored += sentences.size();
+              lines.clear();
+              sentences.clear();
+            }
+          } while (line != null);
+          System.err.println("scored " + scored + " sentences");
+        } finally {
+          in.close();
+        }
+      } finally {
+        model.close();
+      }
+
+      Date end = new Date();
+      System.err.println(end.getTime() - start.getTime() + " total milliseconds");
+
+    } catch (IOException e) {
+      System.out.println(" caught a " + e.getClass() +
+       "\n with message: " + e.getMessage());
+    }
+  }
+
+  private static void print(String sentence, double[] scores) {
+    double total = 0;
+    StringBuilder sb = new StringBuilder();
+    for (double score : scores) {
+      total += score;
+      sb.append('\t').append(score);
+    }
+    System.out.println(sentence.trim() + "\t" + total + sb);
+  }
+}
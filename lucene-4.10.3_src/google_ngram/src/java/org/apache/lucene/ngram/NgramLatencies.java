@@ -0,0 +1,144 @@
+package org.apache.lucene.ngram;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Percentiles of the request latencies of the last few seconds, recorded
+ * by {@link NgramServer} and read by {@link NgramMergeScheduler}.
+ * <p>
+ * Latencies are counted in a histogram with 32 buckets per power of two
+ * microseconds, so a percentile is exact to about 3%. The window is split
+ * in {@link #SLOTS} slots of its own histogram; a slot is cleared when it
+ * is reused, so a percentile covers between the window and one slot less.
+ * Recording is lock free and costs one atomic increment.
+ */
+public class NgramLatencies {
+
+  /** Number of slots the window is split in. */
+  public static final int SLOTS = 4;
+
+  private static final int SUB_BITS = 5;
+  private static final int SUB_BUCKETS = 1 << SUB_BITS;
+  /** Up to 2^40 us, about 12 days. */
+  private static final int MAX_BITS = 40;
+  private static final int BUCKETS = 2 * SUB_BUCKETS + (MAX_BITS - SUB_BITS - 1) * SUB_BUCKETS;
+
+  private final long slotNanos;
+  private final AtomicLongArray[] counts = new AtomicLongArray[SLOTS];
+  private final long[] epochs = new long[SLOTS];
+
+  /** Keeps the latencies of the last <code>windowMillis</code>. */
+  public NgramLatencies(long windowMillis) {
+    if (windowMillis < SLOTS) {
+      throw new IllegalArgumentException("window must be at least " + SLOTS + " ms, got " + windowMillis);
+    }
+    this.slotNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis) / SLOTS;
+    for (int i = 0; i < SLOTS; i++) {
+      counts[i] = new AtomicLongArray(BUCKETS);
+      epochs[i] = -1;
+    }
+  }
+
+  /** Records a request that took <code>nanos</code>. */
+  public void record(long nanos) {
+    counts[slot(System.nanoTime() / slotNanos)].incrementAndGet(bucket(Math.max(0, nanos / 1000)));
+  }
+
+  /** Number of requests in the window. */
+  public long count() {
+    long count = 0;
+    long epoch = System.nanoTime() / slotNanos;
+    for (int i = 0; i < SLOTS; i++) {
+      if (!live(i, epoch)) continue;
+      for (int b = 0; b < BUCKETS; b++) {
+        count += counts[i].get(b);
+      }
+    }
+    return count;
+  }
+
+  /**
+   * The latency in milliseconds that a fraction <code>p</code> of the
+   * requests in the window did not exceed, e.g. 0.99 for the p99, or 0
+   * if there were no requests.
+   */
+  public double percentile(double p) {
+    if (p < 0 || p > 1) {
+      throw new IllegalArgumentException("p must be in [0, 1], got " + p);
+    }
+    long[] merged = new long[BUCKETS];
+    long total = 0;
+    long epoch = System.nanoTime() / slotNanos;
+    for (int i = 0; i < SLOTS; i++) {
+      if (!live(i, epoch)) continue;
+      for (int b = 0; b < BUCKETS; b++) {
+        long c = counts[i].get(b);
+        merged[b] += c;
+        total += c;
+      }
+    }
+    if (total == 0) return 0;
+    long rank = Math.max(1, (long) Math.ceil(p * total));
+    long seen = 0;
+    for (int b = 0; b < BUCKETS; b++) {
+      seen += merged[b];
+      if (seen >= rank) return upper(b) / 1000.0;
+    }
+    return upper(BUCKETS - 1) / 1000.0;
+  }
+
+  /** The slot of <code>epoch</code>, cleared if it still holds an older epoch. */
+  private int slot(long epoch) {
+    int i = (int) (epoch % SLOTS);
+    if (epochs[i] != epoch) {
+      synchronized (this) {
+        if (epochs[i] != epoch) {
+          for (int b = 0; b < BUCKETS; b++) {
+            counts[i].set(b, 0);
+          }
+          epochs[i] = epoch;
+        }
+      }
+    }
+    return i;
+  }
+
+  private synchronized boolean live(int i, long epoch) {
+    return epochs[i] >= 0 && epoch - epochs[i] < SLOTS;
+  }
+
+  /** Bucket of a latency in microseconds: exact below 64, then 32 per power of two. */
+  static int bucket(long micros) {
+    if (micros < 2 * SUB_BUCKETS) return (int) micros;
+    int exponent = 63 - Long.numberOfLeadingZeros(micros);
+    if (exponent >= MAX_BITS) return BUCKETS - 1;
+    int sub = (int) (micros >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+    return 2 * SUB_BUCKETS + (exponent - SUB_BITS - 1) * SUB_BUCKETS + sub;
+  }
+
+  /** Largest latency in microseconds counted in <code>bucket</code>. */
+  static long upper(int bucket) {
+    if (bucket < 2 * SUB_BUCKETS) return bucket;
+    int exponent = (bucket - 2 * SUB_BUCKETS) / SUB_BUCKETS + SUB_BITS + 1;
+    int sub = (bucket - 2 * SUB_BUCKETS) % SUB_BUCKETS;
+    return ((long) (SUB_BUCKETS + sub + 1) << (exponent - SUB_BITS)) - 1;
+  }
+}
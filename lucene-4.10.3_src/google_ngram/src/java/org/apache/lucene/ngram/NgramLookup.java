@@ -0,0 +1,304 @@
+package org.apache.lucene.ngram;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DocsEnum;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.FixedBitSet;
+
+/**
+ * Timeline lookups against an open {@link IndexSearcher}, shared by
+ * the long running servers.
+ * <p>
+ * Timelines are read from the {@link NgramFields#TIMELINE} column when
+ * the index has one and from the stored <code>tf_YEAR</code> fields
+ * otherwise. Coarser resolutions read the precomputed rollup columns,
+ * case-insensitive key lookups the aggregates of {@link NgramCaseFolder}.
+ */
+public final class NgramLookup {
+
+  /** Maximum number of hits considered for a single query. */
+  public static final int MAX_HITS = 50000;
+
+  private NgramLookup() {}
+
+  /** Top hits of <code>query</code>, at most {@link #MAX_HITS}. */
+  public static ScoreDoc[] search(IndexSearcher searcher, Query query) throws IOException {
+    TopDocs results = searcher.search(query, MAX_HITS);
+    return results.scoreDocs;
+  }
+
+  /** Reads the timeline of top level document <code>doc</code> into <code>tf</code>. */
+  public static void readTimeline(IndexSearcher searcher, int doc, long[] tf) throws IOException {
+    readTimeline(searcher, doc, tf, 1);
+  }
+
+  /**
+   * Reads the timeline of top level document <code>doc</code> summed over
+   * <code>resolution</code> years into <code>tf</code>, which must hold
+   * {@link NgramTimeline#length(int)} values.
+   */
+  public static void readTimeline(IndexSearcher searcher, int doc, long[] tf, int resolution) throws IOException {
+    readSlice(searcher, doc, tf, resolution, 0, NgramTimeline.length(resolution));
+  }
+
+  /**
+   * Reads the values of the timeline of top level document <code>doc</code>
+   * at <code>resolution</code> that cover the years <code>fromYear</code>
+   * to <code>toYear</code>, both inclusive, into the start of <code>tf</code>.
+   * Only the blocks of the timeline that hold them are decoded.
+   * Returns the number of values read, see {@link #sliceLength}.
+   */
+  public static int readTimeline(IndexSearcher searcher, int doc, long[] tf, int resolution,
+                                 int fromYear, int toYear) throws IOException {
+    int from = NgramTimeline.index(fromYear, resolution);
+    int length = sliceLength(resolution, fromYear, toYear);
+    readSlice(searcher, doc, tf, resolution, from, from + length);
+    return length;
+  }
+
+  /** Number of values at <code>resolution</code> covering the years <code>fromYear</code> to <code>toYear</code>. */
+  public static int sliceLength(int resolution, int fromYear, int toYear) {
+    return Math.max(0, NgramTimeline.index(toYear, resolution) + 1 - NgramTimeline.index(fromYear, resolution));
+  }
+
+  private static void readSlice(IndexSearcher searcher, int doc, long[] tf, int resolution, int from, int to)
+    throws IOException {
+    if (from >= to) return;
+    List<AtomicReaderContext> leaves = searcher.getIndexReader().leaves();
+    AtomicReaderContext leaf = leaves.get(ReaderUtil.subIndex(doc, leaves));
+    readSlice(leaf.reader(), new NgramTimeline.Reader(leaf.reader(), resolution), doc - leaf.docBase,
+              tf, resolution, from, to);
+  }
+
+  /** Reads a slice of segment document <code>doc</code> from <code>timelines</code> or its stored fields. */
+  private static void readSlice(AtomicReader reader, NgramTimeline.Reader timelines, int doc, long[] tf,
+                                int resolution, int from, int to) throws IOException {
+    if (from >= to || timelines.read(doc, tf, from, to)) {
+      return;
+    }
+    long[] years = new long[NgramFields.NUM_YEARS];
+    Document stored = reader.document(doc);
+    for (int y = NgramFields.FIRST_YEAR; y <= NgramFields.LAST_YEAR; y++) {
+      String tf_year = stored.get(NgramFields.tf(y));
+      if (tf_year != null) {
+        years[y - NgramFields.FIRST_YEAR] = Long.parseLong(tf_year);
+      }
+    }
+    long[] values = years;
+    if (resolution != 1) {
+      values = new long[NgramTimeline.length(resolution)];
+      NgramTimeline.rollup(years, resolution, values);
+    }
+    System.arraycopy(values, from, tf, 0, to - from);
+  }
+
+  /**
+   * The raw entry of <code>doc</code>, rebuilt from the term and part
+   * of speech fields for indexes without a {@link NgramFields#KEY}.
+   */
+  public static String key(IndexSearcher searcher, int doc) throws IOException {
+    return key(searcher, doc, null);
+  }
+
+  /**
+   * The raw entry of <code>doc</code>, decoding the packed key of
+   * indexes encoded with <code>vocabulary</code>.
+   */
+  public static String key(IndexSearcher searcher, int doc, NgramVocabulary vocabulary) throws IOException {
+    Document stored = searcher.doc(doc);
+    String key = stored.get(NgramFields.KEY);
+    if (key != null) {
+      return key;
+    }
+    BytesRef packed = stored.getBinaryValue(NgramFields.KEY);
+    if (packed != null) {
+      if (vocabulary == null) {
+        throw new IllegalStateException("document " + doc + " is encoded, but no vocabulary was given");
+      }
+      return vocabulary.decode(packed);
+    }
+    StringBuilder sb = new StringBuilder();
+    for (int j = 0; j < 5; j++) {
+      String term = stored.get(NgramFields.term(j));
+      String pos  = stored.get(NgramFields.pos(j));
+      if (term == null && pos == null) break;
+      if (j != 0) sb.append(' ');
+      sb.append(term).append(pos != null ? "_" + pos : "");
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Reads the values at <code>resolution</code> covering the years
+   * <code>fromYear</code> to <code>toYear</code> of the raw entry
+   * <code>entry</code> into the start of <code>sum</code>, e.g. of
+   * <code>"the_DET cat"</code>. With <code>ignoreCase</code>, the timelines
+   * of all case variants of the entry are summed, read from their
+   * precomputed aggregate if the index was folded. Returns the number of
+   * documents found, zero for an unknown entry.
+   */
+  public static int lookupKey(IndexSearcher searcher, String entry, boolean ignoreCase, NgramVocabulary vocabulary,
+                              long[] sum, int resolution, int fromYear, int toYear) throws IOException {
+    int from = NgramTimeline.index(fromYear, resolution);
+    int length = sliceLength(resolution, fromYear, toYear);
+    Term term;
+    if (ignoreCase) {
+      term = new Term(NgramFields.FOLDED_KEY, NgramCaseFolder.fold(entry));
+    } else {
+      BytesRef packed = vocabulary != null ? vocabulary.encode(entry) : null;
+      term = packed != null ? new Term(NgramFields.KEY, packed) : new Term(NgramFields.KEY, entry);
+    }
+    ScoreDoc[] hits = search(searcher, new TermQuery(term));
+    if (ignoreCase && hits.length > 1
+        && NgramCaseFolder.readAggregate(searcher, hits, sum, resolution, from, from + length)) {
+      return hits.length;
+    }
+    Arrays.fill(sum, 0, length, 0);
+    long[] tf = new long[length];
+    for (ScoreDoc hit : hits) {
+      readSlice(searcher, hit.doc, tf, resolution, from, from + length);
+      for (int y = 0; y < length; y++) {
+        sum[y] += tf[y];
+      }
+    }
+    return hits.length;
+  }
+
+  /**
+   * Documents of a segment whose first token has a part of speech, in
+   * either the text or the id field. Summed over a unigram index, the
+   * other documents count every token once.
+   */
+  public static FixedBitSet tagged(AtomicReader reader) throws IOException {
+    FixedBitSet bits = new FixedBitSet(reader.maxDoc());
+    for (String field : new String[] { NgramFields.pos(0), NgramFields.posId(0) }) {
+      Terms terms = reader.terms(field);
+      if (terms == null) continue;
+      TermsEnum te = terms.iterator(null);
+      DocsEnum docs = null;
+      while (te.next() != null) {
+        docs = te.docs(null, docs, DocsEnum.FLAG_NONE);
+        bits.or(docs);
+      }
+    }
+    return bits;
+  }
+
+  /**
+   * The number of tokens per value at <code>resolution</code> covering the
+   * years <code>fromYear</code> to <code>toYear</code>, the summed timelines
+   * of the unigrams of <code>unigrams</code> without a part of speech.
+   */
+  public static long[] totals(IndexSearcher unigrams, int resolution, int fromYear, int toYear) throws IOException {
+    int from = NgramTimeline.index(fromYear, resolution);
+    int length = sliceLength(resolution, fromYear, toYear);
+    long[] totals = new long[length];
+    long[] tf = new long[length];
+    for (AtomicReaderContext leaf : unigrams.getIndexReader().leaves()) {
+      AtomicReader reader = leaf.reader();
+      FixedBitSet tagged = tagged(reader);
+      Bits liveDocs = reader.getLiveDocs();
+      NgramTimeline.Reader timelines = new NgramTimeline.Reader(reader, resolution);
+      for (int doc = 0; doc < reader.maxDoc(); doc++) {
+        if ((liveDocs != null && !liveDocs.get(doc)) || tagged.get(doc)) continue;
+        readSlice(reader, timelines, doc, tf, resolution, from, from + length);
+        for (int i = 0; i < length; i++) {
+          totals[i] += tf[i];
+        }
+      }
+    }
+    return totals;
+  }
+
+  /** Sums the timelines of all hits of <code>query</code> into <code>sum</code>. */
+  public static int aggregate(IndexSearcher searcher, Query query, long[] sum) throws IOException {
+    return aggregate(searcher, query, sum, 1);
+  }
+
+  /**
+   * Sums the timelines of all hits of <code>query</code> at
+   * <code>resolution</code> years per value into <code>sum</code>.
+   */
+  public static int aggregate(IndexSearcher searcher, Query query, long[] sum, int resolution) throws IOException {
+    return aggregate(searcher, query, sum, resolution, NgramFields.FIRST_YEAR, NgramFields.LAST_YEAR);
+  }
+
+  /**
+   * Sums the values at <code>resolution</code> covering the years
+   * <code>fromYear</code> to <code>toYear</code>, both inclusive, of all
+   * hits of <code>query</code> into the start of <code>sum</code>.
+   * Hits are summed as they are collected, however many there are.
+   * Returns the number of hits.
+   */
+  public static int aggregate(IndexSearcher searcher, Query query, final long[] sum, final int resolution,
+                              int fromYear, int toYear) throws IOException {
+    final int from = NgramTimeline.index(fromYear, resolution);
+    final int length = sliceLength(resolution, fromYear, toYear);
+    Arrays.fill(sum, 0, length, 0);
+    final long[] tf = new long[length];
+    final int[] count = new int[1];
+    searcher.search(query, new Collector() {
+      private AtomicReader reader;
+      private NgramTimeline.Reader timelines;
+
+      @Override
+      public void setScorer(Scorer scorer) {}
+
+      @Override
+      public void setNextReader(AtomicReaderContext context) throws IOException {
+        reader = context.reader();
+        timelines = new NgramTimeline.Reader(reader, resolution);
+      }
+
+      @Override
+      public void collect(int doc) throws IOException {
+        readSlice(reader, timelines, doc, tf, resolution, from, from + length);
+        for (int y = 0; y < length; y++) {
+          sum[y] += tf[y];
+        }
+        count[0]++;
+      }
+
+      @Override
+      public boolean acceptsDocsOutOfOrder() {
+        return true;
+      }
+    });
+    return count[0];
+  }
+}
@@ -0,0 +1,204 @@
+package org.apache.lucene.ngram;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.lucene.index.ConcurrentMergeScheduler;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.RateLimitedDirectoryWrapper;
+import org.apache.lucene.store.RateLimiter;
+
+/**
+ * A {@link ConcurrentMergeScheduler} that holds the p99 of the served
+ * requests at a target by adjusting the merge write rate and the number
+ * of merge threads, instead of static limits that are too slow when the
+ * server is idle and too aggressive under load.
+ * <p>
+ * Every <code>interval</code> the p99 of the {@link NgramLatencies} is
+ * compared to the target. Above it, the rate is set to half of what the
+ * merges actually wrote since the last adjustment, or half of the limit
+ * if that is lower or the merges hardly wrote, and one merge thread less runs; the paused merges,
+ * the largest ones, continue when threads are given back. Below 3/4 of
+ * the target, or with fewer than {@link #MIN_SAMPLES} requests in the
+ * window, the rate grows by a quarter and one merge thread more runs,
+ * up to the maximum. In between, or above the target while no merge
+ * runs, nothing changes. The window should span a few intervals, so
+ * an adjustment is seen by the next ones.
+ * <p>
+ * The rate applies to the merge outputs of the directory returned by
+ * {@link #wrap}, which the writer must use, also to outputs already
+ * being written.
+ */
+public class NgramMergeScheduler extends ConcurrentMergeScheduler {
+
+  /** Fewer requests in the latency window count as an idle server. */
+  public static final int MIN_SAMPLES = 20;
+
+  /** Margin below the target before merges are sped up again. */
+  private static final double HEADROOM = 0.75;
+
+  private final NgramLatencies latencies;
+  private final double targetMillis;
+  private final double minMBPerSec;
+  private final double maxMBPerSec;
+  private final int maxThreads;
+  private final CountingRateLimiter limiter;
+  private final ScheduledExecutorService controller;
+
+  private volatile double lastP99;
+  private volatile int threads;
+  private long lastAdjustNanos = System.nanoTime();
+
+  /**
+   * Holds the p99 of <code>latencies</code> at <code>targetMillis</code>.
+   * @param minMBPerSec merge write rate when the target is missed for long
+   * @param maxMBPerSec merge write rate of an idle server
+   * @param maxThreads merge threads of an idle server, at most {@link #getMaxMergeCount()}
+   * @param intervalMillis time between two adjustments
+   */
+  public NgramMergeScheduler(NgramLatencies latencies, double targetMillis, double minMBPerSec,
+                             double maxMBPerSec, int maxThreads, long intervalMillis) {
+    if (targetMillis <= 0) {
+      throw new IllegalArgumentException("target must be positive, got " + targetMillis);
+    }
+    if (minMBPerSec <= 0 || minMBPerSec > maxMBPerSec) {
+      throw new IllegalArgumentException("need 0 < minMBPerSec <= maxMBPerSec, got " + minMBPerSec + " and " + maxMBPerSec);
+    }
+    this.latencies = latencies;
+    this.targetMillis = targetMillis;
+    this.minMBPerSec = minMBPerSec;
+    this.maxMBPerSec = maxMBPerSec;
+    this.maxThreads = maxThreads;
+    this.threads = maxThreads;
+    setMaxMergesAndThreads(Math.max(getMaxMergeCount(), maxThreads), maxThreads);
+    this.limiter = new CountingRateLimiter(maxMBPerSec);
+    this.controller = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "ngram-merge-throttle");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    controller.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        adjust();
+      }
+    }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /** <code>dir</code> with its merge outputs limited to the current rate. */
+  public Directory wrap(Directory dir) {
+    RateLimitedDirectoryWrapper limited = new RateLimitedDirectoryWrapper(dir);
+    limited.setRateLimiter(limiter, IOContext.Context.MERGE);
+    return limited;
+  }
+
+  /** One step of the control loop. */
+  void adjust() {
+    double p99 = latencies.count() < MIN_SAMPLES ? 0 : latencies.percentile(0.99);
+    lastP99 = p99;
+    long now = System.nanoTime();
+    double written = limiter.bytes.getAndSet(0) / 1024. / 1024. / ((now - lastAdjustNanos) / 1e9);
+    lastAdjustNanos = now;
+    double rate = limiter.getMbPerSec();
+    int threads = this.threads;
+    if (p99 > targetMillis) {
+      if (mergeThreadCount() == 0) {
+        // not caused by merges
+        return;
+      }
+      // merges that barely wrote were reading or verifying their inputs
+      rate = Math.max(minMBPerSec, (written < minMBPerSec ? rate : Math.min(rate, written)) / 2);
+      threads = Math.max(1, threads - 1);
+    } else if (p99 < HEADROOM * targetMillis) {
+      rate = Math.min(maxMBPerSec, rate * 1.25);
+      threads = Math.min(maxThreads, threads + 1);
+    } else {
+      return;
+    }
+    if (rate != limiter.getMbPerSec()) {
+      limiter.setMbPerSec(rate);
+    }
+    if (threads != this.threads) {
+      setThreads(threads);
+    }
+    if (verbose()) {
+      message("p99=" + p99 + " ms target=" + targetMillis + " ms: " + rate + " MB/sec, " + threads + " threads");
+    }
+  }
+
+  private synchronized void setThreads(int threads) {
+    this.threads = threads;
+    setMaxMergesAndThreads(getMaxMergeCount(), threads);
+    // pauses or resumes running merges
+    updateMergeThreads();
+  }
+
+  /** The current merge write rate in MB/sec. */
+  public double getMBPerSec() {
+    return limiter.getMbPerSec();
+  }
+
+  /** The current number of merge threads. */
+  public int getThreads() {
+    return threads;
+  }
+
+  /** The p99 in milliseconds at the last adjustment, 0 if the server was idle. */
+  public double getLastP99() {
+    return lastP99;
+  }
+
+  /** Stops adjusting and lets the running merges finish at full speed. */
+  @Override
+  public void close() {
+    controller.shutdownNow();
+    limiter.setMbPerSec(maxMBPerSec);
+    setThreads(maxThreads);
+    super.close();
+  }
+
+  /** Counts the bytes written by the merges. */
+  private static final class CountingRateLimiter extends RateLimiter.SimpleRateLimiter {
+    final AtomicLong bytes = new AtomicLong();
+
+    CountingRateLimiter(double mbPerSec) {
+      super(mbPerSec);
+    }
+
+    @Override
+    public long pause(long bytes) {
+      this.bytes.addAndGet(bytes);
+      return super.pause(bytes);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return getClass().getSimpleName() + ": target=" + targetMillis + " ms p99=" + lastP99
+      + " ms rate=" + getMBPerSec() + " MB/sec threads=" + threads + "/" + maxThreads;
+  }
+}
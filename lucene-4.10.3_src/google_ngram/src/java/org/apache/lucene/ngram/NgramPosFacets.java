@@ -0,0 +1,218 @@
+package org.apache.lucene.ngram;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.facet.FacetResult;
+import org.apache.lucene.facet.FacetsCollector;
+import org.apache.lucene.facet.FacetsCollector.MatchingDocs;
+import org.apache.lucene.facet.FacetsConfig;
+import org.apache.lucene.facet.LabelAndValue;
+import org.apache.lucene.facet.sortedset.DefaultSortedSetDocValuesReaderState;
+import org.apache.lucene.facet.sortedset.SortedSetDocValuesFacetCounts;
+import org.apache.lucene.facet.sortedset.SortedSetDocValuesFacetField;
+import org.apache.lucene.facet.sortedset.SortedSetDocValuesReaderState;
+import org.apache.lucene.facet.sortedset.SortedSetDocValuesReaderState.OrdRange;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiDocValues.MultiSortedSetDocValues;
+import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.LongValues;
+
+/**
+ * Part of speech distribution of the hits of a query, e.g. how
+ * <code>run</code> splits into nouns and verbs over time.
+ * <p>
+ * The part of speech of position <code>i</code> is indexed as a sorted
+ * set facet of dimension {@link NgramFields#pos(int)} in the
+ * {@link NgramFields#POS_FACETS} column. {@link #distribution} collects
+ * the hits once and derives both the count of every tag, through
+ * {@link SortedSetDocValuesFacetCounts}, and the summed timeline of every
+ * tag from the same matching docs.
+ * <p>
+ * The global ordinals of a reader are built once and cached until the
+ * reader is closed; {@link NgramWarmer} builds them before a new
+ * searcher serves queries.
+ */
+public final class NgramPosFacets {
+
+  /** Highest ngram order, the number of facet dimensions. */
+  private static final int MAX_ORDER = 5;
+
+  private static final FacetsConfig CONFIG = new FacetsConfig();
+  static {
+    for (int i = 0; i < MAX_ORDER; i++) {
+      CONFIG.setIndexFieldName(NgramFields.pos(i), NgramFields.POS_FACETS);
+    }
+  }
+
+  /** States by core cache key, a state references its reader so it is evicted when the reader closes. */
+  private static final Map<Object,SortedSetDocValuesReaderState> states =
+    new HashMap<Object,SortedSetDocValuesReaderState>();
+
+  private static final IndexReader.ReaderClosedListener EVICT = new IndexReader.ReaderClosedListener() {
+    @Override
+    public void onClose(IndexReader reader) {
+      synchronized (states) {
+        states.remove(reader.getCoreCacheKey());
+      }
+    }
+  };
+
+  private NgramPosFacets() {}
+
+  /** Count and summed timeline of the hits with one part of speech. */
+  public static final class Distribution {
+    public final String pos;
+    public final int count;
+    public final long[] timeline;
+
+    Distribution(String pos, int count, long[] timeline) {
+      this.pos = pos;
+      this.count = count;
+      this.timeline = timeline;
+    }
+  }
+
+  /** Adds the facets of the tagged positions of <code>pos</code> to <code>doc</code>. */
+  public static void addTo(Document doc, String[] pos) {
+    for (int i = 0; i < pos.length && i < MAX_ORDER; i++) {
+      if (pos[i] != null) {
+        doc.add(new SortedSetDocValuesFacetField(NgramFields.pos(i), pos[i]));
+      }
+    }
+  }
+
+  /** Translates the facets of <code>doc</code> into the fields that are indexed. */
+  public static Document build(Document doc) throws IOException {
+    return CONFIG.build(doc);
+  }
+
+  /**
+   * The facet ordinals of top level <code>reader</code>, or null if it
+   * has no part of speech facets.
+   */
+  public static SortedSetDocValuesReaderState state(IndexReader reader) throws IOException {
+    Object key = reader.getCoreCacheKey();
+    synchronized (states) {
+      if (states.containsKey(key)) {
+        return states.get(key);
+      }
+    }
+    SortedSetDocValuesReaderState state;
+    try {
+      state = new DefaultSortedSetDocValuesReaderState(reader, NgramFields.POS_FACETS);
+    } catch (IllegalArgumentException e) {
+      // index built before the facets were added
+      state = null;
+    }
+    synchronized (states) {
+      if (!states.containsKey(key)) {
+        // fails if the reader was closed meanwhile, so nothing is left behind
+        reader.addReaderClosedListener(EVICT);
+        states.put(key, state);
+      }
+    }
+    return state;
+  }
+
+  /**
+   * Counts and summed timelines of the parts of speech at
+   * <code>position</code> among the hits of <code>query</code>, most
+   * frequent first. Hits without a tag at that position are not counted.
+   */
+  public static List<Distribution> distribution(IndexSearcher searcher, Query query, int position)
+    throws IOException {
+    String dim = NgramFields.pos(position);
+    SortedSetDocValuesReaderState state = state(searcher.getIndexReader());
+    OrdRange range = state == null ? null : state.getOrdRange(dim);
+    if (range == null) {
+      return Collections.emptyList();
+    }
+
+    FacetsCollector fc = new FacetsCollector();
+    searcher.search(query, fc);
+
+    long[][] sums = sumTimelines(state, fc.getMatchingDocs(), range);
+    FacetResult counts = new SortedSetDocValuesFacetCounts(state, fc)
+      .getTopChildren(range.end - range.start + 1, dim);
+    if (counts == null) {
+      return Collections.emptyList();
+    }
+    SortedSetDocValues dv = state.getDocValues();
+    List<Distribution> result = new ArrayList<Distribution>(counts.labelValues.length);
+    for (LabelAndValue lv : counts.labelValues) {
+      int ord = (int) dv.lookupTerm(new BytesRef(FacetsConfig.pathToString(dim, new String[] { lv.label })));
+      long[] timeline = sums[ord - range.start];
+      result.add(new Distribution(lv.label, lv.value.intValue(),
+                                  timeline != null ? timeline : new long[NgramFields.NUM_YEARS]));
+    }
+    return result;
+  }
+
+  /** Sums the timelines of <code>hits</code> per global ordinal in <code>range</code>. */
+  private static long[][] sumTimelines(SortedSetDocValuesReaderState state, List<MatchingDocs> hits, OrdRange range)
+    throws IOException {
+    long[][] sums = new long[range.end - range.start + 1][];
+    SortedSetDocValues dv = state.getDocValues();
+    long[] tf = new long[NgramFields.NUM_YEARS];
+    for (MatchingDocs leafHits : hits) {
+      AtomicReaderContext leaf = leafHits.context;
+      SortedSetDocValues segValues = leaf.reader().getSortedSetDocValues(state.getField());
+      if (segValues == null || leafHits.totalHits == 0) continue;
+      LongValues ordMap = dv instanceof MultiSortedSetDocValues
+        ? ((MultiSortedSetDocValues) dv).mapping.getGlobalOrds(leaf.ord) : null;
+      NgramTimeline.Reader timelines = new NgramTimeline.Reader(leaf.reader());
+
+      DocIdSetIterator docs = leafHits.bits.iterator();
+      int doc;
+      while ((doc = docs.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+        boolean read = false;
+        segValues.setDocument(doc);
+        long segOrd;
+        while ((segOrd = segValues.nextOrd()) != SortedSetDocValues.NO_MORE_ORDS) {
+          int ord = (int) (ordMap != null ? ordMap.get(segOrd) : segOrd);
+          if (ord < range.start || ord > range.end) continue;
+          if (!read) {
+            if (!timelines.read(doc, tf)) break;
+            read = true;
+          }
+          long[] sum = sums[ord - range.start];
+          if (sum == null) {
+            sum = sums[ord - range.start] = new long[NgramFields.NUM_YEARS];
+          }
+          for (int y = 0; y < NgramFields.NUM_YEARS; y++) {
+            sum[y] += tf[y];
+          }
+        }
+      }
+    }
+    return sums;
+  }
+}
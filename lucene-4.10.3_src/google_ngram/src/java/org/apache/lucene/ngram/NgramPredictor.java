@@ -0,0 +1,390 @@
+package org.apache.lucene.ngram;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.DocsEnum;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefBuilder;
+import org.apache.lucene.util.IntsRefBuilder;
+import org.apache.lucene.util.OfflineSorter;
+import org.apache.lucene.util.fst.Builder;
+import org.apache.lucene.util.fst.FST;
+import org.apache.lucene.util.fst.PositiveIntOutputs;
+import org.apache.lucene.util.fst.Util;
+
+/**
+ * Next word prediction from the bigram to 5-gram indexes of a corpus,
+ * without searching them.
+ * <p>
+ * Each order is compiled into an {@link FST} from the raw entries to
+ * their match count in a period, as <code>Long.MAX_VALUE - count</code>
+ * over {@link PositiveIntOutputs}, like the weights of the suggest
+ * module's <code>WFSTCompletionLookup</code>, which only takes int
+ * weights. All entries of an FST have the same number of tokens, so the
+ * continuations of a context are the completions of the context and a
+ * space, and the most frequent ones are its shortest paths. Entries with
+ * a part of speech are left out.
+ * <p>
+ * A prediction walks the longest context the FSTs cover and backs off to
+ * shorter contexts until it has enough distinct words; the words of
+ * longer contexts come first. Text indexes are compiled in key order,
+ * encoded ones are sorted offline first. Compiled FSTs are saved as
+ * <code>predict_N.fst</code> files in a directory.
+ */
+public class NgramPredictor {
+
+  /** Highest order of the Google ngram data sets. */
+  public static final int MAX_ORDER = 5;
+
+  private static final Comparator<Long> COST_ORDER = new Comparator<Long>() {
+    @Override
+    public int compare(Long a, Long b) {
+      return a.compareTo(b);
+    }
+  };
+
+  /** Orders records of a key and an 8 byte count by the key only. */
+  private static final Comparator<BytesRef> KEY_ORDER = new Comparator<BytesRef>() {
+    @Override
+    public int compare(BytesRef a, BytesRef b) {
+      int aLength = a.length - 8;
+      int bLength = b.length - 8;
+      for (int i = 0; i < Math.min(aLength, bLength); i++) {
+        int cmp = (a.bytes[a.offset + i] & 0xff) - (b.bytes[b.offset + i] & 0xff);
+        if (cmp != 0) return cmp;
+      }
+      return aLength - bLength;
+    }
+  };
+
+  /** A predicted word. */
+  public static final class Prediction {
+    public final String word;
+    public final long count;
+    /** Order of the entry the word was found in, one more than the context used. */
+    public final int order;
+
+    Prediction(String word, long count, int order) {
+      this.word = word;
+      this.count = count;
+      this.order = order;
+    }
+  }
+
+  /** The FST of order <code>i + 2</code> at <code>i</code>, null for a missing order. */
+  private final List<FST<Long>> fsts;
+
+  private NgramPredictor(List<FST<Long>> fsts) {
+    this.fsts = fsts;
+  }
+
+  /**
+   * Compiles the indexes of the orders two to <code>indexes.length + 1</code>,
+   * counting the matches of the years <code>fromYear</code> to
+   * <code>toYear</code>. Entries seen fewer than <code>minCount</code> times
+   * in the period are left out.
+   */
+  public static NgramPredictor build(File[] indexes, int fromYear, int toYear, long minCount) throws IOException {
+    if (indexes.length == 0 || indexes.length > MAX_ORDER - 1) {
+      throw new IllegalArgumentException("expected 1 to " + (MAX_ORDER - 1) + " indexes, got " + indexes.length);
+    }
+    List<FST<Long>> fsts = new ArrayList<FST<Long>>(indexes.length);
+    for (int i = 0; i < indexes.length; i++) {
+      fsts.add(compile(indexes[i], i + 2, fromYear, toYear, Math.max(1, minCount)));
+    }
+    return new NgramPredictor(fsts);
+  }
+
+  /** Loads the FSTs saved with {@link #save(File)}. */
+  public static NgramPredictor load(File dir) throws IOException {
+    List<FST<Long>> fsts = new ArrayList<FST<Long>>();
+    for (int order = 2; order <= MAX_ORDER; order++) {
+      File file = new File(dir, fileName(order));
+      fsts.add(file.isFile() ? FST.read(file, PositiveIntOutputs.getSingleton()) : null);
+    }
+    while (!fsts.isEmpty() && fsts.get(fsts.size() - 1) == null) {
+      fsts.remove(fsts.size() - 1);
+    }
+    if (fsts.isEmpty()) {
+      throw new IOException("no compiled orders in '" + dir + "'");
+    }
+    return new NgramPredictor(fsts);
+  }
+
+  /** Saves one FST per order into <code>dir</code>. */
+  public void save(File dir) throws IOException {
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      throw new IOException("Cannot create directory '" + dir + "'");
+    }
+    for (int i = 0; i < fsts.size(); i++) {
+      if (fsts.get(i) != null) {
+        fsts.get(i).save(new File(dir, fileName(i + 2)));
+      }
+    }
+  }
+
+  private static String fileName(int order) {
+    return "predict_" + order + ".fst";
+  }
+
+  /** Highest order compiled, one more than the longest context used. */
+  public int order() {
+    return fsts.size() + 1;
+  }
+
+  /**
+   * The at most <code>k</code> most frequent words following the last
+   * words of the whitespace separated <code>context</code>.
+   */
+  public List<Prediction> predict(String context, int k) throws IOException {
+    String trimmed = context.trim();
+    String[] words = trimmed.isEmpty() ? new String[0] : trimmed.split("\\s+");
+    List<Prediction> predictions = new ArrayList<Prediction>(k);
+    Set<String> seen = new HashSet<String>();
+    BytesRefBuilder suffix = new BytesRefBuilder();
+    for (int order = Math.min(order(), words.length + 1); order >= 2 && predictions.size() < k; order--) {
+      FST<Long> fst = fsts.get(order - 2);
+      if (fst == null) continue;
+      StringBuilder prefix = new StringBuilder();
+      for (int i = words.length + 1 - order; i < words.length; i++) {
+        prefix.append(words[i]).append(' ');
+      }
+      FST.Arc<Long> arc = new FST.Arc<Long>();
+      Long prefixOutput = lookupPrefix(fst, new BytesRef(prefix), arc);
+      if (prefixOutput == null) continue;
+      // words already predicted from a longer context may come again
+      int wanted = k - predictions.size() + seen.size();
+      Util.TopResults<Long> completions = Util.shortestPaths(fst, arc, prefixOutput, COST_ORDER, wanted, false);
+      for (Util.Result<Long> completion : completions) {
+        String word = Util.toBytesRef(completion.input, suffix).utf8ToString();
+        if (seen.add(word)) {
+          predictions.add(new Prediction(word, Long.MAX_VALUE - completion.output, order));
+          if (predictions.size() == k) break;
+        }
+      }
+    }
+    return predictions;
+  }
+
+  /** Follows <code>prefix</code> from the root, returning its output or null if no entry starts with it. */
+  private static Long lookupPrefix(FST<Long> fst, BytesRef prefix, FST.Arc<Long> arc) throws IOException {
+    FST.BytesReader reader = fst.getBytesReader();
+    fst.getFirstArc(arc);
+    long output = 0;
+    for (int i = 0; i < prefix.length; i++) {
+      if (fst.findTargetArc(prefix.bytes[prefix.offset + i] & 0xff, arc, arc, reader) == null) {
+        return null;
+      }
+      output += arc.output;
+    }
+    return output;
+  }
+
+  /** Compiles the entries of <code>order</code> tokens of one index. */
+  private static FST<Long> compile(File index, int order, int fromYear, int toYear, long minCount)
+    throws IOException {
+    NgramShards shards = null;
+    IndexReader reader = null;
+    IndexSearcher searcher;
+    if (NgramShards.isSharded(index)) {
+      shards = NgramShards.open(index);
+      searcher = shards.all();
+    } else {
+      reader = DirectoryReader.open(FSDirectory.open(index));
+      searcher = new IndexSearcher(reader);
+    }
+    NgramVocabulary vocabulary = NgramVocabulary.forIndex(index);
+    Builder<Long> builder = new Builder<Long>(FST.INPUT_TYPE.BYTE1, PositiveIntOutputs.getSingleton());
+    IntsRefBuilder scratch = new IntsRefBuilder();
+    File unsorted = null;
+    File sorted = null;
+    try {
+      OfflineSorter.ByteSequencesWriter writer = null;
+      if (vocabulary != null) {
+        unsorted = File.createTempFile("predict", ".unsorted", OfflineSorter.defaultTempDir());
+        writer = new OfflineSorter.ByteSequencesWriter(unsorted);
+      }
+      Terms terms = MultiFields.getTerms(searcher.getIndexReader(), NgramFields.KEY);
+      if (terms != null) {
+        Bits liveDocs = MultiFields.getLiveDocs(searcher.getIndexReader());
+        TermsEnum te = terms.iterator(null);
+        DocsEnum docs = null;
+        long[] tf = new long[NgramLookup.sliceLength(1, fromYear, toYear)];
+        BytesRefBuilder record = new BytesRefBuilder();
+        while (te.next() != null) {
+          docs = te.docs(liveDocs, docs, DocsEnum.FLAG_NONE);
+          int doc = docs.nextDoc();
+          if (doc == DocIdSetIterator.NO_MORE_DOCS) continue;
+          String key = vocabulary != null ? NgramLookup.key(searcher, doc, vocabulary) : te.term().utf8ToString();
+          if (!isPlain(key, order)) continue;
+          int length = NgramLookup.readTimeline(searcher, doc, tf, 1, fromYear, toYear);
+          long count = 0;
+          for (int y = 0; y < length; y++) {
+            count += tf[y];
+          }
+          if (count < minCount) continue;
+          if (writer == null) {
+            // text keys come in term order already
+            builder.add(Util.toIntsRef(te.term(), scratch), Long.MAX_VALUE - count);
+          } else {
+            record.copyChars(key);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+              record.append((byte) (count >>> shift));
+            }
+            writer.write(record.get());
+          }
+        }
+      }
+
+      if (writer != null) {
+        writer.close();
+        sorted = File.createTempFile("predict", ".sorted", OfflineSorter.defaultTempDir());
+        new OfflineSorter(KEY_ORDER).sort(unsorted, sorted);
+        OfflineSorter.ByteSequencesReader in = new OfflineSorter.ByteSequencesReader(sorted);
+        try {
+          BytesRefBuilder record = new BytesRefBuilder();
+          while (in.read(record)) {
+            BytesRef bytes = record.get();
+            int keyLength = bytes.length - 8;
+            long count = 0;
+            for (int i = 0; i < 8; i++) {
+              count = (count << 8) | (bytes.bytes[bytes.offset + keyLength + i] & 0xff);
+            }
+            builder.add(Util.toIntsRef(new BytesRef(bytes.bytes, bytes.offset, keyLength), scratch),
+                        Long.MAX_VALUE - count);
+          }
+        } finally {
+          in.close();
+        }
+      }
+    } finally {
+      if (unsorted != null) unsorted.delete();
+      if (sorted != null) sorted.delete();
+      if (shards != null) shards.close();
+      if (reader != null) reader.close();
+    }
+    FST<Long> fst = builder.finish();
+    System.err.println("compiled " + (fst == null ? 0 : fst.getNodeCount()) + " nodes of order " + order
+                       + " from '" + index + "'");
+    return fst;
+  }
+
+  /** True if <code>key</code> has <code>order</code> tokens, none with a part of speech. */
+  private static boolean isPlain(String key, int order) {
+    String[] tokens = key.split(" ");
+    if (tokens.length != order) return false;
+    for (String token : tokens) {
+      if (IndexNgrams.ENTRY_PATTERN_2.matcher(token).matches()) return false;
+      Matcher match = IndexNgrams.ENTRY_PATTERN_1.matcher(token);
+      if (!match.matches() || match.group(2) != null) return false;
+    }
+    return true;
+  }
+
+  /** Compile the FSTs, or predict the next words of the contexts read from standard input. */
+  public static void main(String[] args) {
+    String usage = "java org.apache.lucene.ngram.NgramPredictor -model DIR"
+                 + " [-index INDEX_PATH ... [-years FROM-TO] [-min-count N]] [-top K]\n\n"
+                 + "With -index, this compiles the bigram, trigram, ... indexes given in order into DIR."
+                 + " Otherwise it reads one context per line and prints the K most frequent next words"
+                 + " as lines context TAB rank TAB word TAB count TAB order";
+    String modelPath = null;
+    List<File> indexes = new ArrayList<File>();
+    int fromYear = NgramFields.FIRST_YEAR;
+    int toYear = NgramFields.LAST_YEAR;
+    long minCount = 1;
+    int top = 10;
+    for(int i=0;i<args.length;i++) {
+      if ("-model".equals(args[i])) {
+        modelPath = args[i+1];
+        i++;
+      } else if ("-index".equals(args[i])) {
+        indexes.add(new File(args[i+1]));
+        i++;
+      } else if ("-years".equals(args[i])) {
+        String[] range = args[i+1].split("-");
+        fromYear = Math.max(Integer.parseInt(range[0]), NgramFields.FIRST_YEAR);
+        toYear = Math.min(Integer.parseInt(range[range.length - 1]), NgramFields.LAST_YEAR);
+        i++;
+      } else if ("-min-count".equals(args[i])) {
+        minCount = Long.parseLong(args[i+1]);
+        i++;
+      } else if ("-top".equals(args[i])) {
+        top = Integer.parseInt(args[i+1]);
+        i++;
+      } else if ("-h".equals(args[i]) || "-help".equals(args[i])) {
+        System.out.println(usage);
+        System.exit(0);
+      }
+    }
+
+    if (modelPath == null || fromYear > toYear) {
+      System.err.println("Usage: " + usage);
+      System.exit(1);
+    }
+
+    Date start = new Date();
+    try {
+      File model = new File(modelPath);
+      if (!indexes.isEmpty()) {
+        NgramPredictor.build(indexes.toArray(new File[indexes.size()]), fromYear, toYear, minCount).save(model);
+        System.err.println("Compiled " + indexes.size() + " orders for " + fromYear + "-" + toYear
+                           + " into '" + modelPath + "'");
+      } else {
+        NgramPredictor predictor = NgramPredictor.load(model);
+        BufferedReader in = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+        String line;
+        while ((line = in.readLine()) != null) {
+          int rank = 1;
+          for (Prediction p : predictor.predict(line, top)) {
+            System.out.println(line.trim() + "\t" + rank++ + "\t" + p.word + "\t" + p.count + "\t" + p.order);
+          }
+        }
+      }
+
+      Date end = new Date();
+      System.err.println(end.getTime() - start.getTime() + " total milliseconds");
+
+    } catch (IOException e) {
+      System.out.println(" caught a " + e.getClass() +
+       "\n with message: " + e.getMessage());
+    }
+  }
+}
@@ -0,0 +1,135 @@
+package org.apache.lucene.ngram;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.KeepOnlyLastCommitDeletionPolicy;
+import org.apache.lucene.index.SnapshotDeletionPolicy;
+import org.apache.lucene.replicator.IndexRevision;
+import org.apache.lucene.replicator.IndexInputInputStream;
+import org.apache.lucene.replicator.Revision;
+import org.apache.lucene.replicator.RevisionFile;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IOContext;
+
+/**
+ * Publishes the commits of an ngram index writer as {@link IndexRevision}s
+ * to a {@link SpoolReplicator}, for replicas on other machines.
+ * The {@link NgramVocabulary#FILE_NAME vocabulary} of an encoded index
+ * is published with every revision, ahead of the segments file.
+ * <p>
+ * The writer must be configured with {@link #configure(IndexWriterConfig)}
+ * and stay open until the publisher is closed.
+ */
+public class NgramPublisher implements Closeable {
+
+  private final IndexWriter writer;
+  private final SpoolReplicator spool;
+
+  /** Publishes commits of <code>writer</code> to <code>spool</code>. */
+  public NgramPublisher(IndexWriter writer, File spool) throws IOException {
+    this.writer = writer;
+    this.spool = new SpoolReplicator(spool);
+  }
+
+  /** Keeps published commits from being deleted while replicas copy them. */
+  public static IndexWriterConfig configure(IndexWriterConfig iwc) {
+    return iwc.setIndexDeletionPolicy(new SnapshotDeletionPolicy(new KeepOnlyLastCommitDeletionPolicy()));
+  }
+
+  /** Publishes the last commit of the writer, unless it is the one published last. */
+  public synchronized void publish() throws IOException {
+    Revision revision = new VocabularyRevision(writer);
+    long start = System.currentTimeMillis();
+    spool.publish(revision);
+    IndexNgrams.log.println("published revision " + revision.getVersion() + " in "
+                            + (System.currentTimeMillis() - start) + " ms");
+  }
+
+  /** Closes the replicator, the writer is left open. */
+  @Override
+  public void close() throws IOException {
+    spool.close();
+  }
+
+  /** An {@link IndexRevision} that also lists the vocabulary file of an encoded index. */
+  private static final class VocabularyRevision implements Revision {
+    private final IndexRevision revision;
+    private final Directory dir;
+    private final Map<String,List<RevisionFile>> sourceFiles;
+
+    VocabularyRevision(IndexWriter writer) throws IOException {
+      this.revision = new IndexRevision(writer);
+      this.dir = writer.getDirectory();
+      Map<String,List<RevisionFile>> files = revision.getSourceFiles();
+      if (dir.fileExists(NgramVocabulary.FILE_NAME)) {
+        Map.Entry<String,List<RevisionFile>> index = files.entrySet().iterator().next();
+        List<RevisionFile> withVocabulary = new ArrayList<RevisionFile>(index.getValue());
+        RevisionFile vocabulary = new RevisionFile(NgramVocabulary.FILE_NAME);
+        vocabulary.size = dir.fileLength(NgramVocabulary.FILE_NAME);
+        // segments_N must stay last
+        withVocabulary.add(withVocabulary.size() - 1, vocabulary);
+        files = Collections.singletonMap(index.getKey(), withVocabulary);
+      }
+      this.sourceFiles = files;
+    }
+
+    @Override
+    public int compareTo(String version) {
+      return revision.compareTo(version);
+    }
+
+    @Override
+    public int compareTo(Revision o) {
+      return revision.compareTo(o.getVersion());
+    }
+
+    @Override
+    public String getVersion() {
+      return revision.getVersion();
+    }
+
+    @Override
+    public Map<String,List<RevisionFile>> getSourceFiles() {
+      return sourceFiles;
+    }
+
+    @Override
+    public InputStream open(String source, String fileName) throws IOException {
+      if (fileName.equals(NgramVocabulary.FILE_NAME)) {
+        return new IndexInputInputStream(dir.openInput(fileName, IOContext.READONCE));
+      }
+      return revision.open(source, fileName);
+    }
+
+    @Override
+    public void release() throws IOException {
+      revision.release();
+    }
+  }
+}
@@ -0,0 +1,277 @@
+package org.apache.lucene.ngram;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexFileNames;
+import org.apache.lucene.index.SegmentInfos;
+import org.apache.lucene.replicator.IndexInputInputStream;
+import org.apache.lucene.replicator.IndexReplicationHandler;
+import org.apache.lucene.replicator.PerSessionDirectoryFactory;
+import org.apache.lucene.replicator.ReplicationClient;
+import org.apache.lucene.replicator.Replicator;
+import org.apache.lucene.replicator.RevisionFile;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IOContext;
+
+/**
+ * Keeps a local copy of a published ngram index up to date, see
+ * {@link NgramPublisher}.
+ * <p>
+ * A {@link ReplicationClient} polls the {@link SpoolReplicator} of the
+ * publisher and copies only the files that the local copy does not have
+ * yet into a per session work directory, from where the
+ * {@link IndexReplicationHandler} moves them into the index and removes
+ * files that are no longer used. Files the local copy has under the same
+ * name but with another checksum, as after the published index was
+ * recreated, are copied again; the commits of the previous index are
+ * removed when the recreated one starts over at a lower generation.
+ * With <code>-port</code> the replica
+ * also serves the index with an {@link NgramServer}, reopened after every
+ * update.
+ */
+public class NgramReplica {
+
+  private NgramReplica() {}
+
+  /** Replicate a published ngram index. */
+  public static void main(String[] args) throws Exception {
+    String usage = "java org.apache.lucene.ngram.NgramReplica"
+                 + " -spool SPOOL_DIR [-index INDEX_PATH] [-work DIR] [-interval sec]"
+                 + " [-port PORT] [-threads N] [-field f] [-madvise]\n\n"
+                 + "Copies new revisions published to SPOOL_DIR into INDEX_PATH"
+                 + " and with -port serves it on 127.0.0.1:PORT (see NgramServer).";
+    String spoolPath = null;
+    String indexPath = "index";
+    String workPath = null;
+    double intervalSec = 60;
+    String field = "term_0";
+    int port = -1;
+    int threads = Runtime.getRuntime().availableProcessors();
+    boolean madvise = false;
+    for(int i=0;i<args.length;i++) {
+      if ("-spool".equals(args[i])) {
+        spoolPath = args[i+1];
+        i++;
+      } else if ("-index".equals(args[i])) {
+        indexPath = args[i+1];
+        i++;
+      } else if ("-work".equals(args[i])) {
+        workPath = args[i+1];
+        i++;
+      } else if ("-interval".equals(args[i])) {
+        intervalSec = Double.parseDouble(args[i+1]);
+        i++;
+      } else if ("-port".equals(args[i])) {
+        port = Integer.parseInt(args[i+1]);
+        i++;
+      } else if ("-threads".equals(args[i])) {
+        threads = Integer.parseInt(args[i+1]);
+        i++;
+      } else if ("-field".equals(args[i])) {
+        field = args[i+1];
+        i++;
+      } else if ("-madvise".equals(args[i])) {
+        madvise = true;
+      } else if ("-h".equals(args[i]) || "-help".equals(args[i])) {
+        System.out.println(usage);
+        System.exit(0);
+      }
+    }
+
+    if (spoolPath == null) {
+      System.err.println("Usage: " + usage);
+      System.exit(1);
+    }
+    if (workPath == null) {
+      workPath = indexPath + ".work";
+    }
+
+    final File indexDir = new File(indexPath);
+    final Directory dir = NgramServer.openDirectory(indexDir, madvise);
+    final SearcherManager[] manager = new SearcherManager[1];
+    final NgramServer[] server = new NgramServer[1];
+    final NgramWarmer warmer = new NgramWarmer(field);
+    final AtomicBoolean replaced = new AtomicBoolean();
+    Callable<Boolean> callback = new Callable<Boolean>() {
+      @Override
+      public Boolean call() throws IOException {
+        System.err.println("Replicated revision " + IndexReplicationHandler.getLastCommit(dir).getGeneration());
+        // replicated ahead of the segments file, and replaced if the index was recreated
+        NgramVocabulary vocabulary = NgramVocabulary.forIndex(indexDir);
+        warmer.setVocabulary(vocabulary);
+        synchronized (manager) {
+          if (server[0] != null) {
+            server[0].setVocabulary(vocabulary);
+          }
+          if (manager[0] != null && replaced.getAndSet(false)) {
+            // a refresh would keep the open readers of replaced segments with the same name
+            SearcherManager previous = manager[0];
+            manager[0] = new SearcherManager(dir, warmer);
+            server[0].setSearcherManager(manager[0]);
+            previous.close();
+          } else if (manager[0] != null) {
+            manager[0].maybeRefresh();
+          }
+        }
+        return true;
+      }
+    };
+
+    Replicator replicator = new SpoolReplicator(new File(spoolPath));
+    final ReplicationClient client = new ChecksumReplicationClient(replicator, new RecreatedIndexHandler(dir, callback),
+                                                                   new PerSessionDirectoryFactory(new File(workPath)), dir, replaced);
+    client.updateNow();
+
+    if (port >= 0) {
+      while (!DirectoryReader.indexExists(dir)) {
+        System.err.println("Waiting for the first revision in '" + spoolPath + "'");
+        Thread.sleep((long) (intervalSec * 1000));
+        client.updateNow();
+      }
+      NgramVocabulary vocabulary = NgramVocabulary.forIndex(indexDir);
+      warmer.setVocabulary(vocabulary);
+      synchronized (manager) {
+        manager[0] = new SearcherManager(dir, warmer);
+        server[0] = new NgramServer(manager[0], warmer, field,
+                                    new InetSocketAddress(InetAddress.getLoopbackAddress(), port), threads);
+        server[0].setVocabulary(vocabulary);
+      }
+      System.err.println("Serving '" + indexPath + "' on port " + server[0].getPort());
+    }
+
+    client.startUpdateThread((long) (intervalSec * 1000), "ngram-replica");
+    final NgramServer running = server[0];
+    Runtime.getRuntime().addShutdownHook(new Thread() {
+      @Override
+      public void run() {
+        client.close();
+        try {
+          if (running != null) {
+            running.close();
+          }
+          synchronized (manager) {
+            if (manager[0] != null) {
+              manager[0].close();
+            }
+          }
+        } catch (IOException e) {
+          System.err.println("Failed to close index: " + e);
+        }
+      }
+    });
+    Thread.currentThread().join();
+  }
+
+  /**
+   * Also requires the files of the local index whose size or checksum
+   * differ from the published ones, and then sets <code>replaced</code>.
+   */
+  static final class ChecksumReplicationClient extends ReplicationClient {
+    private final Replicator replicator;
+    private final Directory dir;
+    private final AtomicBoolean replaced;
+
+    ChecksumReplicationClient(Replicator replicator, ReplicationHandler handler, SourceDirectoryFactory factory,
+                              Directory dir, AtomicBoolean replaced) {
+      super(replicator, handler, factory);
+      this.replicator = replicator;
+      this.dir = dir;
+      this.replaced = replaced;
+    }
+
+    @Override
+    protected Map<String,List<RevisionFile>> requiredFiles(Map<String,List<RevisionFile>> newRevisionFiles) {
+      Map<String,List<RevisionFile>> required = new HashMap<String,List<RevisionFile>>();
+      for (Map.Entry<String,List<RevisionFile>> e : super.requiredFiles(newRevisionFiles).entrySet()) {
+        Set<RevisionFile> missing = new HashSet<RevisionFile>(e.getValue());
+        // keep the order, segments_N is last
+        List<RevisionFile> files = new ArrayList<RevisionFile>();
+        for (RevisionFile file : newRevisionFiles.get(e.getKey())) {
+          if (missing.contains(file)) {
+            files.add(file);
+          } else if (changed(e.getKey(), file)) {
+            files.add(file);
+            replaced.set(true);
+          }
+        }
+        required.put(e.getKey(), files);
+      }
+      return required;
+    }
+
+    private boolean changed(String source, RevisionFile file) {
+      try {
+        if (dir.fileLength(file.fileName) != file.size) {
+          return true;
+        }
+        return SpoolReplicator.checksum(file.fileName, replicator.obtainFile(null, source, file.fileName), file.size)
+          != SpoolReplicator.checksum(file.fileName,
+                                      new IndexInputInputStream(dir.openInput(file.fileName, IOContext.READONCE)), file.size);
+      } catch (IOException e) {
+        // missing or unreadable, copied again
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Deletes the local commits that are newer than a revision of a
+   * recreated index before it is installed, the last commit of the
+   * directory is the one that is opened.
+   */
+  static final class RecreatedIndexHandler extends IndexReplicationHandler {
+    private final Directory dir;
+
+    RecreatedIndexHandler(Directory dir, Callable<Boolean> callback) throws IOException {
+      super(dir, callback);
+      this.dir = dir;
+    }
+
+    @Override
+    public void revisionReady(String version, Map<String,List<RevisionFile>> revisionFiles,
+                              Map<String,List<String>> copiedFiles, Map<String,Directory> sourceDirectory)
+      throws IOException {
+      String current = currentVersion();
+      long generation = Long.parseLong(version, 16);
+      if (current != null && generation < Long.parseLong(current, 16)) {
+        for (String file : dir.listAll()) {
+          if (file.startsWith(IndexFileNames.SEGMENTS) && !file.equals(IndexFileNames.SEGMENTS_GEN)
+              && SegmentInfos.generationFromSegmentsFileName(file) >= generation) {
+            dir.deleteFile(file);
+          }
+        }
+      }
+      super.revisionReady(version, revisionFiles, copiedFiles, sourceDirectory);
+    }
+  }
+}
@@ -0,0 +1,574 @@
+package org.apache.lucene.ngram;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.queryparser.classic.QueryParser;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.MadviseMMapDirectory;
+import org.apache.lucene.store.NativeUnixDirectory;
+import org.apache.lucene.util.Version;
+
+/**
+ * Persistent query server keeping the index open and warm, so short
+ * jobs do not pay for JVM startup and cold caches on every invocation.
+ * <p>
+ * Listens on a loopback TCP port and serves each connection with its
+ * own thread of a fixed pool. A connection while all threads are busy
+ * is answered with <code>ERR busy</code> and closed, instead of waiting
+ * for a thread unanswered. The protocol is line based UTF-8, one request
+ * per line, answered in order:
+ * <ul>
+ *   <li><code>AGGREGATE query</code> &rarr; <code>OK c1800 ... c2008</code>,
+ *       the summed timeline of all hits</li>
+ *   <li><code>LOOKUP query</code> &rarr; <code>OK n</code> followed by
+ *       <code>n</code> lines <code>key TAB c1800 ... c2008</code></li>
+ *   <li><code>FEATURES query</code> &rarr; <code>OK n</code> followed by
+ *       <code>n</code> lines <code>key TAB mu sigma total</code>, the
+ *       normalized timeline moments of each hit</li>
+ *   <li><code>POS i query</code> &rarr; <code>OK n</code> followed by
+ *       <code>n</code> lines <code>tag TAB count TAB c1800 ... c2008</code>,
+ *       the hits per part of speech at position <code>i</code> and their
+ *       summed timelines, see {@link NgramPosFacets}</li>
+ *   <li><code>KEY entry</code> &rarr; <code>OK c1800 ... c2008</code>, the
+ *       timeline of the raw entry, e.g. <code>KEY the_DET cat</code>;
+ *       <code>KEY/i entry</code> ignores case and answers with the summed
+ *       timeline of all case variants, see {@link NgramCaseFolder}</li>
+ *   <li><code>BATCH n</code> followed by <code>n</code> requests, answered
+ *       back to back and flushed once</li>
+ *   <li><code>QUIT</code> closes the connection</li>
+ * </ul>
+ * <code>AGGREGATE</code>, <code>LOOKUP</code> and <code>KEY</code> take an optional
+ * resolution, e.g. <code>AGGREGATE:10 query</code> answers with one
+ * value per decade, read from the rollup columns of {@link NgramTimeline},
+ * and an optional inclusive year range, e.g.
+ * <code>LOOKUP:10@1900-1950 query</code> answers with the decades 1900
+ * to 1950 only, decoding no other part of the timelines. Flags come
+ * first, e.g. <code>KEY/i:10@1900-1950 apple</code>. With the flag
+ * <code>s</code>, the other commands take a subsequence of terms that
+ * may occur at any position instead of a query, e.g.
+ * <code>LOOKUP/s of the</code> or <code>AGGREGATE/s of * the</code>,
+ * see {@link NgramSubsequences}.
+ * Failed requests are answered with <code>ERR message</code>. Queries
+ * use the classic query parser syntax on the default field.
+ */
+public class NgramServer implements Closeable {
+
+  /** Longest wait before accepting again after accept failed repeatedly. */
+  private static final long MAX_ACCEPT_BACKOFF_MILLIS = 1000;
+
+  private volatile SearcherManager manager;
+  private final NgramWarmer warmer;
+  private volatile NgramVocabulary vocabulary;
+  private volatile NgramLatencies latencies;
+  private final String field;
+  private final ServerSocket serverSocket;
+  private final ThreadPoolExecutor pool;
+  private final Thread acceptor;
+
+  /**
+   * Starts serving <code>manager</code> on <code>address</code>.
+   * The manager is not closed with the server. If <code>warmer</code>
+   * is not null, served queries are recorded for replay on reopen.
+   */
+  public NgramServer(SearcherManager manager, NgramWarmer warmer, String field,
+                     InetSocketAddress address, int threads)
+    throws IOException {
+    this.manager = manager;
+    this.warmer = warmer;
+    this.field = field;
+    this.serverSocket = new ServerSocket();
+    serverSocket.setReuseAddress(true);
+    serverSocket.bind(address);
+    // no queue: a connection is served right away or rejected
+    this.pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new SynchronousQueue<Runnable>());
+    this.acceptor = new Thread("ngram-server-accept") {
+      @Override
+      public void run() {
+        acceptLoop();
+      }
+    };
+    acceptor.setDaemon(true);
+    acceptor.start();
+  }
+
+  /**
+   * Serves <code>manager</code> from now on, e.g. of an index that was
+   * replaced. Requests already running finish on the previous manager.
+   */
+  public void setSearcherManager(SearcherManager manager) {
+    this.manager = manager;
+  }
+
+  /** Translates queries and keys for a vocabulary encoded index. */
+  public void setVocabulary(NgramVocabulary vocabulary) {
+    this.vocabulary = vocabulary;
+  }
+
+  /** Records the latency of every request in <code>latencies</code>, see {@link NgramMergeScheduler}. */
+  public void setLatencies(NgramLatencies latencies) {
+    this.latencies = latencies;
+  }
+
+  /** The port the server listens on. */
+  public int getPort() {
+    return serverSocket.getLocalPort();
+  }
+
+  private void acceptLoop() {
+    long backoffMillis = 0;
+    while (!serverSocket.isClosed()) {
+      final Socket socket;
+      try {
+        socket = serverSocket.accept();
+        backoffMillis = 0;
+      } catch (IOException e) {
+        if (!serverSocket.isClosed()) {
+          // e.g. out of file descriptors, which does not go away at once
+          backoffMillis = Math.min(MAX_ACCEPT_BACKOFF_MILLIS, Math.max(1, 2 * backoffMillis));
+          System.err.println("Failed to accept connection, retrying in " + backoffMillis + " ms: " + e);
+          try {
+            Thread.sleep(backoffMillis);
+          } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            return;
+          }
+        }
+        continue;
+      }
+      try {
+        execute(socket);
+      } catch (RejectedExecutionException e) {
+        reject(socket);
+      }
+    }
+  }
+
+  /** Answers a connection that no thread is free for, or that came in while closing. */
+  private static void reject(Socket socket) {
+    try {
+      Writer out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+      out.write("ERR busy\n");
+      out.flush();
+    } catch (IOException e) {
+      // client went away
+    } finally {
+      try {
+        socket.close();
+      } catch (IOException e) {
+        // ignore
+      }
+    }
+  }
+
+  private void execute(final Socket socket) {
+    pool.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          serve(socket);
+        } catch (IOException e) {
+          System.err.println("Connection failed: " + e);
+        } finally {
+          try {
+            socket.close();
+          } catch (IOException e) {
+            // ignore
+          }
+        }
+      }
+    });
+  }
+
+  private void serve(Socket socket) throws IOException {
+    socket.setTcpNoDelay(true);
+    BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+    Writer out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), 1 << 16);
+    // :Post-Release-Update-Version.LUCENE_XY:
+    QueryParser parser = new QueryParser(Version.LUCENE_4_10_0, field, new KeywordAnalyzer());
+    StringWriter response = new StringWriter();
+    String line;
+    try {
+      while ((line = in.readLine()) != null) {
+        line = line.trim();
+        if (line.length() == 0) continue;
+        if (line.equalsIgnoreCase("QUIT")) break;
+        if (startsWith(line, "BATCH ")) {
+          int n;
+          try {
+            n = Integer.parseInt(line.substring(6).trim());
+          } catch (NumberFormatException e) {
+            out.write("ERR bad batch size\n");
+            out.flush();
+            continue;
+          }
+          for (int i = 0; i < n && (line = in.readLine()) != null; i++) {
+            timedHandle(parser, line.trim(), response, out);
+          }
+        } else {
+          timedHandle(parser, line, response, out);
+        }
+        out.flush();
+      }
+    } catch (SocketException e) {
+      // client went away
+    }
+  }
+
+  private void timedHandle(QueryParser parser, String request, StringWriter response, Writer out) throws IOException {
+    NgramLatencies latencies = this.latencies;
+    if (latencies == null) {
+      respond(parser, request, response, out);
+      return;
+    }
+    long start = System.nanoTime();
+    try {
+      respond(parser, request, response, out);
+    } finally {
+      latencies.record(System.nanoTime() - start);
+    }
+  }
+
+  /**
+   * Answers <code>request</code> through <code>response</code>, so a
+   * request failing part way is answered with <code>ERR</code> alone.
+   */
+  private void respond(QueryParser parser, String request, StringWriter response, Writer out) throws IOException {
+    response.getBuffer().setLength(0);
+    try {
+      handle(parser, request, response);
+    } catch (RuntimeException e) {
+      // e.g. too many clauses of a wide prefix
+      System.err.println("Request '" + request + "' failed: " + e);
+      response.getBuffer().setLength(0);
+      response.write("ERR " + e.toString().replace('\n', ' ') + "\n");
+    }
+    out.write(response.toString());
+  }
+
+  private void handle(QueryParser parser, String request, Writer out) throws IOException {
+    int space = request.indexOf(' ');
+    String command = space < 0 ? request : request.substring(0, space);
+    String argument = space < 0 ? "" : request.substring(space + 1).trim();
+    int fromYear = NgramFields.FIRST_YEAR;
+    int toYear = NgramFields.LAST_YEAR;
+    int at = command.indexOf('@');
+    if (at >= 0) {
+      String range = command.substring(at + 1);
+      int dash = range.indexOf('-');
+      try {
+        fromYear = Integer.parseInt(dash < 0 ? range : range.substring(0, dash));
+        toYear = dash < 0 ? fromYear : Integer.parseInt(range.substring(dash + 1));
+      } catch (NumberFormatException e) {
+        out.write("ERR bad year range\n");
+        return;
+      }
+      if (fromYear > toYear || toYear < NgramFields.FIRST_YEAR || fromYear > NgramFields.LAST_YEAR) {
+        out.write("ERR bad year range\n");
+        return;
+      }
+      command = command.substring(0, at);
+    }
+    int resolution = 1;
+    int colon = command.indexOf(':');
+    if (colon >= 0) {
+      try {
+        resolution = Integer.parseInt(command.substring(colon + 1));
+        NgramTimeline.length(resolution);
+      } catch (IllegalArgumentException e) {
+        out.write("ERR bad resolution\n");
+        return;
+      }
+      command = command.substring(0, colon);
+    }
+    boolean ignoreCase = false;
+    boolean subsequence = false;
+    int slash = command.indexOf('/');
+    if (slash >= 0) {
+      String flag = command.substring(slash + 1);
+      ignoreCase = flag.equalsIgnoreCase("i");
+      subsequence = flag.equalsIgnoreCase("s");
+      if (!ignoreCase && !subsequence) {
+        out.write("ERR bad flags\n");
+        return;
+      }
+      command = command.substring(0, slash);
+    }
+    boolean key = command.equalsIgnoreCase("KEY");
+    if ((at >= 0 || colon >= 0) && !command.equalsIgnoreCase("AGGREGATE") && !command.equalsIgnoreCase("LOOKUP") && !key) {
+      out.write("ERR no resolution or year range for '" + command + "'\n");
+      return;
+    }
+    if ((ignoreCase && !key) || (subsequence && key)) {
+      out.write("ERR no flag '" + (ignoreCase ? "i" : "s") + "' for '" + command + "'\n");
+      return;
+    }
+    SearcherManager manager = this.manager;
+    if (key) {
+      long[] sum = new long[NgramLookup.sliceLength(resolution, fromYear, toYear)];
+      IndexSearcher searcher = manager.acquire();
+      try {
+        NgramLookup.lookupKey(searcher, argument, ignoreCase, vocabulary, sum, resolution, fromYear, toYear);
+      } finally {
+        manager.release(searcher);
+      }
+      out.write("OK");
+      writeTimeline(sum, out);
+      out.write('\n');
+      return;
+    }
+    int position = 0;
+    if (command.equalsIgnoreCase("POS")) {
+      space = argument.indexOf(' ');
+      try {
+        position = Integer.parseInt(space < 0 ? argument : argument.substring(0, space));
+      } catch (NumberFormatException e) {
+        out.write("ERR bad position\n");
+        return;
+      }
+      argument = space < 0 ? "" : argument.substring(space + 1).trim();
+    }
+    NgramVocabulary vocabulary = this.vocabulary;
+    Query query;
+    if (subsequence) {
+      try {
+        query = NgramSubsequences.query(argument);
+      } catch (IllegalArgumentException e) {
+        out.write("ERR " + e.getMessage() + "\n");
+        return;
+      }
+    } else {
+      try {
+        query = parser.parse(argument);
+      } catch (ParseException e) {
+        out.write("ERR failed to parse query '" + argument + "'\n");
+        return;
+      }
+      if (warmer != null) {
+        warmer.record(argument);
+      }
+      if (vocabulary != null) {
+        query = vocabulary.translate(query);
+      }
+    }
+
+    IndexSearcher searcher = manager.acquire();
+    try {
+      if (command.equalsIgnoreCase("AGGREGATE")) {
+        long[] sum = new long[NgramLookup.sliceLength(resolution, fromYear, toYear)];
+        NgramLookup.aggregate(searcher, query, sum, resolution, fromYear, toYear);
+        out.write("OK");
+        writeTimeline(sum, out);
+        out.write('\n');
+      } else if (command.equalsIgnoreCase("LOOKUP")) {
+        ScoreDoc[] hits = NgramLookup.search(searcher, query);
+        long[] tf = new long[NgramLookup.sliceLength(resolution, fromYear, toYear)];
+        out.write("OK " + hits.length + "\n");
+        for (ScoreDoc hit : hits) {
+          NgramLookup.readTimeline(searcher, hit.doc, tf, resolution, fromYear, toYear);
+          out.write(NgramLookup.key(searcher, hit.doc, vocabulary));
+          out.write('\t');
+          writeTimeline(tf, out);
+          out.write('\n');
+        }
+      } else if (command.equalsIgnoreCase("FEATURES")) {
+        writeFeatures(searcher, NgramLookup.search(searcher, query), vocabulary, out);
+      } else if (command.equalsIgnoreCase("POS")) {
+        List<NgramPosFacets.Distribution> tags = NgramPosFacets.distribution(searcher, query, position);
+        out.write("OK " + tags.size() + "\n");
+        for (NgramPosFacets.Distribution tag : tags) {
+          out.write(tag.pos + "\t" + tag.count + "\t");
+          writeTimeline(tag.timeline, out);
+          out.write('\n');
+        }
+      } else {
+        out.write("ERR unknown command '" + command + "'\n");
+      }
+    } finally {
+      manager.release(searcher);
+    }
+  }
+
+  /** Computes the moments of the hits block by block with {@link NgramFeatureKernels}. */
+  private static void writeFeatures(IndexSearcher searcher, ScoreDoc[] hits, NgramVocabulary vocabulary,
+                                    Writer out) throws IOException {
+    out.write("OK " + hits.length + "\n");
+    NgramFeatureKernels.Block block = new NgramFeatureKernels.Block(Math.max(1, Math.min(hits.length, 256)));
+    long[] tf = new long[NgramFields.NUM_YEARS];
+    int first = 0;
+    for (int i = 0; i < hits.length; i++) {
+      NgramLookup.readTimeline(searcher, hits[i].doc, tf);
+      block.add(tf, null);
+      if (block.isFull() || i == hits.length - 1) {
+        block.computeMoments();
+        for (int row = 0; row < block.size(); row++) {
+          out.write(NgramLookup.key(searcher, hits[first + row].doc, vocabulary));
+          out.write("\t" + block.mu_tf[row] + " " + block.sigma_tf[row] + " " + block.total_tf[row] + "\n");
+        }
+        first = i + 1;
+        block.clear();
+      }
+    }
+  }
+
+  private static void writeTimeline(long[] tf, Writer out) throws IOException {
+    for (int y = 0; y < tf.length; y++) {
+      out.write(' ');
+      out.write(Long.toString(tf[y]));
+    }
+  }
+
+  private static boolean startsWith(String line, String prefix) {
+    return line.regionMatches(true, 0, prefix, 0, prefix.length());
+  }
+
+  /** Stops accepting connections and waits for running requests. */
+  @Override
+  public void close() throws IOException {
+    serverSocket.close();
+    pool.shutdownNow();
+    try {
+      pool.awaitTermination(10, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Opens the directory of a served index, with <code>madvise</code> as a
+   * {@link MadviseMMapDirectory} that turns off read-ahead for the files
+   * read by random lookups.
+   */
+  public static Directory openDirectory(File path, boolean madvise) throws IOException {
+    if (!madvise) {
+      return FSDirectory.open(path);
+    }
+    if (!MadviseMMapDirectory.isNativeAvailable()) {
+      System.err.println("libNativePosixUtil is not on the library path, '" + path + "' is mapped without advice");
+    }
+    return new MadviseMMapDirectory(path);
+  }
+
+  /**
+   * Opens the directory of an index that is written while it is served.
+   * With <code>directMerges</code> it is a {@link NativeUnixDirectory}
+   * that reads and writes large merges with O_DIRECT, so they do not
+   * evict the pages the queries need; everything else goes through the
+   * directory of {@link #openDirectory(File, boolean)}.
+   */
+  public static Directory openDirectory(File path, boolean madvise, boolean directMerges) throws IOException {
+    Directory dir = openDirectory(path, madvise);
+    if (!directMerges) {
+      return dir;
+    }
+    // both need libNativePosixUtil
+    if (!MadviseMMapDirectory.isNativeAvailable()) {
+      System.err.println("libNativePosixUtil is not on the library path, '" + path + "' is merged through the page cache");
+      return dir;
+    }
+    return new NativeUnixDirectory(path, dir);
+  }
+
+  /** Serve an existing ngram index. */
+  public static void main(String[] args) throws Exception {
+    String usage = "java org.apache.lucene.ngram.NgramServer"
+                 + " [-index INDEX_PATH] [-port PORT] [-threads N] [-field f] [-refresh sec]"
+                 + " [-warm-queries FILE] [-madvise]\n\n"
+                 + "Serves lookups on 127.0.0.1:PORT until killed.";
+    String indexPath = "index";
+    String field = "term_0";
+    int port = 7070;
+    int threads = Runtime.getRuntime().availableProcessors();
+    double refreshSec = 60;
+    String warmQueries = null;
+    boolean madvise = false;
+    for(int i=0;i<args.length;i++) {
+      if ("-index".equals(args[i])) {
+        indexPath = args[i+1];
+        i++;
+      } else if ("-port".equals(args[i])) {
+        port = Integer.parseInt(args[i+1]);
+        i++;
+      } else if ("-threads".equals(args[i])) {
+        threads = Integer.parseInt(args[i+1]);
+        i++;
+      } else if ("-field".equals(args[i])) {
+        field = args[i+1];
+        i++;
+      } else if ("-refresh".equals(args[i])) {
+        refreshSec = Double.parseDouble(args[i+1]);
+        i++;
+      } else if ("-warm-queries".equals(args[i])) {
+        warmQueries = args[i+1];
+        i++;
+      } else if ("-madvise".equals(args[i])) {
+        madvise = true;
+      } else if ("-h".equals(args[i]) || "-help".equals(args[i])) {
+        System.out.println(usage);
+        System.exit(0);
+      }
+    }
+
+    NgramVocabulary vocabulary = NgramVocabulary.forIndex(new File(indexPath));
+    NgramWarmer warmer = new NgramWarmer(field);
+    warmer.setVocabulary(vocabulary);
+    if (warmQueries != null) {
+      warmer.recordAll(new File(warmQueries));
+    }
+    Directory dir = openDirectory(new File(indexPath), madvise);
+    SearcherManager manager = new SearcherManager(dir, warmer);
+    NgramServer server = new NgramServer(manager, warmer, field,
+                                         new InetSocketAddress(InetAddress.getLoopbackAddress(), port), threads);
+    server.setVocabulary(vocabulary);
+    System.out.println("Serving '" + indexPath + "' on port " + server.getPort());
+
+    // Pick up commits of other writers
+    long refreshMillis = (long) (refreshSec * 1000);
+    while (true) {
+      Thread.sleep(refreshMillis);
+      manager.maybeRefresh();
+    }
+  }
+}
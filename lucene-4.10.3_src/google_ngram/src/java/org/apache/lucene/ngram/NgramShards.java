@@ -0,0 +1,290 @@
+package org.apache.lucene.ngram;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.PrefixQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.IOUtils;
+
+/**
+ * An ngram index split into sub-indexes by ranges of {@link NgramFields#KEY},
+ * like the leading letter shards Google publishes the raw data in.
+ * <p>
+ * The root directory holds a {@link #LAYOUT} file and one sub-index
+ * directory per shard. Each line of the layout is a shard name and
+ * the smallest key of the shard, the first shard has an empty lower
+ * bound. Keys compare in term order, so a shard covers all keys from
+ * its lower bound up to the lower bound of the next shard.
+ * <p>
+ * Shards are opened lazily: {@link #route(Query)} opens only the shards
+ * that can contain hits of an exact key lookup or a prefix of the first
+ * term, and fans other queries out across all shards. A search over
+ * several shards visits their segments one after the other, unless
+ * an executor is set with {@link #setExecutor(ExecutorService)}.
+ */
+public class NgramShards implements Closeable {
+
+  /** Name of the layout file in the root directory. */
+  public static final String LAYOUT = "shards.txt";
+
+  private final File root;
+  private final String[] names;
+  private final BytesRef[] lowers;
+  private final DirectoryReader[] readers;
+  private volatile ExecutorService executor;
+
+  private NgramShards(File root, String[] names, BytesRef[] lowers) {
+    this.root = root;
+    this.names = names;
+    this.lowers = lowers;
+    this.readers = new DirectoryReader[names.length];
+  }
+
+  /** True if <code>root</code> contains a sharded index. */
+  public static boolean isSharded(File root) {
+    return new File(root, LAYOUT).isFile();
+  }
+
+  /**
+   * Creates the layout of a new sharded index in <code>root</code>,
+   * with a shard boundary before each of the sorted <code>splits</code>.
+   */
+  public static NgramShards create(File root, String[] splits) throws IOException {
+    String[] sorted = splits.clone();
+    Arrays.sort(sorted);
+    String[] names = new String[sorted.length + 1];
+    BytesRef[] lowers = new BytesRef[sorted.length + 1];
+    lowers[0] = new BytesRef();
+    for (int i = 0; i < sorted.length; i++) {
+      if (sorted[i].isEmpty() || (i > 0 && sorted[i].equals(sorted[i-1]))) {
+        throw new IllegalArgumentException("shard boundaries must be distinct and non empty: " + Arrays.toString(splits));
+      }
+      lowers[i+1] = new BytesRef(sorted[i]);
+    }
+    for (int i = 0; i < names.length; i++) {
+      names[i] = String.format(Locale.ROOT, "shard_%03d", i);
+    }
+
+    if (!root.isDirectory() && !root.mkdirs()) {
+      throw new IOException("Cannot create directory '" + root + "'");
+    }
+    Writer out = new OutputStreamWriter(new FileOutputStream(new File(root, LAYOUT)), StandardCharsets.UTF_8);
+    try {
+      for (int i = 0; i < names.length; i++) {
+        out.write(names[i] + "\t" + lowers[i].utf8ToString() + "\n");
+      }
+    } finally {
+      out.close();
+    }
+    return new NgramShards(root, names, lowers);
+  }
+
+  /** Opens the layout of the sharded index in <code>root</code>. */
+  public static NgramShards open(File root) throws IOException {
+    List<String> names = new ArrayList<String>();
+    List<BytesRef> lowers = new ArrayList<BytesRef>();
+    BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(new File(root, LAYOUT)), StandardCharsets.UTF_8));
+    try {
+      String line;
+      while ((line = in.readLine()) != null) {
+        if (line.length() == 0) continue;
+        int tab = line.indexOf('\t');
+        if (tab < 0) {
+          throw new IOException("Malformed shard layout line: '" + line + "'");
+        }
+        names.add(line.substring(0, tab));
+        lowers.add(new BytesRef(line.substring(tab + 1)));
+      }
+    } finally {
+      in.close();
+    }
+    if (names.isEmpty()) {
+      throw new IOException("Empty shard layout in '" + root + "'");
+    }
+    return new NgramShards(root, names.toArray(new String[names.size()]),
+                           lowers.toArray(new BytesRef[lowers.size()]));
+  }
+
+  /**
+   * Searches the segments of searchers over more than one shard in parallel
+   * on <code>executor</code>, or sequentially if it is null. Only searches
+   * for top hits are parallel, searches with a collector are not. The
+   * executor is not shut down by {@link #close()}.
+   */
+  public void setExecutor(ExecutorService executor) {
+    this.executor = executor;
+  }
+
+  /** Number of shards. */
+  public int size() {
+    return names.length;
+  }
+
+  /** Directory of shard <code>shard</code>. */
+  public File directory(int shard) {
+    return new File(root, names[shard]);
+  }
+
+  /** The shard that holds <code>key</code>. */
+  public int shardOf(String key) {
+    return shardOf(new BytesRef(key));
+  }
+
+  private int shardOf(BytesRef key) {
+    // last shard whose lower bound is <= key
+    int lo = 0, hi = lowers.length - 1;
+    while (lo < hi) {
+      int mid = (lo + hi + 1) >>> 1;
+      if (lowers[mid].compareTo(key) <= 0) {
+        lo = mid;
+      } else {
+        hi = mid - 1;
+      }
+    }
+    return lo;
+  }
+
+  /** Searcher over the shard that can contain <code>key</code>. */
+  public IndexSearcher forKey(String key) throws IOException {
+    int shard = shardOf(key);
+    return searcher(shard, shard);
+  }
+
+  /** Searcher over the shards that can contain keys starting with <code>prefix</code>. */
+  public IndexSearcher forPrefix(String prefix) throws IOException {
+    int[] range = prefixRange(new BytesRef(prefix));
+    return searcher(range[0], range[1]);
+  }
+
+  /** Searcher over all shards. */
+  public IndexSearcher all() throws IOException {
+    return searcher(0, names.length - 1);
+  }
+
+  /**
+   * Searcher over the shards that can contain hits of <code>query</code>.
+   * Exact {@link NgramFields#KEY} lookups go to one shard, lookups of the
+   * first term or of a key prefix to the shards of that prefix, and
+   * everything else to all shards. A boolean query is routed by its
+   * narrowest required clause.
+   */
+  public IndexSearcher route(Query query) throws IOException {
+    int[] range = range(query);
+    if (range == null) {
+      return all();
+    }
+    return searcher(range[0], range[1]);
+  }
+
+  /** First and last shard that can contain hits of <code>query</code>, or null for all. */
+  private int[] range(Query query) {
+    if (query instanceof TermQuery) {
+      Term term = ((TermQuery) query).getTerm();
+      if (term.field().equals(NgramFields.KEY)) {
+        int shard = shardOf(term.bytes());
+        return new int[] { shard, shard };
+      } else if (term.field().equals(NgramFields.term(0))) {
+        return prefixRange(term.bytes());
+      }
+    } else if (query instanceof PrefixQuery) {
+      Term prefix = ((PrefixQuery) query).getPrefix();
+      if (prefix.field().equals(NgramFields.KEY) || prefix.field().equals(NgramFields.term(0))) {
+        return prefixRange(prefix.bytes());
+      }
+    } else if (query instanceof BooleanQuery) {
+      int[] best = null;
+      for (BooleanClause clause : ((BooleanQuery) query).clauses()) {
+        if (!clause.isRequired()) continue;
+        int[] sub = range(clause.getQuery());
+        if (sub != null && (best == null || sub[1] - sub[0] < best[1] - best[0])) {
+          best = sub;
+        }
+      }
+      return best;
+    }
+    return null;
+  }
+
+  private int[] prefixRange(BytesRef prefix) {
+    int first = shardOf(prefix);
+    int last = first;
+    while (last + 1 < lowers.length && startsWith(lowers[last + 1], prefix)) {
+      last++;
+    }
+    return new int[] { first, last };
+  }
+
+  private static boolean startsWith(BytesRef ref, BytesRef prefix) {
+    if (ref.length < prefix.length) return false;
+    for (int i = 0; i < prefix.length; i++) {
+      if (ref.bytes[ref.offset + i] != prefix.bytes[prefix.offset + i]) return false;
+    }
+    return true;
+  }
+
+  private IndexSearcher searcher(int first, int last) throws IOException {
+    if (first == last) {
+      return new IndexSearcher(reader(first));
+    }
+    IndexReader[] subs = new IndexReader[last - first + 1];
+    for (int i = first; i <= last; i++) {
+      subs[i - first] = reader(i);
+    }
+    return new IndexSearcher(new MultiReader(subs, false), executor);
+  }
+
+  private synchronized DirectoryReader reader(int shard) throws IOException {
+    if (readers[shard] == null) {
+      readers[shard] = DirectoryReader.open(FSDirectory.open(directory(shard)));
+    }
+    return readers[shard];
+  }
+
+  /** Closes the shards opened so far. */
+  @Override
+  public synchronized void close() throws IOException {
+    IOUtils.close(readers);
+    Arrays.fill(readers, null);
+  }
+}
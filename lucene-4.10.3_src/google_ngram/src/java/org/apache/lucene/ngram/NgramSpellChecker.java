@@ -0,0 +1,390 @@
+package org.apache.lucene.ngram;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.regex.Matcher;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.DocsEnum;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.BoostAttribute;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.FuzzyTermsEnum;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.MaxNonCompetitiveBoostAttribute;
+import org.apache.lucene.search.spell.DirectSpellChecker;
+import org.apache.lucene.search.spell.SuggestMode;
+import org.apache.lucene.search.spell.SuggestWord;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.AttributeSource;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.CharsRefBuilder;
+import org.apache.lucene.util.automaton.CompiledAutomaton;
+
+/**
+ * Spelling correction against the words of a unigram index, ranked by
+ * how often they were used, e.g. to clean OCR noise.
+ * <p>
+ * Candidates within a few edits are found with a {@link DirectSpellChecker}
+ * over the {@link NgramFields#KEY} terms, without an auxiliary index.
+ * The document frequency it ranks by is one for every key, so the
+ * candidates are ranked here by their match count in a range of years,
+ * read from the timelines, and their edit distance: the score of a word
+ * <code>e</code> edits away seen <code>c</code> times is
+ * <code>log(c) + e * log(errorRate)</code>, a noisy channel with the
+ * same probability for every edit. The input itself competes with no
+ * edits if the index has it. Words with a part of speech are not
+ * suggested.
+ * <p>
+ * The Levenshtein automata of the most recent inputs are cached and
+ * handed to the {@link FuzzyTermsEnum} of every lookup, which would
+ * otherwise build them again each time the same word is corrected.
+ * Only text indexes can be corrected, encoded ones have no key text.
+ */
+public class NgramSpellChecker {
+
+  /** Default probability of a single edit. */
+  public static final double DEFAULT_ERROR_RATE = 0.001;
+
+  /** Number of inputs whose automata are kept. */
+  private static final int MAX_CACHED = 4096;
+
+  /** A candidate correction. */
+  public static final class Correction {
+    public final String word;
+    public final int edits;
+    public final long count;
+    public final double score;
+
+    Correction(String word, int edits, long count, double score) {
+      this.word = word;
+      this.edits = edits;
+      this.count = count;
+      this.score = score;
+    }
+  }
+
+  private static final Comparator<Correction> BY_SCORE = new Comparator<Correction>() {
+    @Override
+    public int compare(Correction a, Correction b) {
+      int cmp = Double.compare(b.score, a.score);
+      return cmp != 0 ? cmp : a.word.compareTo(b.word);
+    }
+  };
+
+  private final IndexSearcher searcher;
+  private final CachingSpellChecker checker = new CachingSpellChecker();
+
+  private int candidates = 20;
+  private double logErrorRate = Math.log(DEFAULT_ERROR_RATE);
+  private int fromYear = NgramFields.FIRST_YEAR;
+  private int toYear = NgramFields.LAST_YEAR;
+
+  /** Corrects against the unigrams of <code>searcher</code>, a text index. */
+  public NgramSpellChecker(IndexSearcher searcher) {
+    this.searcher = searcher;
+    checker.setLowerCaseTerms(false);
+    checker.setMinQueryLength(3);
+    // distant candidates are penalized by the error rate instead
+    checker.setAccuracy(0f);
+  }
+
+  /** The underlying checker, e.g. to change the maximum edits or the minimum prefix. */
+  public DirectSpellChecker getSpellChecker() {
+    return checker;
+  }
+
+  /** Number of candidates of the spell checker ranked by frequency. */
+  public void setCandidates(int candidates) {
+    this.candidates = candidates;
+  }
+
+  /** Probability of a single edit, lower values favour the closer words. */
+  public void setErrorRate(double errorRate) {
+    if (errorRate <= 0 || errorRate >= 1) {
+      throw new IllegalArgumentException("error rate must be in (0, 1), got " + errorRate);
+    }
+    this.logErrorRate = Math.log(errorRate);
+  }
+
+  /** Counts only the matches of the years <code>fromYear</code> to <code>toYear</code>, both inclusive. */
+  public void setYears(int fromYear, int toYear) {
+    if (fromYear > toYear || toYear < NgramFields.FIRST_YEAR || fromYear > NgramFields.LAST_YEAR) {
+      throw new IllegalArgumentException("bad year range " + fromYear + "-" + toYear);
+    }
+    this.fromYear = Math.max(fromYear, NgramFields.FIRST_YEAR);
+    this.toYear = Math.min(toYear, NgramFields.LAST_YEAR);
+  }
+
+  /** The best correction of <code>word</code>, the word itself if nothing scores higher. */
+  public String correct(String word) throws IOException {
+    List<Correction> corrections = suggest(word, 1);
+    return corrections.isEmpty() ? word : corrections.get(0).word;
+  }
+
+  /** The at most <code>k</code> best corrections of <code>word</code>, best first. */
+  public List<Correction> suggest(String word, int k) throws IOException {
+    IndexReader reader = searcher.getIndexReader();
+    SuggestWord[] similar = checker.suggestSimilar(new Term(NgramFields.KEY, word), candidates, reader,
+                                                   SuggestMode.SUGGEST_ALWAYS);
+    Terms terms = MultiFields.getTerms(reader, NgramFields.KEY);
+    if (terms == null) {
+      return Collections.emptyList();
+    }
+    TermsEnum te = terms.iterator(null);
+    Bits liveDocs = MultiFields.getLiveDocs(reader);
+    long[] tf = new long[NgramLookup.sliceLength(1, fromYear, toYear)];
+    int length = word.codePointCount(0, word.length());
+
+    PriorityQueue<Correction> best = new PriorityQueue<Correction>(k + 1, Collections.reverseOrder(BY_SCORE));
+    offer(best, k, te, liveDocs, tf, word, 0);
+    for (SuggestWord s : similar) {
+      if (!isWord(s.string)) continue;
+      // the spell checker scores 1 - edits / shorter length
+      int shorter = Math.min(length, s.string.codePointCount(0, s.string.length()));
+      int edits = Math.max(1, Math.round((1 - s.score) * shorter));
+      offer(best, k, te, liveDocs, tf, s.string, edits);
+    }
+    List<Correction> corrections = new ArrayList<Correction>(best);
+    Collections.sort(corrections, BY_SCORE);
+    return corrections;
+  }
+
+  private void offer(PriorityQueue<Correction> best, int k, TermsEnum te, Bits liveDocs, long[] tf,
+                     String word, int edits) throws IOException {
+    long count = count(te, liveDocs, tf, word);
+    if (count == 0) return;
+    best.add(new Correction(word, edits, count, Math.log(count) + edits * logErrorRate));
+    if (best.size() > k) {
+      best.poll();
+    }
+  }
+
+  /** Match count of <code>word</code> in the year range, zero if it is not a key. */
+  private long count(TermsEnum te, Bits liveDocs, long[] tf, String word) throws IOException {
+    if (!te.seekExact(new BytesRef(word))) return 0;
+    DocsEnum docs = te.docs(liveDocs, null, DocsEnum.FLAG_NONE);
+    int doc = docs.nextDoc();
+    if (doc == DocIdSetIterator.NO_MORE_DOCS) return 0;
+    int length = NgramLookup.readTimeline(searcher, doc, tf, 1, fromYear, toYear);
+    long count = 0;
+    for (int y = 0; y < length; y++) {
+      count += tf[y];
+    }
+    return count;
+  }
+
+  /** True for a single token without a part of speech. */
+  private static boolean isWord(String key) {
+    if (key.indexOf(' ') >= 0 || IndexNgrams.ENTRY_PATTERN_2.matcher(key).matches()) return false;
+    Matcher match = IndexNgrams.ENTRY_PATTERN_1.matcher(key);
+    return match.matches() && match.group(2) == null;
+  }
+
+  /**
+   * A {@link DirectSpellChecker} reusing the Levenshtein automata of
+   * recent inputs. {@link FuzzyTermsEnum} only builds the automata its
+   * attribute source does not hold yet, so a lookup starts from a copy
+   * of the cached ones and the cache keeps what it built.
+   */
+  private static final class CachingSpellChecker extends DirectSpellChecker {
+    private final Map<String,List<CompiledAutomaton>> automata =
+      new LinkedHashMap<String,List<CompiledAutomaton>>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String,List<CompiledAutomaton>> eldest) {
+          return size() > MAX_CACHED;
+        }
+      };
+
+    @Override
+    protected Collection<ScoreTerm> suggestSimilar(Term term, int numSug, IndexReader ir, int docfreq,
+                                                   int editDistance, float accuracy, CharsRefBuilder spare)
+      throws IOException {
+      Terms terms = MultiFields.getTerms(ir, term.field());
+      if (terms == null) {
+        return Collections.emptyList();
+      }
+      int prefixLength = Math.max(getMinPrefix(), editDistance - 1);
+      String key = prefixLength + ":" + term.text();
+      AttributeSource atts = new AttributeSource();
+      List<CompiledAutomaton> cached;
+      synchronized (automata) {
+        cached = automata.get(key);
+      }
+      List<CompiledAutomaton> built = atts.addAttribute(FuzzyTermsEnum.LevenshteinAutomataAttribute.class).automata();
+      if (cached != null) {
+        built.addAll(cached);
+      }
+      MaxNonCompetitiveBoostAttribute maxBoostAtt = atts.addAttribute(MaxNonCompetitiveBoostAttribute.class);
+      FuzzyTermsEnum e = new FuzzyTermsEnum(terms, atts, term, editDistance, prefixLength, true);
+      if (cached == null || built.size() > cached.size()) {
+        synchronized (automata) {
+          automata.put(key, new ArrayList<CompiledAutomaton>(built));
+        }
+      }
+
+      // the rest as in DirectSpellChecker
+      PriorityQueue<ScoreTerm> stQueue = new PriorityQueue<ScoreTerm>();
+      BytesRef queryTerm = new BytesRef(term.text());
+      BytesRef candidateTerm;
+      ScoreTerm st = new ScoreTerm();
+      BoostAttribute boostAtt = e.attributes().addAttribute(BoostAttribute.class);
+      while ((candidateTerm = e.next()) != null) {
+        float boost = boostAtt.getBoost();
+        if (stQueue.size() >= numSug && boost <= stQueue.peek().boost) continue;
+        if (queryTerm.bytesEquals(candidateTerm)) continue;
+        int df = e.docFreq();
+        if (df <= docfreq) continue;
+
+        float score;
+        String termAsString;
+        if (getDistance() == INTERNAL_LEVENSHTEIN) {
+          termAsString = null;
+          score = boost / e.getScaleFactor() + e.getMinSimilarity();
+        } else {
+          spare.copyUTF8Bytes(candidateTerm);
+          termAsString = spare.toString();
+          score = getDistance().getDistance(term.text(), termAsString);
+        }
+        if (score < accuracy) continue;
+
+        st.term = BytesRef.deepCopyOf(candidateTerm);
+        st.boost = boost;
+        st.docfreq = df;
+        st.termAsString = termAsString;
+        st.score = score;
+        stQueue.offer(st);
+        st = (stQueue.size() > numSug) ? stQueue.poll() : new ScoreTerm();
+        maxBoostAtt.setMaxNonCompetitiveBoost((stQueue.size() >= numSug) ? stQueue.peek().boost : Float.NEGATIVE_INFINITY);
+      }
+      return stQueue;
+    }
+  }
+
+  /** Correct the words of the lines of standard input. */
+  public static void main(String[] args) {
+    String usage = "java org.apache.lucene.ngram.NgramSpellChecker -index INDEX_PATH"
+                 + " [-years FROM-TO] [-error-rate P] [-max-edits N] [-candidates N] [-top K]\n\n"
+                 + "This prints every line of standard input with each word replaced by its best correction"
+                 + " in the unigram index in INDEX_PATH, or with -top, lines"
+                 + " word TAB rank TAB correction TAB edits TAB count TAB score";
+    String indexPath = null;
+    int fromYear = NgramFields.FIRST_YEAR;
+    int toYear = NgramFields.LAST_YEAR;
+    double errorRate = DEFAULT_ERROR_RATE;
+    int maxEdits = 2;
+    int candidates = 20;
+    int top = 0;
+    for(int i=0;i<args.length;i++) {
+      if ("-index".equals(args[i])) {
+        indexPath = args[i+1];
+        i++;
+      } else if ("-years".equals(args[i])) {
+        String[] range = args[i+1].split("-");
+        fromYear = Integer.parseInt(range[0]);
+        toYear = Integer.parseInt(range[range.length - 1]);
+        i++;
+      } else if ("-error-rate".equals(args[i])) {
+        errorRate = Double.parseDouble(args[i+1]);
+        i++;
+      } else if ("-max-edits".equals(args[i])) {
+        maxEdits = Integer.parseInt(args[i+1]);
+        i++;
+      } else if ("-candidates".equals(args[i])) {
+        candidates = Integer.parseInt(args[i+1]);
+        i++;
+      } else if ("-top".equals(args[i])) {
+        top = Integer.parseInt(args[i+1]);
+        i++;
+      } else if ("-h".equals(args[i]) || "-help".equals(args[i])) {
+        System.out.println(usage);
+        System.exit(0);
+      }
+    }
+
+    if (indexPath == null) {
+      System.err.println("Usage: " + usage);
+      System.exit(1);
+    }
+
+    Date start = new Date();
+    try {
+      File index = new File(indexPath);
+      if (NgramVocabulary.forIndex(index) != null) {
+        throw new IllegalArgumentException("'" + indexPath + "' is encoded, spelling correction needs a text index");
+      }
+      IndexReader reader = DirectoryReader.open(FSDirectory.open(index));
+      try {
+        NgramSpellChecker checker = new NgramSpellChecker(new IndexSearcher(reader));
+        checker.setYears(fromYear, toYear);
+        checker.setErrorRate(errorRate);
+        checker.setCandidates(candidates);
+        checker.getSpellChecker().setMaxEdits(maxEdits);
+        BufferedReader in = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+        String line;
+        while ((line = in.readLine()) != null) {
+          String trimmed = line.trim();
+          String[] words = trimmed.isEmpty() ? new String[0] : trimmed.split("\\s+");
+          if (top > 0) {
+            for (String word : words) {
+              int rank = 1;
+              for (Correction c : checker.suggest(word, top)) {
+                System.out.println(word + "\t" + rank++ + "\t" + c.word + "\t" + c.edits + "\t" + c.count + "\t" + c.score);
+              }
+            }
+          } else {
+            StringBuilder sb = new StringBuilder();
+            for (String word : words) {
+              if (sb.length() > 0) sb.append(' ');
+              sb.append(checker.correct(word));
+            }
+            System.out.println(sb);
+          }
+        }
+      } finally {
+        reader.close();
+      }
+
+      Date end = new Date();
+      System.err.println(end.getTime() - start.getTime() + " total milliseconds");
+
+    } catch (IOException e) {
+      System.out.println(" caught a " + e.getClass() +
+       "\n with message: " + e.getMessage());
+    }
+  }
+}
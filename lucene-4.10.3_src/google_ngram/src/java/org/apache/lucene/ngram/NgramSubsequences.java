@@ -0,0 +1,113 @@
+package org.apache.lucene.ngram;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldType;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.PhraseQuery;
+
+/**
+ * Subsequence search: all ngrams containing a sequence of terms at any
+ * position, e.g. every 5-gram with <code>of the</code>, in one query
+ * instead of one per pair of <code>term_i</code> fields.
+ * <p>
+ * The terms of an entry are indexed in order, with positions, in the
+ * {@link NgramFields#TOKENS} field. A subsequence is matched with a
+ * {@link PhraseQuery} without slop, which is scored by the exact phrase
+ * scorer. Part of speech placeholders such as <code>_NOUN_</code> take
+ * up a position without a term, which only {@link #ANY} matches.
+ * Vocabulary encoded documents have no text and are not indexed.
+ */
+public final class NgramSubsequences {
+
+  /** Stands for any single token in a subsequence, e.g. <code>of * the</code>. */
+  public static final String ANY = "*";
+
+  private static final FieldType TOKENS_TYPE = new FieldType(TextField.TYPE_NOT_STORED);
+  static {
+    TOKENS_TYPE.setOmitNorms(true);
+    TOKENS_TYPE.freeze();
+  }
+
+  private NgramSubsequences() {}
+
+  /** Adds the positional terms field of an entry to <code>doc</code>. */
+  public static void addTo(Document doc, String[] term) {
+    doc.add(new Field(NgramFields.TOKENS, new TermsTokenStream(term), TOKENS_TYPE));
+  }
+
+  /**
+   * Query matching the ngrams that contain the whitespace separated
+   * <code>terms</code> in this order at consecutive positions, where
+   * {@link #ANY} matches any token. Trailing {@link #ANY}s are ignored,
+   * the phrase cannot require a token after its last term.
+   */
+  public static PhraseQuery query(String terms) {
+    String[] tokens = terms.trim().split("\\s+");
+    PhraseQuery query = new PhraseQuery();
+    boolean empty = true;
+    for (int i = 0; i < tokens.length; i++) {
+      if (tokens[i].isEmpty() || ANY.equals(tokens[i])) continue;
+      query.add(new Term(NgramFields.TOKENS, tokens[i]), i);
+      empty = false;
+    }
+    if (empty) {
+      throw new IllegalArgumentException("subsequence needs at least one term: '" + terms + "'");
+    }
+    return query;
+  }
+
+  /** The terms of an entry, leaving a gap for placeholders. */
+  private static final class TermsTokenStream extends TokenStream {
+    private final CharTermAttribute termAtt = addAttribute(CharTermAttribute.class);
+    private final PositionIncrementAttribute posIncAtt = addAttribute(PositionIncrementAttribute.class);
+    private final String[] terms;
+    private int next = 0;
+
+    TermsTokenStream(String[] terms) {
+      this.terms = terms;
+    }
+
+    @Override
+    public boolean incrementToken() {
+      int increment = 1;
+      while (next < terms.length && (terms[next] == null || terms[next].isEmpty())) {
+        next++;
+        increment++;
+      }
+      if (next == terms.length) {
+        return false;
+      }
+      clearAttributes();
+      termAtt.append(terms[next++]);
+      posIncAtt.setPositionIncrement(increment);
+      return true;
+    }
+
+    @Override
+    public void reset() {
+      next = 0;
+    }
+  }
+}
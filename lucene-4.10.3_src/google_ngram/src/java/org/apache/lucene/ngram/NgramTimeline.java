@@ -0,0 +1,276 @@
+package org.apache.lucene.ngram;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.lucene.document.BinaryDocValuesField;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.store.ByteArrayDataInput;
+import org.apache.lucene.store.ByteArrayDataOutput;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Encoding of the per year match counts of an ngram into the
+ * {@link NgramFields#TIMELINE} doc values column.
+ * <p>
+ * A timeline is one vLong per year from {@link NgramFields#FIRST_YEAR}
+ * to {@link NgramFields#LAST_YEAR}, so years without matches cost a
+ * single byte. The values are grouped into blocks of {@link #BLOCK_SIZE},
+ * and a format byte and the byte length of every block but the last
+ * come first, so a slice of years is decoded by skipping to its first
+ * block. Timelines written before the blocks were added are a format
+ * byte followed by the vLongs and are still read.
+ * <p>
+ * Next to the full timeline, every document has one column per
+ * {@link #ROLLUPS} resolution holding the sums over consecutive
+ * blocks of years, starting at {@link NgramFields#FIRST_YEAR}, in the
+ * same encoding. Coarse charts and scans read the rollup of their
+ * resolution instead of decoding all years.
+ */
+public final class NgramTimeline {
+
+  static final byte FORMAT_VLONG = 0;
+  static final byte FORMAT_BLOCKS = 1;
+
+  /** Number of values per block; a block is at most 144 bytes, so its length fits a byte. */
+  static final int BLOCK_SIZE = 16;
+
+  /** Resolutions in years precomputed at index time. */
+  public static final int[] ROLLUPS = { 5, 10, 25 };
+
+  private NgramTimeline() {}
+
+  /** Number of values of a timeline at <code>resolution</code> years per value. */
+  public static int length(int resolution) {
+    if (resolution < 1) {
+      throw new IllegalArgumentException("resolution must be at least one year, got " + resolution);
+    }
+    return (NgramFields.NUM_YEARS + resolution - 1) / resolution;
+  }
+
+  /**
+   * Index of the value holding <code>year</code> in a timeline at
+   * <code>resolution</code> years per value, clamped to the timeline.
+   */
+  public static int index(int year, int resolution) {
+    int i = (Math.max(year, NgramFields.FIRST_YEAR) - NgramFields.FIRST_YEAR) / resolution;
+    return Math.min(i, length(resolution) - 1);
+  }
+
+  /**
+   * Sums the yearly counts <code>tf</code> into <code>out</code>, one
+   * value per <code>resolution</code> years. The last value covers the
+   * remaining years.
+   */
+  public static void rollup(long[] tf, int resolution, long[] out) {
+    int n = length(resolution);
+    for (int i = 0; i < n; i++) {
+      long sum = 0;
+      for (int y = i * resolution, end = Math.min(y + resolution, NgramFields.NUM_YEARS); y < end; y++) {
+        sum += tf[y];
+      }
+      out[i] = sum;
+    }
+  }
+
+  /** Encodes <code>tf</code>, indexed by <code>year - FIRST_YEAR</code>. */
+  public static BytesRef encode(long[] tf) {
+    return encode(tf, NgramFields.NUM_YEARS);
+  }
+
+  private static BytesRef encode(long[] values, int length) {
+    int blocks = (length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+    int header = blocks; // format byte and all block lengths but the last
+    byte[] buffer = new byte[header + 9 * length];
+    ByteArrayDataOutput out = new ByteArrayDataOutput(buffer, header, buffer.length - header);
+    try {
+      buffer[0] = FORMAT_BLOCKS;
+      for (int block = 0; block < blocks; block++) {
+        int start = out.getPosition();
+        for (int i = block * BLOCK_SIZE, end = Math.min(i + BLOCK_SIZE, length); i < end; i++) {
+          out.writeVLong(values[i]);
+        }
+        if (block < blocks - 1) {
+          buffer[1 + block] = (byte) (out.getPosition() - start);
+        }
+      }
+    } catch (IOException e) {
+      throw new AssertionError(e); // cannot happen on a byte array
+    }
+    return new BytesRef(buffer, 0, out.getPosition());
+  }
+
+  /** Adds the timeline column and the rollup columns for <code>tf</code> to <code>doc</code>. */
+  public static void addTo(Document doc, long[] tf) {
+    doc.add(new BinaryDocValuesField(NgramFields.TIMELINE, encode(tf)));
+    long[] rollup = new long[length(ROLLUPS[0])];
+    for (int resolution : ROLLUPS) {
+      rollup(tf, resolution, rollup);
+      doc.add(new BinaryDocValuesField(NgramFields.timeline(resolution), encode(rollup, length(resolution))));
+    }
+  }
+
+  /**
+   * Decodes <code>bytes</code> into <code>tf</code>. An empty value
+   * (a document without a timeline) decodes to all zeros.
+   */
+  public static void decode(BytesRef bytes, long[] tf) {
+    decode(bytes, tf, NgramFields.NUM_YEARS, 0, NgramFields.NUM_YEARS);
+  }
+
+  /**
+   * Decodes values <code>from</code> (inclusive) to <code>to</code>
+   * (exclusive) of a timeline of <code>length</code> values into the
+   * start of <code>values</code>.
+   */
+  private static void decode(BytesRef bytes, long[] values, int length, int from, int to) {
+    if (from == to) return;
+    if (bytes.length == 0) {
+      Arrays.fill(values, 0, to - from, 0);
+      return;
+    }
+    int pos = bytes.offset + 1;
+    int skip = from;
+    byte format = bytes.bytes[bytes.offset];
+    if (format == FORMAT_BLOCKS) {
+      int blocks = (length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+      int header = pos + blocks - 1;
+      for (int block = 0; block < from / BLOCK_SIZE; block++) {
+        header += bytes.bytes[pos + block] & 0xFF;
+      }
+      pos = header;
+      skip = from % BLOCK_SIZE;
+    } else if (format != FORMAT_VLONG) {
+      throw new IllegalStateException("Unknown timeline format: " + format);
+    }
+    ByteArrayDataInput in = new ByteArrayDataInput(bytes.bytes, pos, bytes.offset + bytes.length - pos);
+    for (int i = 0; i < skip; i++) {
+      in.readVLong();
+    }
+    for (int i = 0; i < to - from; i++) {
+      values[i] = in.readVLong();
+    }
+  }
+
+  /**
+   * Decodes values <code>from</code> (inclusive) to <code>to</code>
+   * (exclusive) of the full timeline <code>bytes</code> summed over
+   * <code>resolution</code> years into the start of <code>tf</code>.
+   * Only the years they cover are decoded, into <code>years</code>,
+   * which must hold {@link NgramFields#NUM_YEARS} values unless the
+   * resolution is one year.
+   */
+  static void decode(BytesRef bytes, long[] tf, int resolution, int from, int to, long[] years) {
+    if (resolution == 1) {
+      decode(bytes, tf, NgramFields.NUM_YEARS, from, to);
+      return;
+    }
+    int first = from * resolution;
+    int last = Math.min(to * resolution, NgramFields.NUM_YEARS);
+    decode(bytes, years, NgramFields.NUM_YEARS, first, last);
+    for (int i = from; i < to; i++) {
+      long sum = 0;
+      for (int y = i * resolution, end = Math.min(y + resolution, last); y < end; y++) {
+        sum += years[y - first];
+      }
+      tf[i - from] = sum;
+    }
+  }
+
+  /**
+   * Per segment access to the timeline column, or to the timeline at a
+   * coarser resolution. Instances are not thread safe; create one per
+   * thread.
+   */
+  public static final class Reader {
+    private final int resolution;
+    private final BinaryDocValues values;
+    private final Bits docsWithField;
+    private final BinaryDocValues rollups;
+    private final Bits docsWithRollup;
+    private long[] years;
+
+    /** Reads full timelines. */
+    public Reader(AtomicReader reader) throws IOException {
+      this(reader, 1);
+    }
+
+    /**
+     * Reads timelines summed over <code>resolution</code> years, from the
+     * rollup column if it was precomputed and from the full timeline
+     * otherwise.
+     */
+    public Reader(AtomicReader reader, int resolution) throws IOException {
+      length(resolution);
+      this.resolution = resolution;
+      this.values = reader.getBinaryDocValues(NgramFields.TIMELINE);
+      this.docsWithField = reader.getDocsWithField(NgramFields.TIMELINE);
+      if (resolution > 1) {
+        this.rollups = reader.getBinaryDocValues(NgramFields.timeline(resolution));
+        this.docsWithRollup = reader.getDocsWithField(NgramFields.timeline(resolution));
+      } else {
+        this.rollups = null;
+        this.docsWithRollup = null;
+      }
+    }
+
+    /** True if the segment has a timeline column at all. */
+    public boolean exists() {
+      return values != null;
+    }
+
+    /**
+     * Reads the timeline of <code>docID</code> into <code>tf</code>, which
+     * must hold {@link #length(int)} values of the resolution of this
+     * reader. Returns false if the document has no timeline.
+     */
+    public boolean read(int docID, long[] tf) {
+      return read(docID, tf, 0, length(resolution));
+    }
+
+    /**
+     * Reads values <code>from</code> (inclusive) to <code>to</code>
+     * (exclusive) of the timeline of <code>docID</code> into the start of
+     * <code>tf</code>, decoding only the blocks that hold them. Returns
+     * false if the document has no timeline.
+     */
+    public boolean read(int docID, long[] tf, int from, int to) {
+      int length = length(resolution);
+      if (from < 0 || to > length || from > to) {
+        throw new IndexOutOfBoundsException("slice [" + from + ", " + to + ") of a timeline of " + length + " values");
+      }
+      if (rollups != null && docsWithRollup != null && docsWithRollup.get(docID)) {
+        decode(rollups.get(docID), tf, length, from, to);
+        return true;
+      }
+      if (values == null || docsWithField == null || !docsWithField.get(docID)) {
+        return false;
+      }
+      if (resolution > 1 && years == null) {
+        years = new long[NgramFields.NUM_YEARS];
+      }
+      decode(values.get(docID), tf, resolution, from, to, years);
+      return true;
+    }
+  }
+}
@@ -0,0 +1,253 @@
+package org.apache.lucene.ngram;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.DocsEnum;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.index.TrackingIndexWriter;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Merges ngram entries at the boundaries of ingest units with the
+ * documents already in the index.
+ * <p>
+ * The raw data is sorted by entry, so only the first and last entry
+ * of a unit (a shard file) can be split across units. Those are
+ * buffered here and, when the unit ends, merged with the existing
+ * document of the same {@link NgramFields#KEY} and written with
+ * {@link IndexWriter#updateDocument}. Interior entries stay on the
+ * plain append path.
+ * <p>
+ * Yearly counts from the new data win, years missing from it are
+ * taken from the existing document, so re-ingesting a unit is
+ * idempotent. Every finished unit is committed and recorded in the
+ * commit user data, units recorded there are skipped on reruns.
+ * <p>
+ * Interior entries are tagged with their {@link NgramFields#UNIT}, so
+ * a unit that failed part way is removed with {@link #abortUnit} and
+ * can be ingested again without duplicating them.
+ * <p>
+ * On an index with {@link NgramCaseFolder case-insensitive aggregates},
+ * the folded keys of the entries written by a unit are folded again
+ * before it is committed, so no aggregate misses a new or updated variant.
+ */
+final class NgramUpserter implements Closeable {
+
+  /** Commit data entry holding the newline separated names of ingested units. */
+  static final String UNITS = "upsert.units";
+
+  private final TrackingIndexWriter writer;
+  private final Set<String> units = new LinkedHashSet<String>();
+  private final Map<String, Entry> pending = new LinkedHashMap<String, Entry>();
+  /** Folded keys written since the last fold, null if the index is not folded. */
+  private final Set<String> folded;
+  private DirectoryReader reader;
+
+  NgramUpserter(TrackingIndexWriter writer) throws IOException {
+    this.writer = writer;
+    String done = writer.getIndexWriter().getCommitData().get(UNITS);
+    if (done != null) {
+      for (String unit : done.split("\n")) {
+        if (!unit.isEmpty()) units.add(unit);
+      }
+    }
+    refresh();
+    boolean hasAggregates = MultiFields.getMergedFieldInfos(reader).fieldInfo(NgramFields.FOLDED_TIMELINE) != null;
+    folded = hasAggregates ? new TreeSet<String>() : null;
+  }
+
+  /** True if <code>unit</code> was committed by an earlier run. */
+  boolean isDone(String unit) {
+    return unit != null && units.contains(unit);
+  }
+
+  /** Appends the document of an interior entry of <code>unit</code>. */
+  void add(String unit, Document doc) throws IOException {
+    if (unit != null) {
+      doc.add(new StringField(NgramFields.UNIT, unit, Field.Store.NO));
+    }
+    if (folded != null) {
+      folded.add(doc.get(NgramFields.FOLDED_KEY));
+    }
+    writer.addDocument(doc);
+  }
+
+  /** Buffers a boundary entry until the end of the current unit. */
+  void buffer(String key, String[] term, String[] pos, long[] tf) {
+    Entry entry = pending.get(key);
+    if (entry == null) {
+      pending.put(key, new Entry(term, pos, tf.clone()));
+    } else {
+      overlay(tf, entry.tf);
+    }
+  }
+
+  /**
+   * Upserts all buffered entries and commits, recording
+   * <code>unit</code> as done unless it is null.
+   */
+  void endUnit(String unit) throws IOException {
+    if (!pending.isEmpty()) {
+      refresh();
+      long[] existing = new long[NgramFields.NUM_YEARS];
+      for (Map.Entry<String, Entry> e : pending.entrySet()) {
+        Entry entry = e.getValue();
+        if (readExisting(e.getKey(), existing)) {
+          overlay(entry.tf, existing);
+          System.arraycopy(existing, 0, entry.tf, 0, existing.length);
+        }
+        writer.updateDocument(new Term(NgramFields.KEY, e.getKey()),
+                              IndexNgrams.buildDocument(e.getKey(), entry.term, entry.pos, entry.tf, null));
+        if (folded != null) {
+          folded.add(NgramCaseFolder.fold(e.getKey()));
+        }
+      }
+      pending.clear();
+    }
+    if (folded != null && !folded.isEmpty()) {
+      NgramCaseFolder.fold(writer.getIndexWriter(), folded);
+      folded.clear();
+    }
+
+    if (unit != null) {
+      units.add(unit);
+    }
+    StringBuilder sb = new StringBuilder();
+    for (String u : units) {
+      sb.append(u).append('\n');
+    }
+    IndexWriter iw = writer.getIndexWriter();
+    Map<String, String> commitData = new HashMap<String, String>(iw.getCommitData());
+    commitData.put(UNITS, sb.toString());
+    iw.setCommitData(commitData);
+    iw.commit();
+    if (unit != null) {
+      IndexNgrams.log.println("committed unit " + unit);
+    }
+  }
+
+  /**
+   * Drops the buffered entries and deletes the appended documents of
+   * <code>unit</code>, which failed before it ended, so it can be
+   * ingested again. Boundary entries already upserted are kept, as
+   * upserting them again is idempotent.
+   */
+  void abortUnit(String unit) throws IOException {
+    pending.clear();
+    if (unit != null) {
+      writer.deleteDocuments(new Term(NgramFields.UNIT, unit));
+    }
+  }
+
+  /** Flushes entries left over from a stream without a final unit end. */
+  @Override
+  public void close() throws IOException {
+    try {
+      if (!pending.isEmpty()) {
+        endUnit(null);
+      }
+    } finally {
+      if (reader != null) {
+        reader.close();
+        reader = null;
+      }
+    }
+  }
+
+  private void refresh() throws IOException {
+    if (reader == null) {
+      reader = DirectoryReader.open(writer.getIndexWriter(), true);
+    } else {
+      DirectoryReader newReader = DirectoryReader.openIfChanged(reader, writer.getIndexWriter(), true);
+      if (newReader != null) {
+        reader.close();
+        reader = newReader;
+      }
+    }
+  }
+
+  /**
+   * Overlays the timelines of all live documents with <code>key</code>
+   * into <code>tf</code>. Returns false if there are none.
+   */
+  private boolean readExisting(String key, long[] tf) throws IOException {
+    BytesRef term = new BytesRef(key);
+    boolean found = false;
+    Arrays.fill(tf, 0);
+    for (AtomicReaderContext leaf : reader.leaves()) {
+      AtomicReader atomic = leaf.reader();
+      Terms terms = atomic.terms(NgramFields.KEY);
+      if (terms == null) continue;
+      TermsEnum te = terms.iterator(null);
+      if (!te.seekExact(term)) continue;
+      DocsEnum docs = te.docs(atomic.getLiveDocs(), null, DocsEnum.FLAG_NONE);
+      int doc;
+      while ((doc = docs.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+        Document stored = atomic.document(doc);
+        for (int y = NgramFields.FIRST_YEAR; y <= NgramFields.LAST_YEAR; y++) {
+          String tf_year = stored.get(NgramFields.tf(y));
+          if (tf_year != null) {
+            tf[y - NgramFields.FIRST_YEAR] = Long.parseLong(tf_year);
+          }
+        }
+        found = true;
+      }
+    }
+    return found;
+  }
+
+  /** Copies the non zero years of <code>from</code> over <code>to</code>. */
+  private static void overlay(long[] from, long[] to) {
+    for (int i = 0; i < NgramFields.NUM_YEARS; i++) {
+      if (from[i] != 0) to[i] = from[i];
+    }
+  }
+
+  private static final class Entry {
+    final String[] term;
+    final String[] pos;
+    final long[] tf;
+
+    Entry(String[] term, String[] pos, long[] tf) {
+      this.term = term;
+      this.pos = pos;
+      this.tf = tf;
+    }
+  }
+}
@@ -0,0 +1,507 @@
+package org.apache.lucene.ngram;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.TermToBytesRefAttribute;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldType;
+import org.apache.lucene.document.IntField;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.NumericRangeQuery;
+import org.apache.lucene.search.PrefixQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.util.AttributeImpl;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.IntsRef;
+import org.apache.lucene.util.IntsRefBuilder;
+import org.apache.lucene.util.fst.Builder;
+import org.apache.lucene.util.fst.BytesRefFSTEnum;
+import org.apache.lucene.util.fst.FST;
+import org.apache.lucene.util.fst.PositiveIntOutputs;
+import org.apache.lucene.util.fst.Util;
+
+/**
+ * Global vocabulary of terms and part of speech tags, mapping each to
+ * an int id with an {@link FST} over {@link PositiveIntOutputs}.
+ * <p>
+ * Ids are assigned in term order starting at 1, so the FST maps back
+ * from ids to terms as well, and comparing ids compares terms. An index
+ * encoded with a vocabulary stores no term strings: an entry of
+ * <code>n</code> tokens is keyed by its packed ids, <code>n</code> 4 byte
+ * big endian term ids followed by <code>n</code> part of speech ids (0
+ * for none), and every position is indexed as an int term. Entries with
+ * a token missing from the vocabulary are indexed as text. Queries on
+ * the text fields are translated with {@link #translate(Query)}.
+ * <p>
+ * An encoded index keeps its vocabulary in {@link #FILE_NAME}.
+ */
+public final class NgramVocabulary {
+
+  /** Name of the vocabulary file in the directory of an encoded index. */
+  public static final String FILE_NAME = "vocabulary.fst";
+
+  /** Precision step of the id fields, only full precision terms are indexed. */
+  public static final int PRECISION_STEP = Integer.MAX_VALUE;
+
+  private static final FieldType ID_TYPE = new FieldType(IntField.TYPE_NOT_STORED);
+  static {
+    ID_TYPE.setNumericPrecisionStep(PRECISION_STEP);
+    ID_TYPE.freeze();
+  }
+
+  private static final FieldType KEY_TYPE = new FieldType(StringField.TYPE_NOT_STORED);
+  static {
+    KEY_TYPE.setTokenized(true);
+    KEY_TYPE.freeze();
+  }
+
+  private final FST<Long> fst;
+  private final int size;
+
+  private NgramVocabulary(FST<Long> fst, int size) {
+    this.fst = fst;
+    this.size = size;
+  }
+
+  /** Builds the vocabulary of the given terms and tags. */
+  public static NgramVocabulary build(Iterable<String> tokens) throws IOException {
+    TreeSet<BytesRef> sorted = new TreeSet<BytesRef>();
+    for (String token : tokens) {
+      sorted.add(new BytesRef(token));
+    }
+    Builder<Long> builder = new Builder<Long>(FST.INPUT_TYPE.BYTE1, PositiveIntOutputs.getSingleton());
+    IntsRefBuilder scratch = new IntsRefBuilder();
+    long id = 1;
+    for (BytesRef token : sorted) {
+      builder.add(Util.toIntsRef(token, scratch), id++);
+    }
+    return new NgramVocabulary(builder.finish(), sorted.size());
+  }
+
+  /** Loads a vocabulary saved with {@link #save(File)}. */
+  public static NgramVocabulary load(File file) throws IOException {
+    FST<Long> fst = FST.read(file, PositiveIntOutputs.getSingleton());
+    int size = 0;
+    BytesRefFSTEnum<Long> it = new BytesRefFSTEnum<Long>(fst);
+    while (it.next() != null) size++;
+    return new NgramVocabulary(fst, size);
+  }
+
+  /** The vocabulary of the encoded index in <code>indexDir</code>, or null if it is not encoded. */
+  public static NgramVocabulary forIndex(File indexDir) throws IOException {
+    File file = new File(indexDir, FILE_NAME);
+    return file.isFile() ? load(file) : null;
+  }
+
+  public void save(File file) throws IOException {
+    fst.save(file);
+  }
+
+  /** True if <code>other</code> has the same terms and tags, and so the same ids. */
+  @Override
+  public boolean equals(Object other) {
+    if (!(other instanceof NgramVocabulary) || ((NgramVocabulary) other).size != size) {
+      return false;
+    }
+    try {
+      BytesRefFSTEnum<Long> it = new BytesRefFSTEnum<Long>(fst);
+      BytesRefFSTEnum<Long> otherIt = new BytesRefFSTEnum<Long>(((NgramVocabulary) other).fst);
+      BytesRefFSTEnum.InputOutput<Long> next;
+      while ((next = it.next()) != null) {
+        BytesRefFSTEnum.InputOutput<Long> otherNext = otherIt.next();
+        if (otherNext == null || !next.input.equals(otherNext.input)) {
+          return false;
+        }
+      }
+      return true;
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  @Override
+  public int hashCode() {
+    return size;
+  }
+
+  /** Number of distinct terms and tags. */
+  public int size() {
+    return size;
+  }
+
+  /** The id of <code>token</code>, or -1 if it is not part of the vocabulary. */
+  public int id(String token) throws IOException {
+    Long id = Util.get(fst, new BytesRef(token));
+    return id == null ? -1 : id.intValue();
+  }
+
+  /** The term or tag of <code>id</code>. */
+  public String token(int id) throws IOException {
+    IntsRef input = Util.getByOutput(fst, id);
+    if (input == null) {
+      throw new IllegalArgumentException("unknown vocabulary id " + id);
+    }
+    byte[] bytes = new byte[input.length];
+    for (int i = 0; i < input.length; i++) {
+      bytes[i] = (byte) input.ints[input.offset + i];
+    }
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Packs the ids of an entry, or returns null if one of its tokens is
+   * not part of the vocabulary.
+   */
+  public BytesRef encode(String[] term, String[] pos) throws IOException {
+    int n = term.length;
+    byte[] bytes = new byte[8 * n];
+    for (int i = 0; i < n; i++) {
+      int termId = id(term[i]);
+      int posId = pos[i] == null ? 0 : id(pos[i]);
+      if (termId < 0 || posId < 0) return null;
+      writeInt(bytes, 4 * i, termId);
+      writeInt(bytes, 4 * (n + i), posId);
+    }
+    return new BytesRef(bytes);
+  }
+
+  /** Packs the ids of a raw entry such as <code>"the_DET cat"</code>, or null if it cannot be encoded. */
+  public BytesRef encode(String entry) throws IOException {
+    String[] tokens = entry.split(" ");
+    String[] term = new String[tokens.length];
+    String[] pos = new String[tokens.length];
+    for (int i = 0; i < tokens.length; i++) {
+      Matcher match = IndexNgrams.ENTRY_PATTERN_2.matcher(tokens[i]);
+      if (match.matches()) {
+        term[i] = "";
+        pos[i] = match.group(1);
+      } else {
+        match = IndexNgrams.ENTRY_PATTERN_1.matcher(tokens[i]);
+        if (!match.matches()) return null;
+        term[i] = match.group(1);
+        pos[i] = match.group(2);
+      }
+    }
+    return encode(term, pos);
+  }
+
+  /** Rebuilds the raw entry from its packed ids. */
+  public String decode(BytesRef key) throws IOException {
+    int n = key.length / 8;
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < n; i++) {
+      String term = token(readInt(key, 4 * i));
+      int posId = readInt(key, 4 * (n + i));
+      if (i != 0) sb.append(' ');
+      if (term.isEmpty() && posId != 0) {
+        sb.append('_').append(token(posId)).append('_');
+      } else {
+        sb.append(term);
+        if (posId != 0) sb.append('_').append(token(posId));
+      }
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Adds the encoded key and id fields of an entry to <code>doc</code>.
+   * Returns false and leaves <code>doc</code> unchanged if the entry
+   * cannot be encoded.
+   */
+  public boolean addTo(Document doc, String[] term, String[] pos) throws IOException {
+    BytesRef key = encode(term, pos);
+    if (key == null) return false;
+    doc.add(new Field(NgramFields.KEY, new KeyTokenStream(key), KEY_TYPE));
+    doc.add(new StoredField(NgramFields.KEY, key));
+    int n = term.length;
+    for (int i = 0; i < n; i++) {
+      doc.add(new IntField(NgramFields.termId(i), readInt(key, 4 * i), ID_TYPE));
+      int posId = readInt(key, 4 * (n + i));
+      if (posId != 0) {
+        doc.add(new IntField(NgramFields.posId(i), posId, ID_TYPE));
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Translates a query on the text fields into one that also matches
+   * the id fields. Term and prefix queries on terms, term queries on
+   * parts of speech and keys and boolean combinations of them are
+   * translated. Entries with a token missing from the vocabulary are
+   * indexed as text, so terms, tags and prefixes match both the id and
+   * the text fields; keys match the packed key if the entry can be
+   * encoded and the text key otherwise. Other queries are returned
+   * unchanged.
+   */
+  public Query translate(Query query) throws IOException {
+    Query translated = query;
+    if (query instanceof TermQuery) {
+      Term term = ((TermQuery) query).getTerm();
+      String field = term.field();
+      if (field.equals(NgramFields.KEY)) {
+        BytesRef key = encode(term.text());
+        if (key != null) {
+          translated = new TermQuery(new Term(NgramFields.KEY, key));
+        }
+      } else if (position(field, "term_") >= 0) {
+        translated = either(idQuery(NgramFields.termId(position(field, "term_")), id(term.text())), query);
+      } else if (position(field, "pos_") >= 0) {
+        translated = either(idQuery(NgramFields.posId(position(field, "pos_")), id(term.text())), query);
+      }
+    } else if (query instanceof PrefixQuery) {
+      Term prefix = ((PrefixQuery) query).getPrefix();
+      int i = position(prefix.field(), "term_");
+      if (i >= 0) {
+        int[] range = prefixRange(prefix.bytes());
+        translated = either(range[0] > range[1] ? null
+          : NumericRangeQuery.newIntRange(NgramFields.termId(i), PRECISION_STEP, range[0], range[1], true, true), query);
+      }
+    } else if (query instanceof BooleanQuery) {
+      BooleanQuery bq = new BooleanQuery(((BooleanQuery) query).isCoordDisabled());
+      bq.setMinimumNumberShouldMatch(((BooleanQuery) query).getMinimumNumberShouldMatch());
+      for (BooleanClause clause : ((BooleanQuery) query).clauses()) {
+        bq.add(translate(clause.getQuery()), clause.getOccur());
+      }
+      translated = bq;
+    }
+    if (translated != query) {
+      translated.setBoost(query.getBoost());
+    }
+    return translated;
+  }
+
+  /** Matches the encoded documents of <code>ids</code>, or none if null, and the text documents of <code>text</code>. */
+  private static Query either(Query ids, Query text) {
+    // the boost of the original query is set on the result
+    Query copy = text.clone();
+    copy.setBoost(1f);
+    if (ids == null) {
+      return copy;
+    }
+    BooleanQuery bq = new BooleanQuery(true);
+    bq.add(ids, BooleanClause.Occur.SHOULD);
+    bq.add(copy, BooleanClause.Occur.SHOULD);
+    return bq;
+  }
+
+  private static Query idQuery(String field, int id) {
+    if (id < 0) {
+      return null;
+    }
+    return NumericRangeQuery.newIntRange(field, PRECISION_STEP, id, id, true, true);
+  }
+
+  /** Position of a <code>prefix</code>N field name, or -1. */
+  private static int position(String field, String prefix) {
+    if (!field.startsWith(prefix) || field.length() != prefix.length() + 1) return -1;
+    int i = field.charAt(prefix.length()) - '0';
+    return i >= 0 && i <= 9 ? i : -1;
+  }
+
+  /** First and last id of the tokens starting with <code>prefix</code>. */
+  private int[] prefixRange(BytesRef prefix) throws IOException {
+    BytesRefFSTEnum<Long> it = new BytesRefFSTEnum<Long>(fst);
+    BytesRefFSTEnum.InputOutput<Long> first = it.seekCeil(prefix);
+    if (first == null || !startsWith(first.input, prefix)) {
+      return new int[] { 1, 0 };
+    }
+    // the enum reuses its result, so take the output before seeking again
+    int firstId = first.output.intValue();
+    // the first token after all tokens with the prefix
+    byte[] upper = Arrays.copyOfRange(prefix.bytes, prefix.offset, prefix.offset + prefix.length);
+    int i = upper.length - 1;
+    while (i >= 0 && upper[i] == (byte) 0xff) i--;
+    BytesRefFSTEnum.InputOutput<Long> next = null;
+    if (i >= 0) {
+      upper[i]++;
+      next = it.seekCeil(new BytesRef(upper, 0, i + 1));
+    }
+    int last = next == null ? size : next.output.intValue() - 1;
+    return new int[] { firstId, last };
+  }
+
+  private static boolean startsWith(BytesRef ref, BytesRef prefix) {
+    if (ref.length < prefix.length) return false;
+    for (int i = 0; i < prefix.length; i++) {
+      if (ref.bytes[ref.offset + i] != prefix.bytes[prefix.offset + i]) return false;
+    }
+    return true;
+  }
+
+  private static void writeInt(byte[] bytes, int offset, int value) {
+    bytes[offset]     = (byte) (value >>> 24);
+    bytes[offset + 1] = (byte) (value >>> 16);
+    bytes[offset + 2] = (byte) (value >>> 8);
+    bytes[offset + 3] = (byte) value;
+  }
+
+  private static int readInt(BytesRef ref, int offset) {
+    byte[] b = ref.bytes;
+    int o = ref.offset + offset;
+    return ((b[o] & 0xff) << 24) | ((b[o + 1] & 0xff) << 16) | ((b[o + 2] & 0xff) << 8) | (b[o + 3] & 0xff);
+  }
+
+  /** Build a vocabulary from raw ngram files. */
+  public static void main(String[] args) throws Exception {
+    String usage = "java org.apache.lucene.ngram.NgramVocabulary"
+                 + " -docs DOCS_PATH [-out FILE]\n\n"
+                 + "Collects the terms and part of speech tags of all files in DOCS_PATH"
+                 + " (plain or .gz), usually the 1-gram data, into a vocabulary FILE"
+                 + " for IndexNgrams -vocab.";
+    String docsPath = null;
+    String out = FILE_NAME;
+    for(int i=0;i<args.length;i++) {
+      if ("-docs".equals(args[i])) {
+        docsPath = args[i+1];
+        i++;
+      } else if ("-out".equals(args[i])) {
+        out = args[i+1];
+        i++;
+      }
+    }
+    if (docsPath == null) {
+      System.err.println("Usage: " + usage);
+      System.exit(1);
+    }
+
+    TreeSet<String> tokens = new TreeSet<String>();
+    collect(new File(docsPath), tokens);
+    NgramVocabulary vocabulary = build(tokens);
+    vocabulary.save(new File(out));
+    System.out.println("Wrote " + vocabulary.size() + " terms and tags to '" + out + "'");
+  }
+
+  private static void collect(File file, TreeSet<String> tokens) throws IOException {
+    if (file.isDirectory()) {
+      String[] names = file.list();
+      if (names == null) return;
+      Arrays.sort(names);
+      for (String name : names) {
+        if (!name.startsWith(".")) collect(new File(file, name), tokens);
+      }
+      return;
+    }
+    InputStream is = new FileInputStream(file);
+    try {
+      if (file.getName().endsWith(".gz")) {
+        is = new GZIPInputStream(is, 1 << 16);
+      }
+      BufferedReader reader = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8), 1 << 16);
+      String prev_entry = null;
+      String line;
+      while ((line = reader.readLine()) != null) {
+        String entry = IndexNgramShards.entryKey(line);
+        if (entry == null || entry.equals(prev_entry)) continue;
+        prev_entry = entry;
+        for (String token : entry.split(" ")) {
+          Matcher match = IndexNgrams.ENTRY_PATTERN_2.matcher(token);
+          if (match.matches()) {
+            tokens.add("");
+            tokens.add(match.group(1));
+          } else {
+            match = IndexNgrams.ENTRY_PATTERN_1.matcher(token);
+            if (match.matches()) {
+              tokens.add(match.group(1));
+              if (match.group(2) != null) tokens.add(match.group(2));
+            }
+          }
+        }
+      }
+    } finally {
+      is.close();
+    }
+  }
+
+  /** Indexes a single binary term. */
+  private static final class KeyTokenStream extends TokenStream {
+    private final KeyTermAttribute termAtt = addAttribute(KeyTermAttribute.class);
+    private boolean available = true;
+
+    KeyTokenStream(BytesRef key) {
+      termAtt.setBytesRef(key);
+    }
+
+    @Override
+    public boolean incrementToken() {
+      if (available) {
+        clearAttributes();
+        available = false;
+        return true;
+      }
+      return false;
+    }
+
+    @Override
+    public void reset() {
+      available = true;
+    }
+  }
+
+  /** Term attribute holding raw bytes. */
+  public interface KeyTermAttribute extends TermToBytesRefAttribute {
+    public void setBytesRef(BytesRef bytes);
+  }
+
+  /** Implementation of {@link KeyTermAttribute}. */
+  public static final class KeyTermAttributeImpl extends AttributeImpl implements KeyTermAttribute, TermToBytesRefAttribute {
+    private BytesRef bytes;
+
+    @Override
+    public void fillBytesRef() {
+      // already filled when the stream was created
+    }
+
+    @Override
+    public BytesRef getBytesRef() {
+      return bytes;
+    }
+
+    @Override
+    public void setBytesRef(BytesRef bytes) {
+      this.bytes = bytes;
+    }
+
+    @Override
+    public void clear() {}
+
+    @Override
+    public void copyTo(AttributeImpl target) {
+      ((KeyTermAttributeImpl) target).bytes = bytes;
+    }
+  }
+}
@@ -0,0 +1,210 @@
+package org.apache.lucene.ngram;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.queryparser.classic.QueryParser;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.SearcherFactory;
+import org.apache.lucene.util.Version;
+
+/**
+ * Warms new readers so the first real query sees steady state latency.
+ * <p>
+ * For every segment that was not warmed before, the warmer walks the
+ * first terms of the key and term fields, which loads the terms index
+ * and the first term blocks, and reads the timeline, rollup and case
+ * folded aggregate columns, which pulls them into the page cache. It
+ * then replays the recently recorded queries against the new searcher,
+ * including the timeline reads of their hits, after building the part
+ * of speech facet ordinals of the new reader.
+ * <p>
+ * Use it as the {@link SearcherFactory} of a searcher manager and as
+ * the merged segment warmer of the writer, see {@link #mergedSegmentWarmer()}.
+ */
+public class NgramWarmer extends SearcherFactory {
+
+  private final String field;
+  private final int termsPerField;
+  private final int timelineDocs;
+  private final int maxQueries;
+  private final ArrayDeque<String> recent = new ArrayDeque<String>();
+  private volatile NgramVocabulary vocabulary;
+  private final Set<Object> warmed = Collections.newSetFromMap(new WeakHashMap<Object, Boolean>());
+
+  /**
+   * @param field default field of replayed queries
+   * @param termsPerField number of terms visited per field and segment
+   * @param timelineDocs number of timelines read per segment, -1 for all
+   * @param maxQueries number of recent queries kept for replay
+   */
+  public NgramWarmer(String field, int termsPerField, int timelineDocs, int maxQueries) {
+    this.field = field;
+    this.termsPerField = termsPerField;
+    this.timelineDocs = timelineDocs;
+    this.maxQueries = maxQueries;
+  }
+
+  /** Defaults suitable for serving: all timelines, 1024 terms per field, 100 queries. */
+  public NgramWarmer(String field) {
+    this(field, 1024, -1, 100);
+  }
+
+  /** Translates replayed queries for a vocabulary encoded index. */
+  public void setVocabulary(NgramVocabulary vocabulary) {
+    this.vocabulary = vocabulary;
+  }
+
+  /** Records a query string for replay, dropping the oldest one when full. */
+  public void record(String query) {
+    synchronized (recent) {
+      if (recent.size() == maxQueries) {
+        recent.removeFirst();
+      }
+      recent.addLast(query);
+    }
+  }
+
+  /** Records every non empty line of <code>file</code>, e.g. a saved query log. */
+  public void recordAll(File file) throws IOException {
+    BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8));
+    try {
+      String line;
+      while ((line = in.readLine()) != null) {
+        line = line.trim();
+        if (line.length() > 0) record(line);
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  @Override
+  public IndexSearcher newSearcher(IndexReader reader) throws IOException {
+    IndexSearcher searcher = new IndexSearcher(reader);
+    warm(searcher);
+    return searcher;
+  }
+
+  /** Warms all segments of <code>searcher</code> not seen before and replays recent queries. */
+  public void warm(IndexSearcher searcher) throws IOException {
+    long start = System.currentTimeMillis();
+    int segments = 0;
+    for (AtomicReaderContext leaf : searcher.getIndexReader().leaves()) {
+      if (warmSegment(leaf.reader())) segments++;
+    }
+    NgramPosFacets.state(searcher.getIndexReader());
+    int queries = replay(searcher);
+    System.err.println("Warmed " + segments + " segments and " + queries + " queries in "
+                       + (System.currentTimeMillis() - start) + " ms");
+  }
+
+  /** Warmer for {@link org.apache.lucene.index.IndexWriterConfig#setMergedSegmentWarmer}. */
+  public IndexWriter.IndexReaderWarmer mergedSegmentWarmer() {
+    return new IndexWriter.IndexReaderWarmer() {
+      @Override
+      public void warm(AtomicReader reader) throws IOException {
+        warmSegment(reader);
+      }
+    };
+  }
+
+  private boolean warmSegment(AtomicReader reader) throws IOException {
+    synchronized (warmed) {
+      if (!warmed.add(reader.getCoreCacheKey())) return false;
+    }
+
+    touchTerms(reader, NgramFields.KEY);
+    for (int i = 0; i < 5; i++) {
+      touchTerms(reader, NgramFields.term(i));
+    }
+
+    touchTimelines(reader, NgramFields.TIMELINE);
+    for (int resolution : NgramTimeline.ROLLUPS) {
+      touchTimelines(reader, NgramFields.timeline(resolution));
+    }
+    touchTimelines(reader, NgramFields.FOLDED_TIMELINE);
+    return true;
+  }
+
+  private void touchTimelines(AtomicReader reader, String name) throws IOException {
+    BinaryDocValues timelines = reader.getBinaryDocValues(name);
+    if (timelines != null) {
+      int docs = timelineDocs < 0 ? reader.maxDoc() : Math.min(timelineDocs, reader.maxDoc());
+      for (int doc = 0; doc < docs; doc++) {
+        timelines.get(doc);
+      }
+    }
+  }
+
+  private void touchTerms(AtomicReader reader, String name) throws IOException {
+    Terms terms = reader.terms(name);
+    if (terms == null) return;
+    TermsEnum te = terms.iterator(null);
+    for (int i = 0; i < termsPerField && te.next() != null; i++) {
+      te.docFreq();
+    }
+  }
+
+  private int replay(IndexSearcher searcher) throws IOException {
+    List<String> sample;
+    synchronized (recent) {
+      sample = new ArrayList<String>(recent);
+    }
+    // :Post-Release-Update-Version.LUCENE_XY:
+    QueryParser parser = new QueryParser(Version.LUCENE_4_10_0, field, new KeywordAnalyzer());
+    int replayed = 0;
+    long[] sum = new long[NgramFields.NUM_YEARS];
+    for (String line : sample) {
+      Query query;
+      try {
+        query = parser.parse(line);
+      } catch (ParseException e) {
+        continue;
+      }
+      if (vocabulary != null) {
+        query = vocabulary.translate(query);
+      }
+      NgramLookup.aggregate(searcher, query, sum);
+      replayed++;
+    }
+    return replayed;
+  }
+}
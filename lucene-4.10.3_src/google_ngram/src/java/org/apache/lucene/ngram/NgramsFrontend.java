@@ -65,12 +65,11 @@ public class NgramsFrontend extends JFrame
     private JTextField  entry;
     private JLabel      jLabel1;
     private JLabel      status;
-    private JList<DataPoint<List<Double>>> results;
-    private DefaultListModel<DataPoint<List<Double>>> resultsModel;
+    private JList<DataPoint<double[]>> results;
+    private DefaultListModel<DataPoint<double[]>> resultsModel;
     private JScrollPane resultList;
-    private Graph       graph;
+    private TimelineChart chart;
 
-    private List<Double> nullData;
     private Map<Integer, Long> totalCounts;
     private String index;
     private String field;
@@ -89,6 +88,8 @@ public class NgramsFrontend extends JFrame
     final static Color  HILIT_COLOR = Color.LIGHT_GRAY;
     final static Color  ERROR_COLOR = Color.PINK;
     final static String CANCEL_ACTION = "cancel-search";
+    /** Maximum number of selected results drawn at once. */
+    final static int MAX_SERIES = 20;
      
     final Color entryBg;
      
@@ -102,10 +103,6 @@ public class NgramsFrontend extends JFrame
         queryString = null;
         hitsPerPage = 100;
 
-        nullData = new ArrayList<Double>();
-        for (int i = 0; i < 209; i++) {
-            nullData.add(0.0);
-        }
         // totalCounts = new ArrayList<Integer>();
         totalCounts = new HashMap<Integer, Long>();
         try (BufferedReader br = new BufferedReader(new FileReader("googlebooks-eng-all-totalcounts-20120701.txt"))) {
@@ -152,14 +149,14 @@ public class NgramsFrontend extends JFrame
     private void initComponents() {
 
         entry     = new JTextField();
-        graph     = new Graph(nullData);
+        chart     = new TimelineChart();
         status    = new JLabel();
         jLabel1   = new JLabel();
-        resultsModel = new DefaultListModel<DataPoint<List<Double>>>();
-        results   = new JList<DataPoint<List<Double>>>(resultsModel);
+        resultsModel = new DefaultListModel<DataPoint<double[]>>();
+        results   = new JList<DataPoint<double[]>>(resultsModel);
         resultList = new JScrollPane(results);
         
-        results.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        results.setSelectionMode(ListSelectionModel.MULTIPLE_INTERVAL_SELECTION);
 
         setDefaultCloseOperation(WindowConstants.EXIT_ON_CLOSE);
         setTitle("Ngrams lookup");
@@ -169,15 +166,18 @@ public class NgramsFrontend extends JFrame
         results.addListSelectionListener(new ListSelectionListener() {
             @Override
             public void valueChanged(ListSelectionEvent event) {
-                if (results.getSelectedIndex() != -1) {
-                  // if (!event.getValueIsAdjusting()) {
-                    // System.out.println("[" + event.getFirstIndex() + ", " + event.getLastIndex() + "]");
-                    // System.out.println("" + results.getSelectedIndex());
-                    graph.setScores(resultsModel.get(results.getSelectedIndex()).cargo);
-                  // }
-                } else {
-                  graph.setScores(nullData);
+                if (event.getValueIsAdjusting()) {
+                  return;
+                }
+                // Compare the selected results side by side
+                List<String> names = new ArrayList<String>();
+                List<double[]> values = new ArrayList<double[]>();
+                for (DataPoint<double[]> item : results.getSelectedValuesList()) {
+                  if (names.size() == MAX_SERIES) break;
+                  names.add(item.label);
+                  values.add(item.cargo);
                 }
+                chart.setSeries(names, values);
             }
         });
 
@@ -200,7 +200,7 @@ public class NgramsFrontend extends JFrame
                     )
                     .addComponent(resultList, 100, 200, 3000)
                 )
-                .addComponent(graph, 300, 500, 1000)
+                .addComponent(chart, 300, 500, 1000)
             )
             .addComponent(status)
         );
@@ -218,7 +218,7 @@ public class NgramsFrontend extends JFrame
                 )
                 .addComponent(resultList)
               )
-              .addComponent(graph, 240, 400, 800)
+              .addComponent(chart, 240, 400, 800)
             )
             .addComponent(status)
         );
@@ -277,7 +277,7 @@ public class NgramsFrontend extends JFrame
 
         // results.clearSelection();
         resultsModel.clear();
-        Set<DataPoint<List<Double>>> searchResults = new TreeSet<DataPoint<List<Double>>>(Collections.reverseOrder());
+        Set<DataPoint<double[]>> searchResults = new TreeSet<DataPoint<double[]>>(Collections.reverseOrder());
 
         String line = entry.getText();
         if (line.length() <= 0) {
@@ -314,19 +314,17 @@ public class NgramsFrontend extends JFrame
             
             double relevance = 0;
             // boolean check = false;
-            List<Double> data = new ArrayList<Double>();
+            double[] data = new double[209];
             for (int y = 1800; y <= 2008; y++) {
               String tf = doc.get("tf_" + y);
               // String df  = doc.get("df_" + j);
-              if (tf == null) {
-                data.add(0.0);
-              } else {
+              if (tf != null) {
                 // check = true;
 
                 // We should only have occurrences in years when
                 // there were actually books published
                 assert totalCounts.containsKey(y);
-                data.add(Double.parseDouble(tf) / totalCounts.get(y));
+                data[y - 1800] = Double.parseDouble(tf) / totalCounts.get(y);
                 relevance += Double.parseDouble(tf);
               }
             }
@@ -335,7 +333,7 @@ public class NgramsFrontend extends JFrame
             //   System.out.println(res);
             // }
 
-            searchResults.add(new DataPoint<List<Double>>(res, data, relevance));
+            searchResults.add(new DataPoint<double[]>(res, data, relevance));
 
             // System.out.println();
             // for (int j = 1800; j < 2008; j++) {
@@ -359,7 +357,7 @@ public class NgramsFrontend extends JFrame
           return;
         }
 
-        for (DataPoint<List<Double>> item : searchResults) {
+        for (DataPoint<double[]> item : searchResults) {
           resultsModel.addElement(item);
         }
 
@@ -0,0 +1,398 @@
+package org.apache.lucene.ngram;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.index.IndexFileNames;
+
+import org.apache.lucene.replicator.Replicator;
+import org.apache.lucene.replicator.Revision;
+import org.apache.lucene.replicator.RevisionFile;
+import org.apache.lucene.replicator.SessionExpiredException;
+import org.apache.lucene.replicator.SessionToken;
+import org.apache.lucene.util.IOUtils;
+
+/**
+ * A {@link Replicator} over a spool directory on a shared file system,
+ * the transport between publishing and replica machines when there is
+ * no HTTP replication service.
+ * <p>
+ * The publisher copies the files of each published revision into
+ * <code>files/SOURCE/</code>, skipping files that are already there, so
+ * only the files new since the last revision are written. Index files
+ * never change once written, but a recreated index reuses their names,
+ * so a file is only skipped if it has the same size and checksum: the
+ * one in the codec footer of index files, or the CRC32 of all bytes of
+ * other files such as the vocabulary. It then writes the file list of the
+ * revision to <code>revisions/VERSION</code> and atomically replaces
+ * <code>current</code> with the new version. Files only referenced by
+ * revisions older than the last {@link #KEEP_REVISIONS} are deleted.
+ * <p>
+ * Clients read <code>current</code> and the file list, so sessions are
+ * stateless. A client copying a revision that was deleted in the meantime
+ * gets a {@link SessionExpiredException} and retries with the next one.
+ * <p>
+ * Versions are hexadecimal commit generations, like
+ * {@link org.apache.lucene.replicator.IndexRevision}. A revision that is
+ * not newer than <code>current</code> is only published if some of its
+ * files differ from the spooled ones, as the index was recreated and
+ * starts over at a lower generation; the revisions of the previous index
+ * are dropped then. Clients are updated whenever their version differs
+ * from <code>current</code>.
+ */
+public class SpoolReplicator implements Replicator {
+
+  /** Number of revisions whose files are kept for clients still copying them. */
+  public static final int KEEP_REVISIONS = 3;
+
+  private static final String CURRENT = "current";
+  private static final String REVISIONS = "revisions";
+  private static final String FILES = "files";
+
+  private final File spool;
+
+  public SpoolReplicator(File spool) throws IOException {
+    this.spool = spool;
+    for (File dir : new File[] { new File(spool, REVISIONS), new File(spool, FILES) }) {
+      if (!dir.isDirectory() && !dir.mkdirs()) {
+        throw new IOException("Cannot create directory '" + dir + "'");
+      }
+    }
+  }
+
+  @Override
+  public synchronized void publish(Revision revision) throws IOException {
+    try {
+      String current = readCurrent();
+      boolean copied = false;
+      Map<String,List<RevisionFile>> sourceFiles = revision.getSourceFiles();
+      for (Map.Entry<String,List<RevisionFile>> e : sourceFiles.entrySet()) {
+        File dir = new File(new File(spool, FILES), e.getKey());
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+          throw new IOException("Cannot create directory '" + dir + "'");
+        }
+        for (RevisionFile file : e.getValue()) {
+          File target = new File(dir, file.fileName);
+          if (target.isFile() && target.length() == file.size
+              && sameChecksum(revision, e.getKey(), file, target)) continue;
+          copy(revision.open(e.getKey(), file.fileName), target);
+          copied = true;
+        }
+      }
+      if (current != null && revision.compareTo(current) <= 0) {
+        if (!copied) {
+          // already published, or an older commit of the same index
+          return;
+        }
+        // the index was recreated and starts over at a lower generation,
+        // the revisions of the previous one would sort after its own
+        String[] versions = new File(spool, REVISIONS).list();
+        if (versions != null) {
+          for (String version : versions) {
+            Files.deleteIfExists(new File(new File(spool, REVISIONS), version).toPath());
+          }
+        }
+      }
+
+      File list = new File(new File(spool, REVISIONS), revision.getVersion());
+      Writer out = new OutputStreamWriter(new FileOutputStream(tmp(list)), StandardCharsets.UTF_8);
+      try {
+        for (Map.Entry<String,List<RevisionFile>> e : sourceFiles.entrySet()) {
+          for (RevisionFile file : e.getValue()) {
+            out.write(e.getKey() + "\t" + file.fileName + "\t" + file.size + "\n");
+          }
+        }
+      } finally {
+        out.close();
+      }
+      rename(tmp(list), list);
+
+      File currentFile = new File(spool, CURRENT);
+      out = new OutputStreamWriter(new FileOutputStream(tmp(currentFile)), StandardCharsets.UTF_8);
+      try {
+        out.write(revision.getVersion() + "\n");
+      } finally {
+        out.close();
+      }
+      rename(tmp(currentFile), currentFile);
+
+      deleteOldRevisions();
+    } finally {
+      revision.release();
+    }
+  }
+
+  @Override
+  public SessionToken checkForUpdate(String currVersion) throws IOException {
+    String version = readCurrent();
+    // a recreated index is published with a lower version
+    if (version == null || version.equals(currVersion)) {
+      return null;
+    }
+    Map<String,List<RevisionFile>> sourceFiles;
+    try {
+      sourceFiles = readRevision(version);
+    } catch (FileNotFoundException e) {
+      // replaced by a newer revision while we were reading it
+      return null;
+    }
+    return new SessionToken(version, new SpoolRevision(version, sourceFiles));
+  }
+
+  @Override
+  public void release(String sessionID) {
+    // sessions are stateless
+  }
+
+  @Override
+  public InputStream obtainFile(String sessionID, String source, String fileName) throws IOException {
+    File file = new File(new File(new File(spool, FILES), source), fileName);
+    try {
+      return new FileInputStream(file);
+    } catch (FileNotFoundException e) {
+      throw new SessionExpiredException("revision " + sessionID + " was removed from the spool while obtaining file: source="
+                                        + source + " file=" + fileName, e);
+    }
+  }
+
+  @Override
+  public void close() {
+  }
+
+  private String readCurrent() throws IOException {
+    File file = new File(spool, CURRENT);
+    if (!file.exists()) {
+      return null;
+    }
+    BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8));
+    try {
+      String line = in.readLine();
+      return line == null || line.trim().isEmpty() ? null : line.trim();
+    } finally {
+      in.close();
+    }
+  }
+
+  private Map<String,List<RevisionFile>> readRevision(String version) throws IOException {
+    Map<String,List<RevisionFile>> sourceFiles = new LinkedHashMap<String,List<RevisionFile>>();
+    BufferedReader in = new BufferedReader(new InputStreamReader(
+        new FileInputStream(new File(new File(spool, REVISIONS), version)), StandardCharsets.UTF_8));
+    try {
+      String line;
+      while ((line = in.readLine()) != null) {
+        String[] columns = line.split("\t");
+        if (columns.length != 3) {
+          throw new IOException("Malformed revision line in '" + version + "': '" + line + "'");
+        }
+        List<RevisionFile> files = sourceFiles.get(columns[0]);
+        if (files == null) {
+          files = new ArrayList<RevisionFile>();
+          sourceFiles.put(columns[0], files);
+        }
+        RevisionFile file = new RevisionFile(columns[1]);
+        file.size = Long.parseLong(columns[2]);
+        files.add(file);
+      }
+    } finally {
+      in.close();
+    }
+    return sourceFiles;
+  }
+
+  /** Deletes all but the newest revisions and the files only they reference. */
+  private void deleteOldRevisions() throws IOException {
+    String[] versions = new File(spool, REVISIONS).list();
+    if (versions == null || versions.length <= KEEP_REVISIONS) {
+      return;
+    }
+    List<String> sorted = new ArrayList<String>();
+    for (String version : versions) {
+      if (!version.endsWith(".tmp")) sorted.add(version);
+    }
+    Collections.sort(sorted, new Comparator<String>() {
+      @Override
+      public int compare(String a, String b) {
+        return SpoolReplicator.compare(a, b);
+      }
+    });
+
+    Set<String> live = new HashSet<String>();
+    for (String version : sorted.subList(Math.max(0, sorted.size() - KEEP_REVISIONS), sorted.size())) {
+      for (Map.Entry<String,List<RevisionFile>> e : readRevision(version).entrySet()) {
+        for (RevisionFile file : e.getValue()) {
+          live.add(e.getKey() + "/" + file.fileName);
+        }
+      }
+    }
+    for (String version : sorted.subList(0, Math.max(0, sorted.size() - KEEP_REVISIONS))) {
+      Files.deleteIfExists(new File(new File(spool, REVISIONS), version).toPath());
+    }
+    File[] sources = new File(spool, FILES).listFiles();
+    if (sources == null) return;
+    for (File source : sources) {
+      String[] names = source.list();
+      if (names == null) continue;
+      for (String name : names) {
+        if (!live.contains(source.getName() + "/" + name)) {
+          Files.deleteIfExists(new File(source, name).toPath());
+        }
+      }
+    }
+  }
+
+  private static int compare(String a, String b) {
+    long genA = Long.parseLong(a, 16);
+    long genB = Long.parseLong(b, 16);
+    return genA < genB ? -1 : (genA > genB ? 1 : 0);
+  }
+
+  /** True if <code>target</code> in the spool has the checksum of <code>file</code> of <code>revision</code>. */
+  private static boolean sameChecksum(Revision revision, String source, RevisionFile file, File target)
+    throws IOException {
+    return checksum(file.fileName, revision.open(source, file.fileName), file.size)
+      == checksum(file.fileName, new FileInputStream(target), target.length());
+  }
+
+  /**
+   * The checksum of the file <code>fileName</code> of <code>size</code>
+   * bytes read from <code>in</code>, which is closed: the one in the codec
+   * footer of index files, or the CRC32 of all bytes of other files.
+   */
+  static long checksum(String fileName, InputStream in, long size) throws IOException {
+    try {
+      if (!IndexFileNames.CODEC_FILE_PATTERN.matcher(fileName).matches()
+          && !fileName.startsWith(IndexFileNames.SEGMENTS)) {
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[1 << 16];
+        int n;
+        while ((n = in.read(buffer)) > 0) {
+          crc.update(buffer, 0, n);
+        }
+        return crc.getValue();
+      }
+      long skip = size - CodecUtil.footerLength();
+      while (skip > 0) {
+        long n = in.skip(skip);
+        if (n <= 0) throw new EOFException("'" + fileName + "' is shorter than " + size + " bytes");
+        skip -= n;
+      }
+      // read in bulk, IndexInputInputStream.read() returns signed bytes
+      byte[] bytes = new byte[CodecUtil.footerLength()];
+      new DataInputStream(in).readFully(bytes);
+      ByteBuffer footer = ByteBuffer.wrap(bytes);
+      if (footer.getInt() != CodecUtil.FOOTER_MAGIC) {
+        throw new IOException("'" + fileName + "' has no codec footer");
+      }
+      footer.getInt();
+      return footer.getLong();
+    } finally {
+      in.close();
+    }
+  }
+
+  private static File tmp(File file) {
+    return new File(file.getPath() + ".tmp");
+  }
+
+  private static void rename(File from, File to) throws IOException {
+    Files.move(from.toPath(), to.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  private static void copy(InputStream in, File target) throws IOException {
+    File tmp = tmp(target);
+    OutputStream out = null;
+    try {
+      out = new FileOutputStream(tmp);
+      byte[] buffer = new byte[1 << 16];
+      int n;
+      while ((n = in.read(buffer)) > 0) {
+        out.write(buffer, 0, n);
+      }
+    } finally {
+      IOUtils.close(in, out);
+    }
+    rename(tmp, target);
+  }
+
+  /** A revision read back from the spool, its files are read from the spool too. */
+  private final class SpoolRevision implements Revision {
+    private final String version;
+    private final Map<String,List<RevisionFile>> sourceFiles;
+
+    SpoolRevision(String version, Map<String,List<RevisionFile>> sourceFiles) {
+      this.version = version;
+      this.sourceFiles = sourceFiles;
+    }
+
+    @Override
+    public int compareTo(String version) {
+      return compare(this.version, version);
+    }
+
+    @Override
+    public int compareTo(Revision o) {
+      return compare(version, o.getVersion());
+    }
+
+    @Override
+    public String getVersion() {
+      return version;
+    }
+
+    @Override
+    public Map<String,List<RevisionFile>> getSourceFiles() {
+      return sourceFiles;
+    }
+
+    @Override
+    public InputStream open(String source, String fileName) throws IOException {
+      return obtainFile(version, source, fileName);
+    }
+
+    @Override
+    public void release() {
+    }
+  }
+}
@@ -0,0 +1,337 @@
+package org.apache.lucene.ngram;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.FontMetrics;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
+import java.awt.RenderingHints;
+import java.awt.Stroke;
+import java.awt.Transparency;
+import java.awt.geom.Path2D;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import javax.swing.JFrame;
+import javax.swing.JPanel;
+import javax.swing.SwingUtilities;
+
+/**
+ * Line chart of several timelines on shared axes, e.g. the relative
+ * frequencies of the ngrams selected in {@link NgramsFrontend}.
+ * <p>
+ * Values are kept as primitive arrays. The common bounds are computed
+ * once per data change, and the rendered chart is kept in an image
+ * that is only redrawn when the data or the size changes, so repaints
+ * from scrolling or overlapping windows are a single image copy.
+ * Series with more values than the plot is wide are decimated to the
+ * minimum and maximum of each pixel column, which keeps peaks visible.
+ */
+public class TimelineChart extends JPanel {
+
+    /** Colors of the series, reused in order once all are taken. */
+    private static final Color[] PALETTE = {
+        new Color(44, 102, 230), new Color(230, 85, 13), new Color(49, 163, 84), new Color(214, 39, 40),
+        new Color(117, 107, 177), new Color(140, 86, 75), new Color(227, 119, 194), new Color(127, 127, 127),
+        new Color(188, 189, 34), new Color(23, 190, 207), new Color(107, 174, 214), new Color(253, 141, 60),
+        new Color(116, 196, 118), new Color(251, 106, 74), new Color(158, 154, 200), new Color(196, 156, 148),
+        new Color(247, 182, 210), new Color(82, 82, 82), new Color(219, 219, 141), new Color(158, 218, 229)
+    };
+    private static final Stroke SERIES_STROKE = new BasicStroke(1.5f);
+
+    private int padding = 25;
+    private int labelPadding = 50;
+    private int pointWidth = 4;
+    private int numberYDivisions = 10;
+    private Color gridColor = new Color(200, 200, 200, 200);
+
+    private final List<String> names = new ArrayList<String>();
+    private final List<double[]> series = new ArrayList<double[]>();
+    private int firstYear = NgramFields.FIRST_YEAR;
+    private int yearsPerValue = 1;
+
+    private boolean boundsValid;
+    private double minValue;
+    private double maxValue;
+    private BufferedImage image;
+    private boolean imageValid;
+
+    /** Adds a series, drawn in the next color of the palette. */
+    public void addSeries(String name, double[] values) {
+        names.add(name);
+        series.add(values);
+        dataChanged();
+    }
+
+    /** Replaces all series. */
+    public void setSeries(List<String> names, List<double[]> values) {
+        if (names.size() != values.size()) {
+            throw new IllegalArgumentException("got " + names.size() + " names for " + values.size() + " series");
+        }
+        this.names.clear();
+        this.names.addAll(names);
+        this.series.clear();
+        this.series.addAll(values);
+        dataChanged();
+    }
+
+    /** Removes all series. */
+    public void clearSeries() {
+        names.clear();
+        series.clear();
+        dataChanged();
+    }
+
+    public int getSeriesCount() {
+        return series.size();
+    }
+
+    /**
+     * Labels value <code>i</code> of every series with the year
+     * <code>firstYear + i * yearsPerValue</code>, e.g. 10 for timelines
+     * rolled up by decade.
+     */
+    public void setXAxis(int firstYear, int yearsPerValue) {
+        this.firstYear = firstYear;
+        this.yearsPerValue = yearsPerValue;
+        dataChanged();
+    }
+
+    private void dataChanged() {
+        boundsValid = false;
+        imageValid = false;
+        repaint();
+    }
+
+    @Override
+    protected void paintComponent(Graphics g) {
+        super.paintComponent(g);
+        int width = getWidth();
+        int height = getHeight();
+        if (width <= 0 || height <= 0) return;
+
+        if (image == null || image.getWidth() != width || image.getHeight() != height) {
+            GraphicsConfiguration gc = getGraphicsConfiguration();
+            image = gc != null ? gc.createCompatibleImage(width, height, Transparency.OPAQUE)
+                               : new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            imageValid = false;
+        }
+        if (!imageValid) {
+            Graphics2D g2 = image.createGraphics();
+            try {
+                render(g2, width, height);
+            } finally {
+                g2.dispose();
+            }
+            imageValid = true;
+        }
+        g.drawImage(image, 0, 0, null);
+    }
+
+    private void computeBounds() {
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        for (double[] values : series) {
+            for (double value : values) {
+                if (value < min) min = value;
+                if (value > max) max = value;
+            }
+        }
+        if (min > max) {
+            min = 0;
+            max = 1;
+        } else if (min == max) {
+            max = min + 1;
+        }
+        minValue = min;
+        maxValue = max;
+        boundsValid = true;
+    }
+
+    private int numValues() {
+        int n = 0;
+        for (double[] values : series) {
+            n = Math.max(n, values.length);
+        }
+        return n;
+    }
+
+    private void render(Graphics2D g2, int width, int height) {
+        if (!boundsValid) {
+            computeBounds();
+        }
+        g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        g2.setColor(getBackground());
+        g2.fillRect(0, 0, width, height);
+
+        int left = padding + labelPadding;
+        int top = padding;
+        int plotWidth = width - 2 * padding - labelPadding;
+        int plotHeight = height - 2 * padding - labelPadding;
+        if (plotWidth <= 0 || plotHeight <= 0) return;
+        int bottom = top + plotHeight;
+        int n = numValues();
+
+        // draw white background
+        g2.setColor(Color.WHITE);
+        g2.fillRect(left, top, plotWidth, plotHeight);
+        FontMetrics metrics = g2.getFontMetrics();
+
+        // grid lines and labels for the y axis
+        for (int i = 0; i <= numberYDivisions; i++) {
+            int y = bottom - i * plotHeight / numberYDivisions;
+            g2.setColor(gridColor);
+            g2.drawLine(left + 1 + pointWidth, y, left + plotWidth, y);
+            g2.setColor(Color.BLACK);
+            g2.drawLine(left, y, left + pointWidth, y);
+            String yLabel = String.format(Locale.ROOT, "%.3g", minValue + (maxValue - minValue) * i / numberYDivisions);
+            g2.drawString(yLabel, left - metrics.stringWidth(yLabel) - 5, y + (metrics.getHeight() / 2) - 3);
+        }
+
+        // and for the x axis, a label every 50 years and a tick every 10,
+        // or less often if they would be crowded
+        if (n > 1) {
+            double pixelsPerYear = (double) plotWidth / ((n - 1) * yearsPerValue);
+            int tickYears = 10;
+            while (tickYears * pixelsPerYear < 5) tickYears *= 10;
+            int labelYears = 50;
+            while (labelYears * pixelsPerYear < 60) labelYears *= 10;
+            for (int i = 0; i < n; i++) {
+                int year = firstYear + i * yearsPerValue;
+                if (year % tickYears >= yearsPerValue && year % labelYears >= yearsPerValue) continue;
+                int x = left + (int) ((long) i * plotWidth / (n - 1));
+                if (year % labelYears < yearsPerValue) {
+                    g2.setColor(gridColor);
+                    g2.drawLine(x, bottom - 1 - pointWidth, x, top);
+                    g2.setColor(Color.BLACK);
+                    String xLabel = Integer.toString(year);
+                    g2.drawString(xLabel, x - metrics.stringWidth(xLabel) / 2, bottom + metrics.getHeight() + 3);
+                }
+                g2.setColor(Color.BLACK);
+                g2.drawLine(x, bottom, x, bottom - pointWidth);
+            }
+        }
+
+        // x and y axes
+        g2.setColor(Color.BLACK);
+        g2.drawLine(left, bottom, left, top);
+        g2.drawLine(left, bottom, left + plotWidth, bottom);
+
+        Stroke oldStroke = g2.getStroke();
+        g2.setStroke(SERIES_STROKE);
+        for (int s = 0; s < series.size(); s++) {
+            g2.setColor(PALETTE[s % PALETTE.length]);
+            g2.draw(path(series.get(s), n, left, bottom, plotWidth, plotHeight));
+        }
+        g2.setStroke(oldStroke);
+
+        // legend
+        int lineHeight = metrics.getHeight();
+        for (int s = 0; s < names.size() && (s + 2) * lineHeight < plotHeight; s++) {
+            int y = top + 5 + s * lineHeight;
+            g2.setColor(PALETTE[s % PALETTE.length]);
+            g2.fillRect(left + 10, y + lineHeight / 2 - 4, 8, 8);
+            g2.setColor(Color.BLACK);
+            g2.drawString(names.get(s), left + 22, y + metrics.getAscent());
+        }
+    }
+
+    /**
+     * The polyline of <code>values</code> scaled to the plot. With more
+     * values than pixel columns, each column is drawn as the minimum and
+     * maximum of its values in the order they occur.
+     */
+    private Path2D path(double[] values, int n, int left, int bottom, int plotWidth, int plotHeight) {
+        Path2D.Float path = new Path2D.Float();
+        if (values.length == 0) return path;
+        double yScale = plotHeight / (maxValue - minValue);
+        double xScale = n > 1 ? (double) plotWidth / (n - 1) : 0;
+
+        if (values.length <= plotWidth) {
+            for (int i = 0; i < values.length; i++) {
+                float x = (float) (left + i * xScale);
+                float y = (float) (bottom - (values[i] - minValue) * yScale);
+                if (i == 0) {
+                    path.moveTo(x, y);
+                } else {
+                    path.lineTo(x, y);
+                }
+            }
+            return path;
+        }
+
+        int start = 0;
+        for (int column = 0; column < plotWidth && start < values.length; column++) {
+            int end = (int) ((long) (column + 1) * values.length / plotWidth);
+            int minIndex = start;
+            int maxIndex = start;
+            for (int i = start + 1; i < end; i++) {
+                if (values[i] < values[minIndex]) minIndex = i;
+                if (values[i] > values[maxIndex]) maxIndex = i;
+            }
+            float x = (float) (left + column);
+            float yMin = (float) (bottom - (values[minIndex] - minValue) * yScale);
+            float yMax = (float) (bottom - (values[maxIndex] - minValue) * yScale);
+            float y0 = minIndex <= maxIndex ? yMin : yMax;
+            float y1 = minIndex <= maxIndex ? yMax : yMin;
+            if (column == 0) {
+                path.moveTo(x, y0);
+            } else {
+                path.lineTo(x, y0);
+            }
+            path.lineTo(x, y1);
+            start = Math.max(end, start + 1);
+        }
+        return path;
+    }
+
+    private static void createAndShowGui() {
+        TimelineChart chart = new TimelineChart();
+        Random random = new Random();
+        for (int s = 0; s < 20; s++) {
+            double[] values = new double[NgramFields.NUM_YEARS];
+            double value = random.nextDouble() * 10;
+            for (int i = 0; i < values.length; i++) {
+                value = Math.max(0, value + random.nextGaussian());
+                values[i] = value;
+            }
+            chart.addSeries("series " + s, values);
+        }
+        chart.setPreferredSize(new Dimension(800, 600));
+        JFrame frame = new JFrame("Timelines");
+        frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+        frame.getContentPane().add(chart);
+        frame.pack();
+        frame.setLocationRelativeTo(null);
+        frame.setVisible(true);
+    }
+
+    public static void main(String[] args) {
+        SwingUtilities.invokeLater(new Runnable() {
+            public void run() {
+                createAndShowGui();
+            }
+        });
+    }
+}
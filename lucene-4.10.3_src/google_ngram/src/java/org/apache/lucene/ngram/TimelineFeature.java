@@ -0,0 +1,174 @@
+package org.apache.lucene.ngram;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A derived feature computed from the match count timeline of
+ * a single ngram. Features are looked up by name from a static
+ * registry; {@link UpdateNgramFeatures} writes them as numeric
+ * doc values named after the feature.
+ * <p>
+ * Implementations must be stateless, they are called concurrently.
+ */
+public abstract class TimelineFeature {
+
+  private static final Map<String, TimelineFeature> registry =
+    new LinkedHashMap<String, TimelineFeature>();
+
+  static {
+    register(new PeakYear());
+    register(new Slope());
+    register(new Burst());
+    register(new HalfLife());
+  }
+
+  private final String name;
+
+  protected TimelineFeature(String name) {
+    this.name = name;
+  }
+
+  /** Name of the feature, also used as the doc values field name. */
+  public final String name() {
+    return name;
+  }
+
+  @Override
+  public String toString() {
+    return name;
+  }
+
+  /**
+   * Computes the feature for <code>tf</code>, indexed by
+   * <code>year - NgramFields.FIRST_YEAR</code>.
+   */
+  public abstract double compute(long[] tf);
+
+  /** Adds <code>feature</code> to the registry, replacing any feature of the same name. */
+  public static synchronized void register(TimelineFeature feature) {
+    registry.put(feature.name(), feature);
+  }
+
+  /** Looks up a registered feature, or throws if there is none. */
+  public static synchronized TimelineFeature forName(String name) {
+    TimelineFeature feature = registry.get(name);
+    if (feature == null) {
+      throw new IllegalArgumentException("Unknown feature '" + name + "', registered: " + registry.keySet());
+    }
+    return feature;
+  }
+
+  /** Names of all registered features. */
+  public static synchronized Set<String> names() {
+    return Collections.unmodifiableSet(new LinkedHashSet<String>(registry.keySet()));
+  }
+
+  /** Year with the highest match count, the earliest one on ties. */
+  public static final class PeakYear extends TimelineFeature {
+    public PeakYear() {
+      super("peak_year");
+    }
+
+    @Override
+    public double compute(long[] tf) {
+      return NgramFields.FIRST_YEAR + peak(tf);
+    }
+  }
+
+  /** Least squares slope of the match counts, in matches per year. */
+  public static final class Slope extends TimelineFeature {
+    public Slope() {
+      super("slope");
+    }
+
+    @Override
+    public double compute(long[] tf) {
+      int n = NgramFields.NUM_YEARS;
+      double mean_x = (n - 1) / 2.0;
+      double[] mean = new double[1];
+      double[] sigma = new double[1];
+      NgramFeatureKernels.countMoments(tf, 1, 1, mean, sigma);
+      double mean_y = mean[0];
+      double s_xy = 0;
+      double s_xx = 0;
+      for (int i = 0; i < n; i++) {
+        s_xy += (i - mean_x) * (tf[i] - mean_y);
+        s_xx += (i - mean_x) * (i - mean_x);
+      }
+      return s_xy / s_xx;
+    }
+  }
+
+  /**
+   * Largest number of standard deviations a single year lies above
+   * the mean of the timeline. Zero for flat timelines.
+   */
+  public static final class Burst extends TimelineFeature {
+    public Burst() {
+      super("burst");
+    }
+
+    @Override
+    public double compute(long[] tf) {
+      double[] mean = new double[1];
+      double[] sigma = new double[1];
+      NgramFeatureKernels.countMoments(tf, 1, 1, mean, sigma);
+      long max = tf[peak(tf)];
+      return sigma[0] == 0 ? 0 : (max - mean[0]) / sigma[0];
+    }
+  }
+
+  /**
+   * Number of years after the peak until the match count first
+   * drops below half of the peak count. Timelines that never drop
+   * below half get the number of years remaining after the peak plus one.
+   */
+  public static final class HalfLife extends TimelineFeature {
+    public HalfLife() {
+      super("half_life");
+    }
+
+    @Override
+    public double compute(long[] tf) {
+      int peak = peak(tf);
+      double half = tf[peak] / 2.0;
+      for (int i = peak + 1; i < NgramFields.NUM_YEARS; i++) {
+        if (tf[i] < half) {
+          return i - peak;
+        }
+      }
+      return NgramFields.NUM_YEARS - peak;
+    }
+  }
+
+  static int peak(long[] tf) {
+    int peak = 0;
+    for (int i = 1; i < NgramFields.NUM_YEARS; i++) {
+      if (tf[i] > tf[peak]) {
+        peak = i;
+      }
+    }
+    return peak;
+  }
+}
@@ -0,0 +1,358 @@
+package org.apache.lucene.ngram;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.DocumentStoredFieldVisitor;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.FieldInfos;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.IndexWriterConfig.OpenMode;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.NoMergePolicy;
+import org.apache.lucene.index.SegmentReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.NumericUtils;
+import org.apache.lucene.util.Version;
+
+/**
+ * Computes registered {@link TimelineFeature}s for every ngram of an
+ * existing index and writes them in place with
+ * {@link IndexWriter#updateNumericDocValue}, so adding a feature costs
+ * a scan of the timeline column instead of a rebuild from the raw data.
+ * <p>
+ * Segments are processed in parallel on a fork-join pool, large segments
+ * are further split into document ranges. Progress is checkpointed in
+ * the commit user data together with the updates it covers, a rerun
+ * with the same features skips segments that were already done.
+ * Merging is disabled while the job runs so segment names stay stable.
+ * <p>
+ * Feature values are stored as {@link NumericUtils#doubleToSortableLong sortable longs}.
+ * The index must have been built with the {@link NgramFields#KEY} and
+ * {@link NgramFields#TIMELINE} fields.
+ */
+public class UpdateNgramFeatures {
+
+  /** Commit data entry holding the comma separated feature names of the checkpoint. */
+  public static final String CHECKPOINT_FEATURES = "features.names";
+
+  /** Commit data entry holding the comma separated names of finished segments. */
+  public static final String CHECKPOINT_SEGMENTS = "features.done";
+
+  /**
+   * {@link NgramFields#SCHEMA} of the placeholder document that declares new
+   * feature fields, doc values can only be updated for fields the writer
+   * already knows. It is deleted right away, so it is never seen by readers.
+   */
+  static final String SCHEMA_MARKER = "features";
+
+  private static final int DOCS_PER_TASK = 1 << 16;
+
+  private final IndexWriter writer;
+  private final TimelineFeature[] features;
+  private final int commitEvery;
+  private final Set<String> done = new LinkedHashSet<String>();
+  private int sinceCommit = 0;
+
+  public UpdateNgramFeatures(IndexWriter writer, TimelineFeature[] features, int commitEvery) {
+    this.writer = writer;
+    this.features = features;
+    this.commitEvery = commitEvery;
+  }
+
+  /** Update features of all ngrams in the index. */
+  public static void main(String[] args) {
+    String usage = "java org.apache.lucene.ngram.UpdateNgramFeatures"
+                 + " [-index INDEX_PATH] [-features f1,f2,...] [-threads N] [-commit N]\n\n"
+                 + "Registered features: " + TimelineFeature.names();
+    String indexPath = "index";
+    String featureNames = null;
+    int threads = Runtime.getRuntime().availableProcessors();
+    int commitEvery = 16;
+    for(int i=0;i<args.length;i++) {
+      if ("-index".equals(args[i])) {
+        indexPath = args[i+1];
+        i++;
+      } else if ("-features".equals(args[i])) {
+        featureNames = args[i+1];
+        i++;
+      } else if ("-threads".equals(args[i])) {
+        threads = Integer.parseInt(args[i+1]);
+        i++;
+      } else if ("-commit".equals(args[i])) {
+        commitEvery = Integer.parseInt(args[i+1]);
+        i++;
+      } else if ("-h".equals(args[i]) || "-help".equals(args[i])) {
+        System.out.println(usage);
+        System.exit(0);
+      }
+    }
+
+    List<TimelineFeature> features = new ArrayList<TimelineFeature>();
+    for (String name : featureNames != null ? Arrays.asList(featureNames.split(",")) : TimelineFeature.names()) {
+      features.add(TimelineFeature.forName(name.trim()));
+    }
+
+    Date start = new Date();
+    try {
+      System.out.println("Updating features " + features + " in '" + indexPath + "'...");
+
+      Directory dir = FSDirectory.open(new File(indexPath));
+      // :Post-Release-Update-Version.LUCENE_XY:
+      IndexWriterConfig iwc = new IndexWriterConfig(Version.LUCENE_4_10_0, new KeywordAnalyzer());
+      iwc.setOpenMode(OpenMode.APPEND);
+      iwc.setMergePolicy(NoMergePolicy.INSTANCE);
+
+      IndexWriter writer = new IndexWriter(dir, iwc);
+      try {
+        new UpdateNgramFeatures(writer, features.toArray(new TimelineFeature[features.size()]), commitEvery)
+          .run(new ForkJoinPool(threads));
+      } finally {
+        writer.close();
+      }
+
+      Date end = new Date();
+      System.out.println(end.getTime() - start.getTime() + " total milliseconds");
+
+    } catch (IOException e) {
+      System.out.println(" caught a " + e.getClass() +
+       "\n with message: " + e.getMessage());
+    }
+  }
+
+  /** Runs the job on <code>pool</code> and commits the result. */
+  public void run(ForkJoinPool pool) throws IOException {
+    Map<String, String> commitData = writer.getCommitData();
+    if (featureList().equals(commitData.get(CHECKPOINT_FEATURES)) && commitData.get(CHECKPOINT_SEGMENTS) != null) {
+      for (String segment : commitData.get(CHECKPOINT_SEGMENTS).split(",")) {
+        if (!segment.isEmpty()) done.add(segment);
+      }
+      System.out.println("Resuming, " + done.size() + " segments already done");
+    }
+
+    declareFields();
+
+    DirectoryReader reader = DirectoryReader.open(writer, true);
+    try {
+      List<SegmentJob> jobs = new ArrayList<SegmentJob>();
+      for (AtomicReaderContext leaf : reader.leaves()) {
+        String segment = ((SegmentReader) leaf.reader()).getSegmentName();
+        synchronized (this) {
+          if (done.contains(segment)) continue;
+        }
+        jobs.add(new SegmentJob(leaf.reader(), segment));
+      }
+      System.out.println("Processing " + jobs.size() + " of " + reader.leaves().size() + " segments");
+      try {
+        pool.invoke(new AllSegmentsJob(jobs));
+      } catch (RuntimeException e) {
+        // tasks wrap their IOExceptions, and the pool may wrap those again
+        for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+          if (cause instanceof IOException) {
+            throw (IOException) cause;
+          }
+        }
+        throw e;
+      }
+    } finally {
+      reader.close();
+    }
+    checkpoint();
+  }
+
+  /**
+   * Declares every feature field the index does not have yet with a
+   * placeholder document that is deleted again, also the ones left by
+   * earlier versions.
+   */
+  private void declareFields() throws IOException {
+    FieldInfos fieldInfos;
+    DirectoryReader reader = DirectoryReader.open(writer, false);
+    try {
+      fieldInfos = MultiFields.getMergedFieldInfos(reader);
+    } finally {
+      reader.close();
+    }
+
+    Document doc = null;
+    for (TimelineFeature feature : features) {
+      FieldInfo info = fieldInfos.fieldInfo(feature.name());
+      if (info == null) {
+        if (doc == null) {
+          doc = new Document();
+          doc.add(new StringField(NgramFields.SCHEMA, SCHEMA_MARKER, Field.Store.NO));
+        }
+        doc.add(new NumericDocValuesField(feature.name(), 0));
+      } else if (info.getDocValuesType() != FieldInfo.DocValuesType.NUMERIC) {
+        throw new IllegalArgumentException("Field '" + feature.name() + "' exists but is not a numeric doc values field");
+      }
+    }
+    if (doc != null) {
+      writer.addDocument(doc);
+    }
+    writer.deleteDocuments(new Term(NgramFields.SCHEMA, SCHEMA_MARKER));
+  }
+
+  private String featureList() {
+    StringBuilder sb = new StringBuilder();
+    for (TimelineFeature feature : features) {
+      if (sb.length() > 0) sb.append(',');
+      sb.append(feature.name());
+    }
+    return sb.toString();
+  }
+
+  private synchronized void segmentDone(String segment) throws IOException {
+    done.add(segment);
+    System.out.println("finished segment " + segment);
+    if (++sinceCommit >= commitEvery) {
+      checkpoint();
+    }
+  }
+
+  /**
+   * Commits pending updates along with the set of finished segments.
+   * Updates of segments still in progress may be part of the commit,
+   * they are recomputed on resume, which is harmless.
+   */
+  private synchronized void checkpoint() throws IOException {
+    StringBuilder segments = new StringBuilder();
+    for (String segment : done) {
+      if (segments.length() > 0) segments.append(',');
+      segments.append(segment);
+    }
+    Map<String, String> commitData = new HashMap<String, String>(writer.getCommitData());
+    commitData.put(CHECKPOINT_FEATURES, featureList());
+    commitData.put(CHECKPOINT_SEGMENTS, segments.toString());
+    writer.setCommitData(commitData);
+    writer.commit();
+    sinceCommit = 0;
+  }
+
+  private void updateRange(AtomicReader reader, int from, int to) throws IOException {
+    NgramTimeline.Reader timelines = new NgramTimeline.Reader(reader);
+    if (!timelines.exists()) return;
+    Bits liveDocs = reader.getLiveDocs();
+    long[] tf = new long[NgramFields.NUM_YEARS];
+    for (int doc = from; doc < to; doc++) {
+      if (liveDocs != null && !liveDocs.get(doc)) continue;
+      if (!timelines.read(doc, tf)) continue;
+
+      DocumentStoredFieldVisitor visitor = new DocumentStoredFieldVisitor(NgramFields.KEY);
+      reader.document(doc, visitor);
+      Document stored = visitor.getDocument();
+      Term term;
+      if (stored.get(NgramFields.KEY) != null) {
+        term = new Term(NgramFields.KEY, stored.get(NgramFields.KEY));
+      } else if (stored.getBinaryValue(NgramFields.KEY) != null) {
+        // packed key of a vocabulary encoded index
+        term = new Term(NgramFields.KEY, BytesRef.deepCopyOf(stored.getBinaryValue(NgramFields.KEY)));
+      } else {
+        continue;
+      }
+      for (TimelineFeature feature : features) {
+        writer.updateNumericDocValue(term, feature.name(),
+                                     NumericUtils.doubleToSortableLong(feature.compute(tf)));
+      }
+    }
+  }
+
+  private class AllSegmentsJob extends RecursiveAction {
+    private final List<SegmentJob> jobs;
+
+    AllSegmentsJob(List<SegmentJob> jobs) {
+      this.jobs = jobs;
+    }
+
+    @Override
+    protected void compute() {
+      invokeAll(jobs);
+    }
+  }
+
+  private class SegmentJob extends RecursiveAction {
+    private final AtomicReader reader;
+    private final String segment;
+
+    SegmentJob(AtomicReader reader, String segment) {
+      this.reader = reader;
+      this.segment = segment;
+    }
+
+    @Override
+    protected void compute() {
+      invokeAll(new RangeJob(reader, 0, reader.maxDoc()));
+      try {
+        segmentDone(segment);
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
+  }
+
+  private class RangeJob extends RecursiveAction {
+    private final AtomicReader reader;
+    private final int from;
+    private final int to;
+
+    RangeJob(AtomicReader reader, int from, int to) {
+      this.reader = reader;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from > DOCS_PER_TASK) {
+        int mid = (from + to) >>> 1;
+        invokeAll(new RangeJob(reader, from, mid), new RangeJob(reader, mid, to));
+      } else {
+        try {
+          updateRange(reader, from, to);
+        } catch (IOException e) {
+          throw new RuntimeException(e);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,104 @@
+package org.apache.lucene.ngram;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.LuceneTestCase;
+
+public class TestNgramBulkLoad extends LuceneTestCase {
+
+  private static final int SEGMENTS = 10;
+  private static final int DOCS_PER_SEGMENT = 50;
+
+  /** Loads {@link #SEGMENTS} flushed segments of numbered documents. */
+  private static IndexWriter load(Directory dir, NgramBulkLoad bulk) throws IOException {
+    IndexWriterConfig iwc = bulk.configure(newIndexWriterConfig(new KeywordAnalyzer()));
+    IndexWriter writer = new IndexWriter(dir, iwc);
+    int id = 0;
+    for (int s = 0; s < SEGMENTS; s++) {
+      for (int i = 0; i < DOCS_PER_SEGMENT; i++, id++) {
+        Document doc = new Document();
+        doc.add(new StringField(NgramFields.KEY, "k" + id, Field.Store.NO));
+        doc.add(new StoredField("id", id));
+        writer.addDocument(doc);
+      }
+      writer.commit();
+    }
+    return writer;
+  }
+
+  /** Asserts that <code>dir</code> has <code>segments</code> segments holding all documents in load order. */
+  private static void assertSegments(Directory dir, int segments) throws IOException {
+    DirectoryReader reader = DirectoryReader.open(dir);
+    try {
+      assertEquals(segments, reader.leaves().size());
+      assertEquals(SEGMENTS * DOCS_PER_SEGMENT, reader.numDocs());
+      for (int i = 0; i < reader.maxDoc(); i++) {
+        assertEquals(i, reader.document(i).getField("id").numericValue().intValue());
+      }
+      // runs of about equal size, no run of a single flushed segment
+      for (AtomicReaderContext leaf : reader.leaves()) {
+        assertTrue("run of " + leaf.reader().maxDoc() + " documents",
+                   leaf.reader().maxDoc() >= 2 * DOCS_PER_SEGMENT);
+      }
+    } finally {
+      reader.close();
+    }
+  }
+
+  public void testFinish() throws Exception {
+    for (int segments : new int[] { 1, 3, 4 }) {
+      Directory dir = newDirectory();
+      NgramBulkLoad bulk = new NgramBulkLoad(segments, NgramBulkLoad.DEFAULT_RAM_BUFFER_MB);
+      IndexWriter writer = load(dir, bulk);
+      try {
+        DirectoryReader reader = DirectoryReader.open(dir);
+        assertEquals("segments were merged while loading", SEGMENTS, reader.leaves().size());
+        reader.close();
+
+        bulk.finish(writer);
+        writer.commit();
+        assertSegments(dir, segments);
+      } finally {
+        writer.close();
+      }
+      // merging stays off once loaded
+      assertSegments(dir, segments);
+      dir.close();
+    }
+  }
+
+  public void testSegmentsMustBePositive() {
+    try {
+      new NgramBulkLoad(0, NgramBulkLoad.DEFAULT_RAM_BUFFER_MB);
+      fail("zero segments were accepted");
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+}
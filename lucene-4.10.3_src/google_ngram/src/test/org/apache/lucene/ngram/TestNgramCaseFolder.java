@@ -0,0 +1,110 @@
+package org.apache.lucene.ngram;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.LuceneTestCase;
+
+public class TestNgramCaseFolder extends LuceneTestCase {
+
+  /** Document of the unigram <code>entry</code> with counts in 1900 and 1901. */
+  private static Document doc(String entry, long tf1900, long tf1901) throws IOException {
+    long[] tf = new long[NgramFields.NUM_YEARS];
+    tf[1900 - NgramFields.FIRST_YEAR] = tf1900;
+    tf[1901 - NgramFields.FIRST_YEAR] = tf1901;
+    return IndexNgrams.buildDocument(entry, new String[] { entry }, new String[1], tf, null);
+  }
+
+  /** Case-insensitive or exact counts of <code>entry</code> in 1900 and 1901. */
+  private static String lookup(IndexWriter writer, String entry, boolean ignoreCase) throws IOException {
+    DirectoryReader reader = DirectoryReader.open(writer, true);
+    try {
+      long[] sum = new long[2];
+      NgramLookup.lookupKey(new IndexSearcher(reader), entry, ignoreCase, null, sum, 1, 1900, 1901);
+      return Arrays.toString(sum);
+    } finally {
+      reader.close();
+    }
+  }
+
+  /** The precomputed aggregate of the folded key <code>key</code>, or null if it has none. */
+  private static String aggregate(IndexWriter writer, String key) throws IOException {
+    DirectoryReader reader = DirectoryReader.open(writer, true);
+    try {
+      IndexSearcher searcher = new IndexSearcher(reader);
+      ScoreDoc[] hits = searcher.search(new TermQuery(new Term(NgramFields.FOLDED_KEY, key)), 10).scoreDocs;
+      long[] tf = new long[2];
+      int from = 1900 - NgramFields.FIRST_YEAR;
+      if (!NgramCaseFolder.readAggregate(searcher, hits, tf, 1, from, from + 2)) {
+        return null;
+      }
+      return Arrays.toString(tf);
+    } finally {
+      reader.close();
+    }
+  }
+
+  public void testFold() throws Exception {
+    Directory dir = newDirectory();
+    IndexWriter writer = new IndexWriter(dir, newIndexWriterConfig(new KeywordAnalyzer()));
+    try {
+      writer.addDocument(doc("Apple", 1, 0));
+      writer.addDocument(doc("apple", 2, 5));
+      writer.commit();
+      writer.addDocument(doc("APPLE", 0, 7));
+      writer.addDocument(doc("pear", 3, 0));
+      // a real entry that looks like the placeholder of the aggregate column
+      writer.addDocument(doc("_folded_", 4, 0));
+
+      assertEquals(1, NgramCaseFolder.fold(writer));
+      assertEquals("[3, 12]", aggregate(writer, "apple"));
+      assertNull(aggregate(writer, "pear"));
+      assertEquals("[3, 12]", lookup(writer, "aPPle", true));
+      assertEquals("[2, 5]", lookup(writer, "apple", false));
+      assertEquals("[3, 0]", lookup(writer, "pear", true));
+      assertEquals("[4, 0]", lookup(writer, "_folded_", false));
+
+      // refolding only the changed key
+      writer.updateDocument(new Term(NgramFields.KEY, "APPLE"), doc("APPLE", 0, 1));
+      assertEquals(1, NgramCaseFolder.fold(writer, Collections.singleton("apple")));
+      assertEquals("[3, 6]", aggregate(writer, "apple"));
+
+      // a single variant left has no aggregate
+      writer.deleteDocuments(new Term(NgramFields.KEY, "Apple"));
+      writer.deleteDocuments(new Term(NgramFields.KEY, "APPLE"));
+      NgramCaseFolder.fold(writer, Collections.singleton("apple"));
+      assertNull(aggregate(writer, "apple"));
+      assertEquals("[2, 5]", lookup(writer, "Apple", true));
+    } finally {
+      writer.close();
+      dir.close();
+    }
+  }
+}
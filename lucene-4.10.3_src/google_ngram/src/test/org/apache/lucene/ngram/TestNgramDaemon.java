@@ -0,0 +1,195 @@
+package org.apache.lucene.ngram;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.LuceneTestCase;
+
+public class TestNgramDaemon extends LuceneTestCase {
+
+  /** Raw lines of the entries <code>from</code> to <code>to</code>, exclusive, with one year each. */
+  private static String entries(int from, int to, int year) {
+    StringBuilder sb = new StringBuilder();
+    for (int i = from; i < to; i++) {
+      sb.append(String.format(Locale.ROOT, "w%05d\t%d\t%d\t1\n", i, year, i + 1));
+    }
+    return sb.toString();
+  }
+
+  private static void write(File file, String text, boolean truncate) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    OutputStream os = new GZIPOutputStream(bytes);
+    os.write(text.getBytes(StandardCharsets.UTF_8));
+    os.close();
+    byte[] gz = bytes.toByteArray();
+    FileOutputStream out = new FileOutputStream(file);
+    try {
+      out.write(gz, 0, truncate ? gz.length * 3 / 4 : gz.length);
+    } finally {
+      out.close();
+    }
+  }
+
+  private static int hits(IndexSearcher searcher, String key) throws IOException {
+    return searcher.search(new TermQuery(new Term(NgramFields.KEY, key)), 10).totalHits;
+  }
+
+  public void testRetryAfterFailedIngest() throws Exception {
+    PrintStream logSave = IndexNgrams.log;
+    IndexNgrams.log = new PrintStream(new ByteArrayOutputStream(), false, StandardCharsets.UTF_8.name());
+    File watchDir = createTempDir("NgramDaemonWatch");
+    Directory dir = newDirectory();
+    IndexWriter writer = new IndexWriter(dir, newIndexWriterConfig(new KeywordAnalyzer()));
+    NgramDaemon daemon = new NgramDaemon(writer, null, 1000, 0, 0.1, 0.01, null);
+    try {
+      SearcherManager manager = daemon.getSearcherManager();
+      // w00999 is split across both units
+      File first = new File(watchDir, "a.gz");
+      write(first, entries(0, 1000, 1900), false);
+      daemon.ingest(first, first.getName());
+
+      File second = new File(watchDir, "b.gz");
+      String text = entries(999, 1000, 1901) + entries(1000, 20000, 1900);
+      write(second, text, true);
+      try {
+        daemon.ingest(second, second.getName());
+        fail("truncated file was ingested");
+      } catch (IOException expected) {
+        // the file ends part way
+      }
+      manager.maybeRefreshBlocking();
+      IndexSearcher searcher = manager.acquire();
+      try {
+        assertEquals("partial unit was not removed", 1000, searcher.getIndexReader().numDocs());
+      } finally {
+        manager.release(searcher);
+      }
+
+      write(second, text, false);
+      daemon.ingest(second, second.getName());
+      manager.maybeRefreshBlocking();
+      searcher = manager.acquire();
+      try {
+        assertEquals(20000, searcher.getIndexReader().numDocs());
+        for (String key : new String[] { "w00000", "w00998", "w00999", "w01000", "w10000", "w19999" }) {
+          assertEquals(key, 1, hits(searcher, key));
+        }
+        long[] sum = new long[2];
+        NgramLookup.lookupKey(searcher, "w00999", false, null, sum, 1, 1900, 1901);
+        assertEquals("[1000, 1000]", Arrays.toString(sum));
+      } finally {
+        manager.release(searcher);
+      }
+    } finally {
+      daemon.close();
+      dir.close();
+      IndexNgrams.log = logSave;
+    }
+  }
+
+  public void testIngestRefoldsAggregates() throws Exception {
+    PrintStream logSave = IndexNgrams.log;
+    IndexNgrams.log = new PrintStream(new ByteArrayOutputStream(), false, StandardCharsets.UTF_8.name());
+    File watchDir = createTempDir("NgramDaemonWatch");
+    Directory dir = newDirectory();
+    IndexWriter writer = new IndexWriter(dir, newIndexWriterConfig(new KeywordAnalyzer()));
+    IndexNgrams.indexStream(writer, new BufferedReader(new StringReader("Apple\t1900\t3\t1\napple\t1900\t4\t1\n")));
+    NgramCaseFolder.fold(writer);
+    writer.commit();
+    NgramDaemon daemon = new NgramDaemon(writer, null, 1000, 0, 0.1, 0.01, null);
+    try {
+      // two new variants, one of them interior, and an update of apple at the end of the unit
+      File unit = new File(watchDir, "a.gz");
+      write(unit, "APPLE\t1900\t2\t1\nApPle\t1900\t1\t1\nBanana\t1900\t1\t1\napple\t1901\t5\t1\n", false);
+      daemon.ingest(unit, unit.getName());
+
+      SearcherManager manager = daemon.getSearcherManager();
+      manager.maybeRefreshBlocking();
+      IndexSearcher searcher = manager.acquire();
+      try {
+        long[] sum = new long[2];
+        assertEquals(4, NgramLookup.lookupKey(searcher, "apple", true, null, sum, 1, 1900, 1901));
+        assertEquals("[10, 5]", Arrays.toString(sum));
+      } finally {
+        manager.release(searcher);
+      }
+    } finally {
+      daemon.close();
+      dir.close();
+      IndexNgrams.log = logSave;
+    }
+  }
+
+  public void testBadFileDoesNotBlockLaterFiles() throws Exception {
+    PrintStream logSave = IndexNgrams.log;
+    PrintStream errSave = System.err;
+    IndexNgrams.log = new PrintStream(new ByteArrayOutputStream(), false, StandardCharsets.UTF_8.name());
+    ByteArrayOutputStream err = new ByteArrayOutputStream();
+    System.setErr(new PrintStream(err, true, StandardCharsets.UTF_8.name()));
+    File watchDir = createTempDir("NgramDaemonWatch");
+    // the key of the first entry is too long to be indexed, its upsert fails at the end of the unit
+    char[] immense = new char[40000];
+    Arrays.fill(immense, 'x');
+    write(new File(watchDir, "a.gz"), new String(immense) + "\t1900\t1\t1\n" + entries(0, 10, 1900), false);
+    write(new File(watchDir, "b.gz"), entries(100, 110, 1900), false);
+    Directory dir = newDirectory();
+    IndexWriter writer = new IndexWriter(dir, newIndexWriterConfig(new KeywordAnalyzer()));
+    NgramDaemon daemon = new NgramDaemon(writer, watchDir, 10, 0, 0.1, 0.01, null);
+    try {
+      SearcherManager manager = daemon.getSearcherManager();
+      long deadline = System.currentTimeMillis() + 10000;
+      while (!err.toString(StandardCharsets.UTF_8.name()).contains("skipping it until it is modified")) {
+        assertTrue("a.gz was not given up", System.currentTimeMillis() < deadline);
+        Thread.sleep(10);
+      }
+      manager.maybeRefreshBlocking();
+      IndexSearcher searcher = manager.acquire();
+      try {
+        assertEquals(10, searcher.getIndexReader().numDocs());
+        assertEquals(0, hits(searcher, "w00000"));
+        assertEquals(1, hits(searcher, "w00105"));
+      } finally {
+        manager.release(searcher);
+      }
+    } finally {
+      daemon.close();
+      dir.close();
+      IndexNgrams.log = logSave;
+      System.setErr(errSave);
+    }
+  }
+}
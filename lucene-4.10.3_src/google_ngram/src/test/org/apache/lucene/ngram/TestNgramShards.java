@@ -0,0 +1,134 @@
+package org.apache.lucene.ngram;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.PrefixQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.LuceneTestCase;
+
+public class TestNgramShards extends LuceneTestCase {
+
+  /** Shards [,b) [b,m) [m,ma) [ma,t) [t,) and one key in each. */
+  private static final String[] SPLITS = { "t", "m", "b", "ma" };
+  private static final String[] KEYS = { "apple", "banana", "m", "mango", "tomato" };
+
+  private static NgramShards create(File root) throws IOException {
+    NgramShards shards = NgramShards.create(root, SPLITS);
+    for (String key : KEYS) {
+      Directory dir = FSDirectory.open(shards.directory(shards.shardOf(key)));
+      IndexWriter writer = new IndexWriter(dir, newIndexWriterConfig(new KeywordAnalyzer()));
+      Document doc = new Document();
+      doc.add(new StringField(NgramFields.KEY, key, Field.Store.YES));
+      doc.add(new StringField(NgramFields.term(0), key, Field.Store.NO));
+      writer.addDocument(doc);
+      writer.close();
+      dir.close();
+    }
+    return shards;
+  }
+
+  /** Keys of the shards <code>query</code> is routed to. */
+  private static String routed(NgramShards shards, Query query) throws IOException {
+    IndexReader reader = shards.route(query).getIndexReader();
+    Set<String> keys = new TreeSet<String>();
+    for (int i = 0; i < reader.maxDoc(); i++) {
+      keys.add(reader.document(i).get(NgramFields.KEY));
+    }
+    return keys.toString();
+  }
+
+  public void testShardOf() throws Exception {
+    File root = createTempDir("NgramShards");
+    NgramShards shards = NgramShards.create(root, SPLITS);
+    try {
+      assertTrue(NgramShards.isSharded(root));
+      assertEquals(5, shards.size());
+      String[] keys = { "", "apple", "b", "lz", "m", "m x", "ma", "mango", "t", "zz" };
+      int[] expected = { 0, 0, 1, 1, 2, 2, 3, 3, 4, 4 };
+      NgramShards opened = NgramShards.open(root);
+      for (int i = 0; i < keys.length; i++) {
+        assertEquals(keys[i], expected[i], shards.shardOf(keys[i]));
+        assertEquals(keys[i], expected[i], opened.shardOf(keys[i]));
+      }
+      assertEquals(new File(root, "shard_003"), opened.directory(3));
+      opened.close();
+    } finally {
+      shards.close();
+    }
+    try {
+      NgramShards.create(createTempDir("NgramShards"), new String[] { "b", "b" });
+      fail("duplicate boundary was accepted");
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  public void testRoute() throws Exception {
+    NgramShards shards = create(createTempDir("NgramShards"));
+    try {
+      assertEquals("[mango]", routed(shards, new TermQuery(new Term(NgramFields.KEY, "mango"))));
+      assertEquals("[m, mango]", routed(shards, new PrefixQuery(new Term(NgramFields.KEY, "m"))));
+      assertEquals("[m, mango]", routed(shards, new TermQuery(new Term(NgramFields.term(0), "m"))));
+      assertEquals("[mango]", routed(shards, new PrefixQuery(new Term(NgramFields.term(0), "man"))));
+      assertEquals("[apple, banana, m, mango, tomato]", routed(shards, new TermQuery(new Term(NgramFields.term(1), "x"))));
+
+      // the narrowest required clause wins
+      BooleanQuery bq = new BooleanQuery();
+      bq.add(new PrefixQuery(new Term(NgramFields.KEY, "m")), BooleanClause.Occur.MUST);
+      bq.add(new TermQuery(new Term(NgramFields.KEY, "banana")), BooleanClause.Occur.SHOULD);
+      bq.add(new TermQuery(new Term(NgramFields.term(0), "mango")), BooleanClause.Occur.MUST);
+      assertEquals("[mango]", routed(shards, bq));
+    } finally {
+      shards.close();
+    }
+  }
+
+  public void testParallelSearch() throws Exception {
+    NgramShards shards = create(createTempDir("NgramShards"));
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      shards.setExecutor(executor);
+      IndexSearcher searcher = shards.all();
+      assertEquals(KEYS.length, searcher.search(new MatchAllDocsQuery(), 10).totalHits);
+      assertEquals(1, searcher.search(new TermQuery(new Term(NgramFields.KEY, "tomato")), 10).totalHits);
+    } finally {
+      shards.close();
+      executor.shutdown();
+    }
+  }
+}
@@ -0,0 +1,187 @@
+package org.apache.lucene.ngram;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.store.ByteArrayDataOutput;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.LuceneTestCase;
+
+public class TestNgramTimeline extends LuceneTestCase {
+
+  /** A timeline with mostly empty years, small enough to sum without overflow. */
+  private static long[] randomTimeline(Random random) {
+    long[] tf = new long[NgramFields.NUM_YEARS];
+    for (int y = 0; y < tf.length; y++) {
+      switch (random.nextInt(4)) {
+        case 0: tf[y] = random.nextInt(100); break;
+        case 1: tf[y] = random.nextLong() >>> 9; break;
+        default: tf[y] = 0;
+      }
+    }
+    return tf;
+  }
+
+  private static long[] rollup(long[] tf, int resolution) {
+    long[] out = new long[NgramTimeline.length(resolution)];
+    NgramTimeline.rollup(tf, resolution, out);
+    return out;
+  }
+
+  public void testLengthAndIndex() {
+    assertEquals(NgramFields.NUM_YEARS, NgramTimeline.length(1));
+    assertEquals((NgramFields.NUM_YEARS + 9) / 10, NgramTimeline.length(10));
+    assertEquals(1, NgramTimeline.length(NgramFields.NUM_YEARS));
+    assertEquals(0, NgramTimeline.index(NgramFields.FIRST_YEAR - 10, 10));
+    assertEquals(1, NgramTimeline.index(NgramFields.FIRST_YEAR + 10, 10));
+    assertEquals(NgramTimeline.length(10) - 1, NgramTimeline.index(NgramFields.LAST_YEAR + 10, 10));
+    try {
+      NgramTimeline.length(0);
+      fail("resolution 0 was accepted");
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  public void testRollup() {
+    long[] tf = new long[NgramFields.NUM_YEARS];
+    Arrays.fill(tf, 1);
+    long[] decades = rollup(tf, 10);
+    for (int i = 0; i < decades.length - 1; i++) {
+      assertEquals(10, decades[i]);
+    }
+    // the last value covers the remaining years
+    assertEquals(NgramFields.NUM_YEARS - 10 * (decades.length - 1), decades[decades.length - 1]);
+  }
+
+  public void testEncodeDecode() {
+    Random random = random();
+    long[] tf = new long[NgramFields.NUM_YEARS];
+    for (int iter = 0; iter < atLeast(100); iter++) {
+      long[] expected = randomTimeline(random);
+      expected[random.nextInt(expected.length)] = Long.MAX_VALUE;
+      NgramTimeline.decode(NgramTimeline.encode(expected), tf);
+      assertArrayEquals(expected, tf);
+    }
+    // a document without a timeline
+    Arrays.fill(tf, 42);
+    NgramTimeline.decode(new BytesRef(), tf);
+    assertArrayEquals(new long[NgramFields.NUM_YEARS], tf);
+  }
+
+  public void testDecodeSlices() {
+    Random random = random();
+    long[] expected = randomTimeline(random);
+    BytesRef bytes = NgramTimeline.encode(expected);
+    long[] tf = new long[NgramFields.NUM_YEARS];
+    long[] years = new long[NgramFields.NUM_YEARS];
+    for (int from = 0; from <= NgramFields.NUM_YEARS; from++) {
+      for (int to = from; to <= NgramFields.NUM_YEARS; to += 1 + random.nextInt(20)) {
+        NgramTimeline.decode(bytes, tf, 1, from, to, null);
+        assertArrayEquals(Arrays.copyOfRange(expected, from, to), Arrays.copyOf(tf, to - from));
+      }
+    }
+    for (int resolution : new int[] { 2, 7, 10 }) {
+      long[] rolled = rollup(expected, resolution);
+      for (int from = 0; from <= rolled.length; from++) {
+        for (int to = from; to <= rolled.length; to++) {
+          NgramTimeline.decode(bytes, tf, resolution, from, to, years);
+          assertArrayEquals(Arrays.copyOfRange(rolled, from, to), Arrays.copyOf(tf, to - from));
+        }
+      }
+    }
+  }
+
+  public void testDecodeUnblockedFormat() throws Exception {
+    long[] expected = randomTimeline(random());
+    byte[] buffer = new byte[1 + 9 * expected.length];
+    ByteArrayDataOutput out = new ByteArrayDataOutput(buffer);
+    out.writeByte(NgramTimeline.FORMAT_VLONG);
+    for (long value : expected) {
+      out.writeVLong(value);
+    }
+    BytesRef bytes = new BytesRef(buffer, 0, out.getPosition());
+    long[] tf = new long[NgramFields.NUM_YEARS];
+    NgramTimeline.decode(bytes, tf);
+    assertArrayEquals(expected, tf);
+    NgramTimeline.decode(bytes, tf, 1, 100, 150, null);
+    assertArrayEquals(Arrays.copyOfRange(expected, 100, 150), Arrays.copyOf(tf, 50));
+  }
+
+  public void testReader() throws Exception {
+    Random random = random();
+    int numDocs = atLeast(20);
+    long[][] expected = new long[numDocs][];
+    Directory dir = newDirectory();
+    IndexWriter writer = new IndexWriter(dir, newIndexWriterConfig(new KeywordAnalyzer()));
+    for (int i = 0; i < numDocs; i++) {
+      Document doc = new Document();
+      doc.add(new StringField(NgramFields.KEY, "k" + i, Field.Store.NO));
+      // every third document has no timeline
+      if (i % 3 != 0) {
+        expected[i] = randomTimeline(random);
+        NgramTimeline.addTo(doc, expected[i]);
+      }
+      writer.addDocument(doc);
+    }
+    writer.forceMerge(1);
+    writer.close();
+
+    DirectoryReader reader = DirectoryReader.open(dir);
+    try {
+      AtomicReader leaf = reader.leaves().get(0).reader();
+      // precomputed rollups and one that is summed from the full timeline
+      for (int resolution : new int[] { 1, 5, 10, 25, 7 }) {
+        NgramTimeline.Reader timelines = new NgramTimeline.Reader(leaf, resolution);
+        assertTrue(timelines.exists());
+        int length = NgramTimeline.length(resolution);
+        long[] tf = new long[length];
+        for (int i = 0; i < numDocs; i++) {
+          if (expected[i] == null) {
+            assertFalse(timelines.read(i, tf));
+            continue;
+          }
+          long[] rolled = resolution == 1 ? expected[i] : rollup(expected[i], resolution);
+          assertTrue(timelines.read(i, tf));
+          assertArrayEquals(rolled, tf);
+          int from = random.nextInt(length + 1);
+          int to = from + random.nextInt(length - from + 1);
+          assertTrue(timelines.read(i, tf, from, to));
+          assertArrayEquals(Arrays.copyOfRange(rolled, from, to), Arrays.copyOf(tf, to - from));
+        }
+        try {
+          timelines.read(1, tf, 0, length + 1);
+          fail("slice past the end was read");
+        } catch (IndexOutOfBoundsException expectedException) {
+        }
+      }
+    } finally {
+      reader.close();
+      dir.close();
+    }
+  }
+}
@@ -0,0 +1,145 @@
+package org.apache.lucene.ngram;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.PrefixQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.LuceneTestCase;
+
+public class TestNgramVocabulary extends LuceneTestCase {
+
+  private static NgramVocabulary vocabulary(String... tokens) throws IOException {
+    return NgramVocabulary.build(Arrays.asList(tokens));
+  }
+
+  public void testIdsInTermOrder() throws Exception {
+    NgramVocabulary vocabulary = vocabulary("the", "cat", "NOUN", "the", "DET");
+    assertEquals(4, vocabulary.size());
+    String[] sorted = { "DET", "NOUN", "cat", "the" };
+    for (int i = 0; i < sorted.length; i++) {
+      assertEquals(i + 1, vocabulary.id(sorted[i]));
+      assertEquals(sorted[i], vocabulary.token(i + 1));
+    }
+    assertEquals(-1, vocabulary.id("dog"));
+    try {
+      vocabulary.token(5);
+      fail("unknown id was decoded");
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  public void testEncodeDecode() throws Exception {
+    // the empty term stands for the term of part of speech tokens like _DET_
+    NgramVocabulary vocabulary = vocabulary("", "the", "cat", "NOUN", "DET");
+    for (String entry : new String[] { "the", "the_DET cat_NOUN", "the cat_NOUN", "_DET_ cat" }) {
+      BytesRef key = vocabulary.encode(entry);
+      assertNotNull(entry, key);
+      assertEquals(8 * entry.split(" ").length, key.length);
+      assertEquals(entry, vocabulary.decode(key));
+    }
+    assertNull(vocabulary.encode("the dog"));
+    assertNull(vocabulary.encode("the_VERB cat"));
+  }
+
+  public void testSaveLoadEquals() throws Exception {
+    NgramVocabulary vocabulary = vocabulary("the", "cat", "NOUN", "DET");
+    File file = new File(createTempDir("NgramVocabulary"), NgramVocabulary.FILE_NAME);
+    vocabulary.save(file);
+    NgramVocabulary loaded = NgramVocabulary.load(file);
+    assertEquals(vocabulary.size(), loaded.size());
+    assertEquals(vocabulary, loaded);
+    assertEquals(vocabulary.encode("the_DET cat"), loaded.encode("the_DET cat"));
+    // same size, other tokens, so other ids
+    assertFalse(vocabulary.equals(vocabulary("the", "dog", "NOUN", "DET")));
+    assertFalse(vocabulary.equals(vocabulary("the", "cat", "NOUN")));
+  }
+
+  private static final String[] ENTRIES = {
+    "the_DET cat_NOUN", "the car", "the_DET dog", // encoded
+    "the zebra", "a zebra_NOUN"                    // not in the vocabulary, indexed as text
+  };
+
+  private static int hits(IndexSearcher searcher, NgramVocabulary vocabulary, Query query) throws IOException {
+    return searcher.search(vocabulary.translate(query), 10).totalHits;
+  }
+
+  public void testTranslate() throws Exception {
+    PrintStream logSave = IndexNgrams.log;
+    IndexNgrams.log = new PrintStream(new ByteArrayOutputStream(), false, StandardCharsets.UTF_8.name());
+    NgramVocabulary vocabulary = vocabulary("the", "cat", "car", "dog", "DET", "NOUN");
+    Directory dir = newDirectory();
+    try {
+      IndexWriter writer = new IndexWriter(dir, newIndexWriterConfig(new KeywordAnalyzer()));
+      for (String entry : ENTRIES) {
+        String[] tokens = entry.split(" ");
+        String[] term = new String[tokens.length];
+        String[] pos = new String[tokens.length];
+        for (int i = 0; i < tokens.length; i++) {
+          int underscore = tokens[i].indexOf('_');
+          term[i] = underscore < 0 ? tokens[i] : tokens[i].substring(0, underscore);
+          pos[i] = underscore < 0 ? null : tokens[i].substring(underscore + 1);
+        }
+        writer.addDocument(IndexNgrams.buildDocument(entry, term, pos, new long[NgramFields.NUM_YEARS], vocabulary));
+      }
+      writer.close();
+
+      DirectoryReader reader = DirectoryReader.open(dir);
+      try {
+        IndexSearcher searcher = new IndexSearcher(reader);
+        assertEquals(4, hits(searcher, vocabulary, new TermQuery(new Term("term_0", "the"))));
+        assertEquals(2, hits(searcher, vocabulary, new TermQuery(new Term("pos_0", "DET"))));
+        assertEquals(2, hits(searcher, vocabulary, new TermQuery(new Term("pos_1", "NOUN"))));
+        assertEquals(2, hits(searcher, vocabulary, new PrefixQuery(new Term("term_1", "ca"))));
+        assertEquals(2, hits(searcher, vocabulary, new PrefixQuery(new Term("term_1", "z"))));
+        assertEquals(0, hits(searcher, vocabulary, new PrefixQuery(new Term("term_1", "x"))));
+        for (String entry : ENTRIES) {
+          assertEquals(entry, 1, hits(searcher, vocabulary, new TermQuery(new Term(NgramFields.KEY, entry))));
+        }
+
+        BooleanQuery both = new BooleanQuery();
+        both.add(new TermQuery(new Term("term_0", "the")), BooleanClause.Occur.MUST);
+        both.add(new PrefixQuery(new Term("term_1", "d")), BooleanClause.Occur.MUST);
+        assertEquals(1, hits(searcher, vocabulary, both));
+        // the untranslated query only sees the text documents
+        assertEquals(1, searcher.search(new TermQuery(new Term("term_0", "the")), 10).totalHits);
+      } finally {
+        reader.close();
+      }
+    } finally {
+      dir.close();
+      IndexNgrams.log = logSave;
+    }
+  }
+}
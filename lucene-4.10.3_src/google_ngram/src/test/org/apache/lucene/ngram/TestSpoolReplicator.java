@@ -0,0 +1,153 @@
+package org.apache.lucene.ngram;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.KeepOnlyLastCommitDeletionPolicy;
+import org.apache.lucene.index.NoMergePolicy;
+import org.apache.lucene.index.SnapshotDeletionPolicy;
+import org.apache.lucene.replicator.IndexRevision;
+import org.apache.lucene.replicator.PerSessionDirectoryFactory;
+import org.apache.lucene.replicator.ReplicationClient;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.LuceneTestCase;
+
+public class TestSpoolReplicator extends LuceneTestCase {
+
+  private static IndexWriter newWriter(Directory dir) throws IOException {
+    IndexWriterConfig iwc = newIndexWriterConfig(new KeywordAnalyzer());
+    iwc.setIndexDeletionPolicy(new SnapshotDeletionPolicy(new KeepOnlyLastCommitDeletionPolicy()));
+    // one segment per commit, so a recreated index reuses the segment names
+    iwc.setMergePolicy(NoMergePolicy.INSTANCE);
+    return new IndexWriter(dir, iwc);
+  }
+
+  private static void commit(IndexWriter writer, String... keys) throws IOException {
+    for (String key : keys) {
+      Document doc = new Document();
+      doc.add(new StringField(NgramFields.KEY, key, Field.Store.YES));
+      writer.addDocument(doc);
+    }
+    writer.commit();
+  }
+
+  private static Set<String> keys(Directory dir) throws IOException {
+    Set<String> keys = new TreeSet<String>();
+    DirectoryReader reader = DirectoryReader.open(dir);
+    try {
+      for (int i = 0; i < reader.maxDoc(); i++) {
+        keys.add(reader.document(i).get(NgramFields.KEY));
+      }
+    } finally {
+      reader.close();
+    }
+    return keys;
+  }
+
+  private static final Callable<Boolean> NO_CALLBACK = new Callable<Boolean>() {
+    @Override
+    public Boolean call() {
+      return true;
+    }
+  };
+
+  public void testPublishAndReplicate() throws Exception {
+    File spool = createTempDir("NgramSpool");
+    SpoolReplicator replicator = new SpoolReplicator(spool);
+    Directory source = newDirectory();
+    Directory replica = newDirectory();
+    IndexWriter writer = newWriter(source);
+    ReplicationClient client = new NgramReplica.ChecksumReplicationClient(replicator,
+        new NgramReplica.RecreatedIndexHandler(replica, NO_CALLBACK),
+        new PerSessionDirectoryFactory(createTempDir("NgramWork")), replica, new AtomicBoolean());
+    try {
+      assertNull(replicator.checkForUpdate(null));
+
+      commit(writer, "a", "b");
+      replicator.publish(new IndexRevision(writer));
+      client.updateNow();
+      assertEquals("[a, b]", keys(replica).toString());
+
+      commit(writer, "c");
+      replicator.publish(new IndexRevision(writer));
+      client.updateNow();
+      assertEquals("[a, b, c]", keys(replica).toString());
+
+      // nothing new
+      replicator.publish(new IndexRevision(writer));
+      String version = IndexRevision.revisionVersion(DirectoryReader.listCommits(replica).get(0));
+      assertNull(replicator.checkForUpdate(version));
+    } finally {
+      client.close();
+      writer.close();
+      source.close();
+      replica.close();
+    }
+  }
+
+  public void testRecreatedIndex() throws Exception {
+    File spool = createTempDir("NgramSpool");
+    SpoolReplicator replicator = new SpoolReplicator(spool);
+    Directory source = newDirectory();
+    Directory replica = newDirectory();
+    AtomicBoolean replaced = new AtomicBoolean();
+    ReplicationClient client = new NgramReplica.ChecksumReplicationClient(replicator,
+        new NgramReplica.RecreatedIndexHandler(replica, NO_CALLBACK),
+        new PerSessionDirectoryFactory(createTempDir("NgramWork")), replica, replaced);
+    try {
+      IndexWriter writer = newWriter(source);
+      commit(writer, "a");
+      commit(writer, "b");
+      commit(writer, "c");
+      replicator.publish(new IndexRevision(writer));
+      writer.close();
+      source.close();
+      client.updateNow();
+      assertEquals("[a, b, c]", keys(replica).toString());
+      assertFalse(replaced.get());
+
+      // starts over at the first generation, with the same segment name
+      source = newDirectory();
+      writer = newWriter(source);
+      commit(writer, "x", "yy");
+      replicator.publish(new IndexRevision(writer));
+      writer.close();
+      client.updateNow();
+      assertEquals("[x, yy]", keys(replica).toString());
+      assertTrue("changed segment was not copied again", replaced.get());
+      assertEquals(1, DirectoryReader.listCommits(replica).size());
+    } finally {
+      client.close();
+      source.close();
+      replica.close();
+    }
+  }
+}
@@ -0,0 +1,165 @@
+package org.apache.lucene.store;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to You under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.lucene.index.IndexFileNames;
+import org.apache.lucene.store.IOContext.Context;
+
+/**
+ * A {@link MMapDirectory} that tells the kernel how each mapped file
+ * will be read, with <code>madvise()</code> through {@link NativePosixUtil}.
+ * <p>
+ * The default read-ahead of a mapping suits sequential reads. For
+ * random point lookups into indexes larger than RAM it fills the page
+ * cache with neighbouring pages that are never read, and evicts pages
+ * that would have been. By default, see {@link #advice}:
+ * <ul>
+ *   <li>files opened for merging are read {@link NativePosixUtil#SEQUENTIAL
+ *   sequentially};</li>
+ *   <li>the terms index (<code>.tip</code>) is loaded up front with
+ *   {@link NativePosixUtil#WILLNEED};</li>
+ *   <li>terms dictionaries, postings, stored fields, doc values and norms
+ *   data, and compound files are read {@link NativePosixUtil#RANDOM
+ *   randomly}, without read-ahead;</li>
+ *   <li>other files, which are small and read once, keep the default.</li>
+ * </ul>
+ * <p>
+ * Like {@link NativeUnixDirectory} this needs
+ * <code>libNativePosixUtil.so</code> on the dynamic linker search path,
+ * see the <a href="{@docRoot}/overview-summary.html#NativeUnixDirectory">Overview</a>.
+ * Without it, files are mapped without advice, see {@link #isNativeAvailable()}.
+ *
+ * @lucene.experimental
+ */
+public class MadviseMMapDirectory extends MMapDirectory {
+
+  private static final boolean NATIVE_AVAILABLE;
+  static {
+    boolean available;
+    try {
+      Class.forName(NativePosixUtil.class.getName());
+      available = true;
+    } catch (ClassNotFoundException | LinkageError e) {
+      available = false;
+    }
+    NATIVE_AVAILABLE = available;
+  }
+
+  private final AtomicLong[] advisedBytes = new AtomicLong[NativePosixUtil.NOREUSE + 1];
+  private final AtomicLong failures = new AtomicLong();
+
+  /** Create a new MadviseMMapDirectory for the named location.
+   *
+   * @param path the path of the directory
+   * @param lockFactory the lock factory to use, or null for the default
+   * ({@link NativeFSLockFactory});
+   * @throws IOException if there is a low-level I/O error
+   */
+  public MadviseMMapDirectory(File path, LockFactory lockFactory) throws IOException {
+    super(path, lockFactory);
+    for (int i = 0; i < advisedBytes.length; i++) {
+      advisedBytes[i] = new AtomicLong();
+    }
+  }
+
+  /** Create a new MadviseMMapDirectory for the named location and {@link NativeFSLockFactory}.
+   *
+   * @param path the path of the directory
+   * @throws IOException if there is a low-level I/O error
+   */
+  public MadviseMMapDirectory(File path) throws IOException {
+    this(path, null);
+  }
+
+  /** True if the native library was loaded, otherwise no advice is given. */
+  public static boolean isNativeAvailable() {
+    return NATIVE_AVAILABLE;
+  }
+
+  @Override
+  public IndexInput openInput(String name, IOContext context) throws IOException {
+    IndexInput in = super.openInput(name, context);
+    if (NATIVE_AVAILABLE) {
+      int advice = advice(name, context);
+      if (advice != NativePosixUtil.NORMAL) {
+        for (ByteBuffer buffer : ((ByteBufferIndexInput) in).buffers) {
+          if (buffer.capacity() == 0) continue;
+          // only a hint: a failure leaves the default behaviour
+          if (NativePosixUtil.posix_madvise(buffer, advice) == 0) {
+            advisedBytes[advice].addAndGet(buffer.capacity());
+          } else {
+            failures.incrementAndGet();
+          }
+        }
+      }
+    }
+    return in;
+  }
+
+  /**
+   * The advice for file <code>name</code> opened with <code>context</code>,
+   * one of the constants of {@link NativePosixUtil}.
+   */
+  protected int advice(String name, IOContext context) {
+    if (context.context == Context.MERGE) {
+      return NativePosixUtil.SEQUENTIAL;
+    }
+    String extension = IndexFileNames.getExtension(name);
+    if (extension == null) {
+      return NativePosixUtil.NORMAL;
+    }
+    switch (extension) {
+      case "tip":
+        return NativePosixUtil.WILLNEED;
+      case "tim":
+      case "doc":
+      case "pos":
+      case "pay":
+      case "fdt":
+      case "dvd":
+      case "nvd":
+      case IndexFileNames.COMPOUND_FILE_EXTENSION:
+        return NativePosixUtil.RANDOM;
+      default:
+        return NativePosixUtil.NORMAL;
+    }
+  }
+
+  /** Number of mapped bytes given <code>advice</code> so far, one of the constants of {@link NativePosixUtil}. */
+  public long getAdvisedBytes(int advice) {
+    return advisedBytes[advice].get();
+  }
+
+  /** Number of mapped buffers the kernel refused advice for. */
+  public long getFailures() {
+    return failures.get();
+  }
+
+  @Override
+  public String toString() {
+    return super.toString() + " advised(random=" + getAdvisedBytes(NativePosixUtil.RANDOM)
+      + ", willneed=" + getAdvisedBytes(NativePosixUtil.WILLNEED)
+      + ", sequential=" + getAdvisedBytes(NativePosixUtil.SEQUENTIAL)
+      + ", failures=" + getFailures() + ")";
+  }
+}
@@ -213,6 +213,20 @@ JNIEXPORT jlong JNICALL Java_org_apache_lucene_store_NativePosixUtil_pread(JNIEn
   return (jlong) numBytesRead;
 }
 
+/*
+ * Class:     org_apache_lucene_store_NativePosixUtil
+ * Method:    address
+ * Signature: (Ljava/nio/ByteBuffer;)J
+ */
+extern "C"
+JNIEXPORT jlong JNICALL Java_org_apache_lucene_store_NativePosixUtil_address(JNIEnv *env, jclass _ignore, jobject buffer) {
+  void *p = env->GetDirectBufferAddress(buffer);
+  if (p == NULL) {
+    return -1;
+  }
+  return (jlong) p;
+}
+
 /*
  * Class:     org_apache_lucene_store_NativePosixUtil
  * Method:    posix_madvise
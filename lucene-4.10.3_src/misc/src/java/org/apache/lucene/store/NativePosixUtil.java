@@ -42,6 +42,8 @@ public final class NativePosixUtil {
   public static native int madvise(ByteBuffer buf, int advise) throws IOException;
   public static native FileDescriptor open_direct(String filename, boolean read) throws IOException;
   public static native long pread(FileDescriptor fd, long pos, ByteBuffer byteBuf) throws IOException;
+  /** Address of the first byte of the direct buffer <code>buf</code>, or -1 if it is not direct. */
+  public static native long address(ByteBuffer buf);
 
   public static void advise(FileDescriptor fd, long offset, long len, int advise) throws IOException {
     final int code = posix_fadvise(fd, offset, len, advise);
@@ -25,6 +25,8 @@ import java.io.FileDescriptor;
 import java.io.FileOutputStream;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.Collection;
+import java.util.zip.CRC32;
 
 import org.apache.lucene.store.Directory; // javadoc
 import org.apache.lucene.store.IOContext.Context;
@@ -101,7 +103,7 @@ public class NativeUnixDirectory extends FSDirectory {
    */
   public NativeUnixDirectory(File path, int mergeBufferSize, long minBytesDirect, Directory delegate) throws IOException {
     super(path, delegate.getLockFactory());
-    if ((mergeBufferSize & ALIGN) != 0) {
+    if ((mergeBufferSize & ~ALIGN_NOT_MASK) != 0) {
       throw new IllegalArgumentException("mergeBufferSize must be 0 mod " + ALIGN + " (got: " + mergeBufferSize + ")");
     }
     this.mergeBufferSize = mergeBufferSize;
@@ -136,15 +138,37 @@ public class NativeUnixDirectory extends FSDirectory {
       return delegate.createOutput(name, context);
     } else {
       ensureCanWrite(name);
-      return new NativeUnixIndexOutput(new File(getDirectory(), name), mergeBufferSize);
+      return new NativeUnixIndexOutput(name, mergeBufferSize);
     }
   }
 
-  private final static class NativeUnixIndexOutput extends IndexOutput {
+  /** A direct buffer of <code>size</code> bytes whose address is a
+   *  multiple of {@link #ALIGN}, as O_DIRECT reads and writes require;
+   *  {@link ByteBuffer#allocateDirect} does not guarantee that. */
+  private static ByteBuffer allocateAligned(int size) {
+    final ByteBuffer buffer = ByteBuffer.allocateDirect((int) (size + ALIGN - 1));
+    final long address = NativePosixUtil.address(buffer);
+    final int offset = (int) (((address + ALIGN - 1) & ALIGN_NOT_MASK) - address);
+    buffer.position(offset);
+    buffer.limit(offset + size);
+    return buffer.slice();
+  }
+
+  /** Syncs the files written by the delegate too. */
+  @Override
+  public void sync(Collection<String> names) throws IOException {
+    ensureOpen();
+    delegate.sync(names);
+    super.sync(names);
+  }
+
+  private final class NativeUnixIndexOutput extends IndexOutput {
     private final ByteBuffer buffer;
     private final FileOutputStream fos;
     private final FileChannel channel;
     private final int bufferSize;
+    private final String name;
+    private final BufferedChecksum crc = new BufferedChecksum(new CRC32());
 
     //private final File path;
 
@@ -153,13 +177,14 @@ public class NativeUnixDirectory extends FSDirectory {
     private long fileLength;
     private boolean isOpen;
 
-    public NativeUnixIndexOutput(File path, int bufferSize) throws IOException {
+    public NativeUnixIndexOutput(String name, int bufferSize) throws IOException {
       //this.path = path;
-      final FileDescriptor fd = NativePosixUtil.open_direct(path.toString(), false);
+      this.name = name;
+      final FileDescriptor fd = NativePosixUtil.open_direct(new File(getDirectory(), name).toString(), false);
       fos = new FileOutputStream(fd);
       //fos = new FileOutputStream(path);
       channel = fos.getChannel();
-      buffer = ByteBuffer.allocateDirect(bufferSize);
+      buffer = allocateAligned(bufferSize);
       this.bufferSize = bufferSize;
       isOpen = true;
     }
@@ -168,6 +193,7 @@ public class NativeUnixDirectory extends FSDirectory {
     public void writeByte(byte b) throws IOException {
       assert bufferPos == buffer.position(): "bufferPos=" + bufferPos + " vs buffer.position()=" + buffer.position();
       buffer.put(b);
+      crc.update(b);
       if (++bufferPos == bufferSize) {
         dump();
       }
@@ -175,6 +201,7 @@ public class NativeUnixDirectory extends FSDirectory {
 
     @Override
     public void writeBytes(byte[] src, int offset, int len) throws IOException {
+      crc.update(src, offset, len);
       int toWrite = len;
       while(true) {
         final int left = bufferSize - bufferPos;
@@ -238,7 +265,7 @@ public class NativeUnixDirectory extends FSDirectory {
 
     @Override
     public long getChecksum() throws IOException {
-      throw new UnsupportedOperationException("this directory currently does not work at all!");
+      return crc.getValue();
     }
 
     @Override
@@ -258,6 +285,7 @@ public class NativeUnixDirectory extends FSDirectory {
             } finally {
               fos.close();
               //System.out.println("  final len=" + path.length());
+              onIndexOutputClosed(name);
             }
           }
         }
@@ -282,7 +310,7 @@ public class NativeUnixDirectory extends FSDirectory {
       fis = new FileInputStream(fd);
       channel = fis.getChannel();
       this.bufferSize = bufferSize;
-      buffer = ByteBuffer.allocateDirect(bufferSize);
+      buffer = allocateAligned(bufferSize);
       isOpen = true;
       isClone = false;
       filePos = -bufferSize;
@@ -296,7 +324,7 @@ public class NativeUnixDirectory extends FSDirectory {
       this.fis = null;
       channel = other.channel;
       this.bufferSize = other.bufferSize;
-      buffer = ByteBuffer.allocateDirect(bufferSize);
+      buffer = allocateAligned(bufferSize);
       filePos = -bufferSize;
       bufferPos = bufferSize;
       isOpen = true;